@@ -0,0 +1,204 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation;
+
+import ch.ge.ael.enu.business.domain.v1_0.*;
+import ch.ge.ael.enu.mediation.MainRouter.ParsedMessage;
+import ch.ge.ael.enu.mediation.service.DemarcheService;
+import ch.ge.ael.enu.mediation.service.technical.HeavyHitters;
+import ch.ge.ael.enu.mediation.service.technical.InFlightMessages;
+import ch.ge.ael.enu.mediation.service.technical.ResponseHandler;
+import ch.ge.ael.enu.mediation.service.technical.tracing.MessageTracer;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Traitement par lots des messages RabbitMQ du flux principal SI metier -> ENU.
+ * Actif uniquement si app.rabbitmq.batch.enabled = true ; dans ce cas le {@link MainRouter} ne consomme plus.
+ * <p>
+ * Les changements d'etat d'une meme demarche (couple idUsager, idDemarcheSiMetier) recus dans un meme lot sont
+ * regroupes : la demarche n'est lue qu'une fois dans FormServices, puis chaque transition est ecrite dans l'ordre.
+ * Chaque message recoit neanmoins sa propre reponse, avec son propre CorrelationId.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "app.rabbitmq.batch.enabled", havingValue = "true")
+public class BatchRouter {
+
+    private final MainRouter mainRouter;
+    private final DemarcheService demarcheService;
+    private final ResponseHandler responseHandler;
+    private final MessageTracer messageTracer;
+    private final InFlightMessages inFlightMessages;
+    private final HeavyHitters heavyHitters;
+
+    /**
+     * Consommation d'un lot de messages RabbitMQ du flux principal.
+     */
+    @RabbitListener(queues = "${app.rabbitmq.queue-in}", containerFactory = "batchListenerContainerFactory", ackMode = "AUTO")
+    public void consume(List<Message> messages) {
+        log.debug("Lot de {} message(s) reçu de RabbitMQ", messages.size());
+        messages.forEach(inFlightMessages::received);
+
+        // changements d'etat en attente, par demarche, dans l'ordre d'arrivee
+        Map<String, List<ParsedMessage>> pendingTransitions = new LinkedHashMap<>();
+
+        for (Message message : messages) {
+            try {
+                mainRouter.admit(message);
+            } catch (Exception e) {
+                replyKo(e, message);
+                continue;
+            }
+            if (mainRouter.isSequence(message)) {
+                // une sequence peut porter sur n'importe quelle demarche : les changements d'etat en attente passent avant
+                pendingTransitions.values().forEach(this::applyTransitions);
+                pendingTransitions.clear();
+                messageTracer.resume(message);
+                try {
+                    mainRouter.handleSequence(message);
+                    replyOk(message);
+                } catch (Exception e) {
+                    replyKo(e, message);
+                }
+                continue;
+            }
+            ParsedMessage parsedMessage;
+            try {
+                parsedMessage = mainRouter.parse(message);
+            } catch (Exception e) {
+                replyKo(e, message);
+                continue;
+            }
+            Object body = parsedMessage.getBody();
+            String key = demarcheKey(body);
+            if (isTransition(body)) {
+                pendingTransitions.computeIfAbsent(key, k -> new ArrayList<>()).add(parsedMessage);
+            } else {
+                // un message portant sur une demarche (document, courrier...) peut dependre des changements d'etat
+                // qui le precedent, par ex. de la creation de la demarche par un DemarcheDeposee
+                if (key != null && pendingTransitions.containsKey(key)) {
+                    applyTransitions(pendingTransitions.remove(key));
+                }
+                messageTracer.resume(message);
+                heavyHitters.attribute(body);
+                try {
+                    mainRouter.dispatch(parsedMessage.getContentType(), body);
+                    replyOk(message);
+                } catch (Exception e) {
+                    replyKo(e, message);
+                }
+            }
+        }
+        pendingTransitions.values().forEach(this::applyTransitions);
+    }
+
+    private void applyTransitions(List<ParsedMessage> transitions) {
+        MessageENU first = (MessageENU) transitions.get(0).getBody();
+        String idDemarcheSiMetier = idDemarcheSiMetier(first);
+        List<Object> bodies = new ArrayList<>();
+        transitions.forEach(transition -> bodies.add(transition.getBody()));
+        // les appels a FormServices d'un groupe de transitions sont attribues au premier message du groupe
+        messageTracer.resume(transitions.get(0).getMessage());
+        heavyHitters.attribute(first);
+
+        List<Exception> errors;
+        try {
+            errors = demarcheService.handleDemarcheTransitions(idDemarcheSiMetier, first.getIdUsager(), bodies);
+        } catch (RuntimeException e) {
+            transitions.forEach(transition -> replyKo(e, transition.getMessage()));
+            return;
+        }
+        for (int i = 0; i < transitions.size(); i++) {
+            if (errors.get(i) == null) {
+                replyOk(transitions.get(i).getMessage());
+            } else {
+                replyKo(errors.get(i), transitions.get(i).getMessage());
+            }
+        }
+    }
+
+    private void replyOk(Message message) {
+        try {
+            responseHandler.handleOk(message);
+        } catch (JsonProcessingException e) {
+            log.error("Echec de l'envoi de la reponse OK pour CorrelationId [{}] : {}", message.getMessageProperties().getCorrelationId(), e.getMessage());
+        }
+    }
+
+    private void replyKo(Exception error, Message message) {
+        try {
+            responseHandler.handleKo(error, message);
+        } catch (JsonProcessingException e) {
+            log.error("Echec de l'envoi de la reponse KO pour CorrelationId [{}] : {}", message.getMessageProperties().getCorrelationId(), e.getMessage());
+        }
+    }
+
+    private static boolean isTransition(Object body) {
+        return body instanceof DemarcheDeposee
+                || body instanceof DemarcheEnTraitement
+                || body instanceof DemarcheActionRequise
+                || body instanceof DemarcheTerminee;
+    }
+
+    /**
+     * Rend l'identifiant de la demarche concernee par le message, ou null si le message ne porte pas sur une demarche.
+     */
+    private static String idDemarcheSiMetier(Object body) {
+        if (body instanceof DemarcheDeposee) {
+            return ((DemarcheDeposee) body).getIdDemarcheSiMetier();
+        } else if (body instanceof DemarcheEnTraitement) {
+            return ((DemarcheEnTraitement) body).getIdDemarcheSiMetier();
+        } else if (body instanceof DemarcheActionRequise) {
+            return ((DemarcheActionRequise) body).getIdDemarcheSiMetier();
+        } else if (body instanceof DemarcheTerminee) {
+            return ((DemarcheTerminee) body).getIdDemarcheSiMetier();
+        } else if (body instanceof BrouillonDemarche) {
+            return ((BrouillonDemarche) body).getIdDemarcheSiMetier();
+        } else if (body instanceof DocumentUsager) {
+            return ((DocumentUsager) body).getIdDemarcheSiMetier();
+        } else if (body instanceof DocumentUsagerBinaire) {
+            return ((DocumentUsagerBinaire) body).getIdDemarcheSiMetier();
+        } else if (body instanceof Courrier) {
+            return ((Courrier) body).getIdDemarcheSiMetier();
+        } else if (body instanceof CourrierBinaire) {
+            return ((CourrierBinaire) body).getIdDemarcheSiMetier();
+        }
+        return null;
+    }
+
+    private static String demarcheKey(Object body) {
+        String idDemarcheSiMetier = idDemarcheSiMetier(body);
+        if (idDemarcheSiMetier == null || !(body instanceof MessageENU)) {
+            return null;
+        }
+        return ((MessageENU) body).getIdUsager() + "|" + idDemarcheSiMetier;
+    }
+}
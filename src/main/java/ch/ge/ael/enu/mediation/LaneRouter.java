@@ -0,0 +1,98 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation;
+
+import ch.ge.ael.enu.mediation.service.technical.InFlightMessages;
+import ch.ge.ael.enu.mediation.service.technical.WorkerLanes;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.rabbitmq.client.Channel;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Traitement des messages RabbitMQ du flux principal dans des files de traitement separees (voir {@link WorkerLanes}).
+ * Actif uniquement si app.lanes.enabled = true et que le mode par lots n'est pas actif ; dans ce cas le
+ * {@link MainRouter} ne consomme plus.
+ * <p>
+ * Le thread du consommateur RabbitMQ ne fait que confier le message a sa file, sans jamais attendre ; le message
+ * est acquitte par le thread de la file, une fois sa reponse envoyee. Un message recu mais non traite (arret de
+ * l'application) est donc redelivre. Un message refuse par sa file (budget epuise) est rendu a RabbitMQ, qui le
+ * redelivrera.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "app.lanes.enabled", havingValue = "true")
+public class LaneRouter {
+
+    private final MainRouter mainRouter;
+    private final WorkerLanes workerLanes;
+    private final InFlightMessages inFlightMessages;
+
+    @RabbitListener(queues = "${app.rabbitmq.queue-in}", containerFactory = "laneListenerContainerFactory", ackMode = "MANUAL",
+            autoStartup = "#{'${app.rabbitmq.batch.enabled:false}' != 'true'}")
+    public void consume(Message message, Channel channel) {
+        long deliveryTag = message.getMessageProperties().getDeliveryTag();
+        inFlightMessages.received(message);
+        try {
+            workerLanes.submit(MainRouter.contentTypeOf(message), mainRouter.demarcheKeyOf(message),
+                    message.getMessageProperties().getCorrelationId(), () -> processAndAck(message, channel, deliveryTag));
+        } catch (RejectedExecutionException e) {
+            log.debug("Message CorrelationId [{}] rendu a RabbitMQ : {}", message.getMessageProperties().getCorrelationId(), e.getMessage());
+            inFlightMessages.done(message);
+            settle(message, channel, deliveryTag, false);
+        }
+    }
+
+    private void processAndAck(Message message, Channel channel, long deliveryTag) {
+        try {
+            mainRouter.process(message);
+        } catch (JsonProcessingException | AmqpException e) {
+            // la reponse n'a pas pu etre envoyee : le message est rendu a RabbitMQ pour etre traite a nouveau
+            log.error("Echec de l'envoi de la reponse pour CorrelationId [{}] : {}", message.getMessageProperties().getCorrelationId(), e.getMessage());
+            settle(message, channel, deliveryTag, false);
+            return;
+        }
+        settle(message, channel, deliveryTag, true);
+    }
+
+    /**
+     * Acquitte le message, ou le rend a RabbitMQ. Si l'operation echoue, le message reste non acquitte et sera
+     * redelivre a la fermeture du canal.
+     */
+    private static void settle(Message message, Channel channel, long deliveryTag, boolean processed) {
+        try {
+            if (processed) {
+                channel.basicAck(deliveryTag, false);
+            } else {
+                channel.basicNack(deliveryTag, false, true);
+            }
+        } catch (IOException e) {
+            log.warn("Echec de l'acquittement du message CorrelationId [{}] : {}", message.getMessageProperties().getCorrelationId(), e.getMessage());
+        }
+    }
+}
@@ -19,30 +19,49 @@
 package ch.ge.ael.enu.mediation;
 
 import ch.ge.ael.enu.business.domain.v1_0.*;
+import ch.ge.ael.enu.mediation.configuration.serialization.MessageFormat;
+import ch.ge.ael.enu.mediation.configuration.serialization.MessageMappers;
 import ch.ge.ael.enu.mediation.exception.IllegalMessageException;
 import ch.ge.ael.enu.mediation.exception.NotFoundException;
+import ch.ge.ael.enu.mediation.exception.SequenceException;
 import ch.ge.ael.enu.mediation.exception.UnsupportedMediaTypeException;
+import ch.ge.ael.enu.mediation.model.SequenceItemResult;
 import ch.ge.ael.enu.mediation.model.exception.ValidationException;
 import ch.ge.ael.enu.mediation.service.DemarcheService;
 import ch.ge.ael.enu.mediation.service.DocumentService;
+import ch.ge.ael.enu.mediation.service.FormServicesApi;
 import ch.ge.ael.enu.mediation.service.SuggestionService;
+import ch.ge.ael.enu.mediation.service.technical.HeavyHitters;
+import ch.ge.ael.enu.mediation.service.technical.InFlightMessages;
+import ch.ge.ael.enu.mediation.service.technical.MessageAudit;
+import ch.ge.ael.enu.mediation.service.technical.MessageGate;
 import ch.ge.ael.enu.mediation.service.technical.ResponseHandler;
+import ch.ge.ael.enu.mediation.service.technical.jfr.FlightEvents;
+import ch.ge.ael.enu.mediation.service.technical.tracing.MessageTracer;
+import ch.ge.ael.enu.mediation.util.codec.ContentEncoding;
+import ch.ge.ael.enu.mediation.util.codec.DecodedSizeExceededException;
+import ch.ge.ael.enu.mediation.util.logging.LogRenderer;
+import ch.ge.ael.enu.mediation.util.validation.MessageValidator;
+import ch.ge.ael.enu.mediation.util.validation.Violation;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.stereotype.Component;
 
-import javax.validation.ConstraintViolation;
 import javax.validation.Validation;
-import javax.validation.Validator;
-import javax.validation.ValidatorFactory;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Set;
+import java.util.List;
 
 import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.*;
 import static ch.ge.ael.enu.mediation.model.Header.CONTENT_TYPE;
@@ -55,22 +74,45 @@ import static ch.ge.ael.enu.mediation.model.Header.CONTENT_TYPE;
 @RequiredArgsConstructor
 public class MainRouter {
 
+    /**
+     * Identifiant du conteneur RabbitMQ du traitement message par message.
+     */
+    public static final String LISTENER_ID = "main";
+
     private final ObjectMapper mapper;
-    private final ValidatorFactory factory = Validation.buildDefaultValidatorFactory();
-    private final Validator validator = factory.getValidator();
+    private final MessageMappers messageMappers;
+    private final MessageValidator validator = new MessageValidator(Validation.buildDefaultValidatorFactory(), messageClasses());
     private final DemarcheService demarcheService;
     private final SuggestionService suggestionService;
     private final DocumentService courrierService;
+    private final FormServicesApi formServicesApi;
     private final ResponseHandler responseHandler;
+    private final MessageGate messageGate;
+    private final LogRenderer logRenderer;
+    private final MessageAudit messageAudit;
+    private final MessageTracer messageTracer;
+    private final InFlightMessages inFlightMessages;
+    private final FlightEvents flightEvents;
+    private final HeavyHitters heavyHitters;
 
     /**
      * Le principal point d'entree de l'application : consommation d'un message RabbitMQ du flux principal.
+     * Inactif en mode par lots (voir BatchRouter) et en mode files de traitement (voir LaneRouter).
      */
-    @RabbitListener(queues = "${app.rabbitmq.queue-in}", autoStartup = "true", ackMode = "AUTO")
+    @RabbitListener(id = LISTENER_ID, queues = "${app.rabbitmq.queue-in}", ackMode = "AUTO",
+            autoStartup = "#{'${app.rabbitmq.batch.enabled:false}' != 'true' and '${app.lanes.enabled:false}' != 'true'}")
     public void consume(Message message) throws JsonProcessingException {
         log.debug("=******************************=");
         log.debug("=** Message reçu de RabbitMQ **=");
         log.debug("=******************************=");
+        inFlightMessages.received(message);
+        process(message);
+    }
+
+    /**
+     * Traitement complet d'un message, jusqu'a sa reponse OK ou KO.
+     */
+    void process(Message message) throws JsonProcessingException {
         try {
             route(message);
             log.debug("Traitement OK");
@@ -80,11 +122,55 @@ public class MainRouter {
         }
     }
 
-    private void route(Message message) throws UnsupportedMediaTypeException, ValidationException, NotFoundException {
-        String contentType =  message.getMessageProperties().getContentType();
-        if(contentType == null) { // Workaround temporaire pour GSDU
-            contentType = message.getMessageProperties().getHeader(CONTENT_TYPE);
+    private void route(Message message) throws UnsupportedMediaTypeException, ValidationException, NotFoundException, SequenceException {
+        admit(message);
+        if (isSequence(message)) {
+            handleSequence(message);
+            lap("sequence");
+            return;
         }
+        ParsedMessage parsedMessage = parse(message);
+        dispatch(parsedMessage.getContentType(), parsedMessage.getBody());
+        lap("dispatch");
+    }
+
+    /**
+     * Controles prealables a toute deserialisation : type, taille et structure du message.
+     * Premiere etape du traitement de tout message, c'est aussi le debut de son suivi (audit, spans, evenements JFR).
+     */
+    void admit(Message message) throws UnsupportedMediaTypeException, IllegalMessageException {
+        messageTracer.begin(message);
+        messageAudit.begin(message);
+        flightEvents.messageStarted(message);
+        messageGate.check(message, contentTypeOf(message), MessageFormat.fromContentType(rawContentTypeOf(message)));
+        lap("admission");
+    }
+
+    /**
+     * Fin d'une etape du traitement du message courant, pour l'audit, les spans et les evenements JFR.
+     */
+    private void lap(String stage) {
+        messageAudit.lap(stage);
+        messageTracer.stage(stage);
+        flightEvents.stageCompleted(stage);
+    }
+
+    /**
+     * Un message RabbitMQ deserialise et valide.
+     */
+    @Getter
+    @RequiredArgsConstructor
+    static class ParsedMessage {
+        private final Message message;
+        private final String contentType;
+        private final Object body;
+    }
+
+    /**
+     * Deserialisation et validation metier d'un message RabbitMQ.
+     */
+    ParsedMessage parse(Message message) throws UnsupportedMediaTypeException, ValidationException {
+        String contentType = contentTypeOf(message);
         if(contentType == null || contentType.isEmpty()) {
             log.error("Content-Type vide ou null !");
             throw new UnsupportedMediaTypeException("L'en-tête \"" + CONTENT_TYPE + "\" manque dans le message ou est vide.");
@@ -97,28 +183,204 @@ public class MainRouter {
         }
         log.debug("ContentType={}",contentType);
         Object object;
-        try {
-            object = mapper.readValue(message.getBody(), typeReference);
+        try (InputStream body = bodyOf(message)) {
+            object = mapperFor(message).readValue(body, typeReference);
+        } catch (DecodedSizeExceededException e) {
+            log.warn("Message [{}] refuse : {}", contentType, e.getMessage());
+            throw new IllegalMessageException(e.getMessage() + " pour le type \"" + contentType + "\"");
         } catch (IOException e) {
             log.warn("Erreur lors de la deserialisation en un {} : {}", typeReference.getType().getTypeName(), e.getMessage());
             throw new IllegalMessageException("Erreur lors de la deserialisation du message JSON : " + e.getMessage());
         }
+        lap("deserialize");
         log.debug("MessageType={}", typeReference.getType().getTypeName());
-        log.debug("MessageBody={}", object);
+        if (messageAudit.isPayloadSampled(message)) {
+            log.info("MessageBody={}", logRenderer.body(object));
+        }
+
+        validate(object);
+        messageAudit.identify(object);
+        heavyHitters.messageParsed(object, message.getBody().length);
+        lap("validate");
+        log.debug("RabbitMQ -> Received: [{}] - CorrelationID: [{}]", contentType, message.getMessageProperties().getCorrelationId());
+        if(object instanceof MessageENU) {
+            log.debug(" - prestation [{}], usager [{}]", ((MessageENU) object).getIdPrestation(), ((MessageENU) object).getIdUsager());
+        }
+        return new ParsedMessage(message, contentType, object);
+    }
+
+    /**
+     * Corps du message, decompresse au fil de la lecture si sa propriete "content_encoding" l'indique.
+     * Le contenu decompresse est soumis a la taille maximale du type du message : sa lecture lance une
+     * {@link DecodedSizeExceededException} au-dela.
+     */
+    private InputStream bodyOf(Message message) throws IOException, IllegalMessageException {
+        try {
+            return ContentEncoding.decode(message.getBody(), message.getMessageProperties().getContentEncoding(),
+                    messageGate.maxSizeOf(contentTypeOf(message)));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalMessageException(e.getMessage());
+        }
+    }
 
-        // validation metier du message
-        Set<ConstraintViolation<Object>> errors = validator.validate(object);
+    /**
+     * Type du message, tel qu'annonce dans ses proprietes.
+     */
+    private static String rawContentTypeOf(Message message) {
+        String contentType =  message.getMessageProperties().getContentType();
+        if(contentType == null) { // Workaround temporaire pour GSDU
+            contentType = message.getMessageProperties().getHeader(CONTENT_TYPE);
+        }
+        return contentType;
+    }
+
+    /**
+     * Type du message, ramene au type JSON equivalent pour un message encode en Smile ou en CBOR
+     * (par ex. "application/new-demarche-v1.0+smile" -> "application/new-demarche-v1.0+json").
+     */
+    static String contentTypeOf(Message message) {
+        String contentType = rawContentTypeOf(message);
+        return MessageFormat.fromContentType(contentType).toJsonContentType(contentType);
+    }
+
+    private ObjectMapper mapperFor(Message message) {
+        return messageMappers.forFormat(MessageFormat.fromContentType(rawContentTypeOf(message)));
+    }
+
+    /**
+     * Classes des messages pris en charge, dont la validation est compilee au demarrage.
+     */
+    private static List<Class<?>> messageClasses() {
+        List<Class<?>> classes = new ArrayList<>();
+        typeReferenceMap.values().forEach(typeReference ->
+                classes.add(TypeFactory.defaultInstance().constructType(typeReference).getRawClass()));
+        return classes;
+    }
+
+    /**
+     * Validation metier d'un message deserialise.
+     */
+    private void validate(Object object) throws ValidationException {
+        List<Violation> errors = validator.validate(object);
         if(!errors.isEmpty()) {
             // Gestion des erreurs de validation
             ArrayList<String> texts = new ArrayList<>();
             errors.forEach(error -> texts.add(error.getPropertyPath() + ": " + error.getMessage() + ". Valeur passée: (" + error.getInvalidValue() + ")" ));
             throw new ValidationException(texts.toString());
         }
-        log.info("RabbitMQ -> Received: [{}] - CorrelationID: [{}]", contentType, message.getMessageProperties().getCorrelationId());
-        if(object instanceof MessageENU) {
-            log.info(" - prestation [{}], usager [{}]", ((MessageENU) object).getIdPrestation(), ((MessageENU) object).getIdUsager());
+    }
+
+    boolean isSequence(Message message) {
+        return SEQUENCE_MESSAGES.equals(contentTypeOf(message));
+    }
+
+    /**
+     * Cle "idUsager|idDemarcheSiMetier" de la demarche concernee par le message, lue sans deserialiser le message :
+     * seuls les champs de premier niveau sont parcourus, jusqu'a trouver les deux identifiants.
+     * Rend null si le message ne porte pas sur une demarche (suggestion, courrier hors demarche, sequence...) ou
+     * s'il est illisible, auquel cas son traitement le refusera.
+     */
+    String demarcheKeyOf(Message message) {
+        if (isSequence(message)) {
+            return null;
         }
+        String idUsager = null;
+        String idDemarcheSiMetier = null;
+        try (InputStream body = bodyOf(message);
+             JsonParser parser = mapperFor(message).getFactory().createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME && (idUsager == null || idDemarcheSiMetier == null)) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("idUsager".equals(field) && value == JsonToken.VALUE_STRING) {
+                    idUsager = parser.getText();
+                } else if ("idDemarcheSiMetier".equals(field) && value == JsonToken.VALUE_STRING) {
+                    idDemarcheSiMetier = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException | IllegalMessageException e) {
+            return null;
+        }
+        return idUsager == null || idDemarcheSiMetier == null ? null : idUsager + "|" + idDemarcheSiMetier;
+    }
 
+    /**
+     * Traitement d'une sequence de messages (SEQUENCE_MESSAGES) : un tableau JSON dont chaque element est de la forme
+     * <code>{"contentType": "...", "message": {...}}</code>. Les messages sont traites un a un, dans l'ordre du tableau.
+     * <p>
+     * Le tableau est lu au fil de l'eau : un seul element a la fois est deserialise puis traite.
+     * Chaque element passe les memes controles de type et de taille qu'un message isole.
+     * Les lectures de demarches et les jetons CSRF FormServices sont partages par tous les messages de la sequence.
+     * L'echec d'un message n'interrompt pas la sequence ; un element illisible l'interrompt, les messages deja traites
+     * restant appliques. Dans les deux cas une SequenceException donnant le resultat de chaque message lu est lancee,
+     * pour que le SI metier ne renvoie que les messages en echec.
+     */
+    void handleSequence(Message message) throws IllegalMessageException, SequenceException {
+        List<SequenceItemResult> results = new ArrayList<>();
+        boolean failed = false;
+        ObjectMapper sequenceMapper = mapperFor(message);
+        int index = 0;
+        try (InputStream body = bodyOf(message);
+             JsonParser parser = sequenceMapper.getFactory().createParser(body);
+             FormServicesApi.SharedLookups ignored = formServicesApi.shareLookups()) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IllegalMessageException("Une sequence de messages doit etre un tableau JSON");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                long start = parser.getTokenLocation().getByteOffset();
+                JsonNode item = sequenceMapper.readTree(parser);
+                long size = parser.getCurrentLocation().getByteOffset() - start;
+                try {
+                    handleSequenceItem(item, size);
+                    results.add(new SequenceItemResult(index, ResponseType.OK, null));
+                } catch (Exception e) {
+                    failed = true;
+                    results.add(new SequenceItemResult(index, ResponseType.KO, e.getMessage()));
+                }
+                index++;
+            }
+            if (parser.currentToken() != JsonToken.END_ARRAY) {
+                throw new IllegalMessageException("Element inattendu dans la sequence de messages, position " + index);
+            }
+        } catch (IOException | IllegalMessageException e) {
+            if (results.isEmpty()) {
+                throw e instanceof IllegalMessageException ? (IllegalMessageException) e
+                        : new IllegalMessageException("Erreur lors de la lecture de la sequence de messages : " + e.getMessage());
+            }
+            // les messages deja traites restent appliques : la reponse doit le dire
+            results.add(new SequenceItemResult(index, ResponseType.KO,
+                    "Sequence illisible a partir de cette position, messages suivants non traites : " + e.getMessage()));
+            failed = true;
+        }
+        log.info("Sequence de {} message(s) traitee - CorrelationID: [{}] : {}", results.size(), message.getMessageProperties().getCorrelationId(), results);
+        if (failed) {
+            long koCount = results.stream().filter(result -> result.getResultat() == ResponseType.KO).count();
+            throw new SequenceException("Echec de " + koCount + " message(s) de la sequence, voir le resultat de chaque message", results);
+        }
+    }
+
+    private void handleSequenceItem(JsonNode item, long size) throws UnsupportedMediaTypeException, ValidationException, NotFoundException, IOException {
+        String itemContentType = item.path("contentType").asText(null);
+        JsonNode itemBody = item.get("message");
+        if (itemContentType == null || itemBody == null) {
+            throw new IllegalMessageException("Chaque element de la sequence doit avoir un champ \"contentType\" et un champ \"message\"");
+        }
+        messageGate.checkSequenceItem(itemContentType, size);
+        TypeReference<?> typeReference = typeReferenceMap.get(itemContentType);
+        Object object = mapper.readerFor(typeReference).readValue(itemBody);
+        validate(object);
+        heavyHitters.messageParsed(object, size);
+        dispatch(itemContentType, object);
+    }
+
+    /**
+     * Transmission d'un message deserialise au service qui le traite.
+     */
+    void dispatch(String contentType, Object object) throws NotFoundException, IllegalMessageException {
         switch (contentType) {
             case BROUILLON_ABANDON:
                 log.warn(BROUILLON_ABANDON + ": message non implémenté");
@@ -174,8 +436,7 @@ public class MainRouter {
                 courrierService.handleDocument((DocumentUsagerBinaire) object);
                 break;
             case SEQUENCE_MESSAGES:
-                log.warn(SEQUENCE_MESSAGES + ": message non implémenté");
-                break;
+                throw new IllegalMessageException("Une sequence de messages ne peut pas contenir de sequence de messages");
             case SUGGESTION_ABANDON:
                 log.warn(SUGGESTION_ABANDON + ": message non implémenté");
                 break;
@@ -18,6 +18,7 @@
  */
 package ch.ge.ael.enu.mediation.configuration;
 
+import ch.ge.ael.enu.mediation.service.technical.FormServicesCallFilter;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
@@ -34,6 +35,7 @@ import org.springframework.util.ResourceUtils;
 import org.springframework.web.reactive.function.client.ExchangeStrategies;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
 
 import javax.net.ssl.TrustManagerFactory;
 import java.io.FileInputStream;
@@ -55,8 +57,16 @@ public class FormServicesConfiguration {
     @Value("${app.formservices.url}")
     private String formServicesUrl;
 
+    /**
+     * Taille du pool de connexions HTTP a FormServices. Au-dela, un appel attend qu'une connexion se libere.
+     */
+    @Value("${app.formservices.max-connections:50}")
+    private int maxConnections;
+
     private final ObjectMapper objectMapper;
 
+    private final FormServicesCallFilter formServicesCallFilter;
+
     @Bean
     public WebClient formServicesWebClient() throws IOException, KeyStoreException, CertificateException, NoSuchAlgorithmException {
         final KeyStore trustStore;
@@ -70,7 +80,12 @@ public class FormServicesConfiguration {
                 .trustManager(trustManagerFactory)
                 .build();
 
-        HttpClient httpClient= HttpClient.create().secure(t -> t.sslContext(sslContext));
+        // pool nomme, dont l'occupation est publiee dans les metriques reactor.netty.connection.provider.*
+        ConnectionProvider connectionProvider = ConnectionProvider.builder("formservices")
+                .maxConnections(maxConnections)
+                .metrics(true)
+                .build();
+        HttpClient httpClient= HttpClient.create(connectionProvider).secure(t -> t.sslContext(sslContext));
 
         ExchangeStrategies strategies = ExchangeStrategies
                 .builder()
@@ -84,6 +99,7 @@ public class FormServicesConfiguration {
                 .baseUrl(formServicesUrl)
                 .defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
                 .exchangeStrategies(strategies)
+                .filter(formServicesCallFilter)
                 .build();
     }
 
@@ -20,13 +20,14 @@ package ch.ge.ael.enu.mediation.configuration;
 
 import ch.ge.ael.enu.mediation.configuration.serialization.JwayLocalDateDeserializer;
 import ch.ge.ael.enu.mediation.configuration.serialization.JwayLocalDateTimeDeserializer;
-import ch.ge.ael.enu.mediation.configuration.serialization.MillisOrLocalDateTimeDeserializer;
+import ch.ge.ael.enu.mediation.configuration.serialization.MessageMappers;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.util.StdDateFormat;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -45,9 +46,19 @@ public class JacksonConfiguration {
      */
     @Bean(name = "json-jackson")
     public ObjectMapper jackson() {
-        ObjectMapper jackson = new ObjectMapper();
+        return configure(new ObjectMapper());
+    }
+
+    /**
+     * Mappers for the binary message formats (Smile, CBOR), configured as the JSON one.
+     */
+    @Bean
+    public MessageMappers messageMappers(@Qualifier("json-jackson") ObjectMapper jackson) {
+        return new MessageMappers(jackson, JacksonConfiguration::configure);
+    }
+
+    static ObjectMapper configure(ObjectMapper jackson) {
         JavaTimeModule javaTimeModule = new JavaTimeModule();
-        javaTimeModule.addDeserializer(LocalDateTime.class, new MillisOrLocalDateTimeDeserializer());
         javaTimeModule.addDeserializer(LocalDateTime.class, new JwayLocalDateTimeDeserializer());
         javaTimeModule.addDeserializer(LocalDate.class, new JwayLocalDateDeserializer());
         jackson.registerModule(javaTimeModule);
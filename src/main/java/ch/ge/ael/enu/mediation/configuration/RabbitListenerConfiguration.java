@@ -0,0 +1,85 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.configuration;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Configuration des consommateurs RabbitMQ, en complement de celle fournie par Spring Boot.
+ */
+@Configuration
+@Slf4j
+public class RabbitListenerConfiguration {
+
+    @Value("${app.rabbitmq.batch.size:50}")
+    private Integer batchSize;
+
+    @Value("${app.rabbitmq.batch.timeout:200}")
+    private Long batchTimeout;
+
+    @Value("${app.lanes.prefetch:100}")
+    private Integer lanesPrefetch;
+
+    /**
+     * Consommation par lots, utilisee par le BatchRouter : un lot est livre des que batchSize messages sont
+     * arrives ou que batchTimeout millisecondes se sont ecoulees sans nouveau message.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "app.rabbitmq.batch.enabled", havingValue = "true")
+    public SimpleRabbitListenerContainerFactory batchListenerContainerFactory(
+            ConnectionFactory connectionFactory,
+            SimpleRabbitListenerContainerFactoryConfigurer configurer) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(batchTimeout);
+        // sans prefetch suffisant, un lot ne peut jamais etre complet
+        factory.setPrefetchCount(batchSize);
+        log.info("RabbitMQ : consommation par lots de {} messages au plus, attente maximale {} ms", batchSize, batchTimeout);
+        return factory;
+    }
+
+    /**
+     * Consommation pour les files de traitement, utilisee par le LaneRouter : un message n'est acquitte qu'une fois
+     * traite, par le thread de sa file ; en cas d'arret brutal, les messages non traites sont redelivres.
+     * Le prefetch borne le nombre total de messages recus ; chaque file a en plus son propre budget.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "app.lanes.enabled", havingValue = "true")
+    public SimpleRabbitListenerContainerFactory laneListenerContainerFactory(
+            ConnectionFactory connectionFactory,
+            SimpleRabbitListenerContainerFactoryConfigurer configurer) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        factory.setPrefetchCount(lanesPrefetch);
+        log.info("RabbitMQ : files de traitement, {} messages non acquittes au plus", lanesPrefetch);
+        return factory;
+    }
+}
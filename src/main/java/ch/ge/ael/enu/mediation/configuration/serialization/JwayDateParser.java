@@ -0,0 +1,246 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.configuration.serialization;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+
+import static java.time.format.DateTimeFormatter.ISO_LOCAL_DATE;
+import static java.time.format.DateTimeFormatter.ISO_LOCAL_TIME;
+
+/**
+ * Analyse des dates recues de FormServices, comme "2020-11-25T15:42:05.445+0000" ou
+ * "2020-11-25T15:42:05.445+00:00".
+ * Les formes usuelles (date ISO, date-heure ISO suivie ou non de "Z", "+HH", "+HHMM" ou "+HH:MM") sont lues
+ * directement dans le tampon de caracteres du parseur JSON, sans passer par un DateTimeFormatter.
+ * Toute autre forme, ainsi que toute valeur hors limites, est confiee aux formats complets
+ * {@link #DATE_TIME_FORMAT} et {@link #DATE_FORMAT}, qui produisent aussi les messages d'erreur.
+ * Comme avec les formats complets, le decalage horaire est ignore : "2020-11-25T15:42:05+02:00" donne
+ * 2020-11-25T15:42:05.
+ */
+public final class JwayDateParser {
+
+    public static final DateTimeFormatter DATE_TIME_FORMAT = new DateTimeFormatterBuilder()
+            // date/time
+            .append(DateTimeFormatter.ISO_LOCAL_DATE_TIME)
+            // offset (hh:mm - "+00:00" when it's zero)
+            .optionalStart().appendOffset("+HH:MM", "+00:00").optionalEnd()
+            // offset (hhmm - "+0000" when it's zero)
+            .optionalStart().appendOffset("+HH:MM", "+0000").optionalEnd()
+            // offset (hh - "+00" when it's zero)
+            .optionalStart().appendOffset("+HH", "+00").optionalEnd()
+            // offset (pattern "X" uses "Z" for zero offset)
+            .optionalStart().appendPattern("X").optionalEnd()
+            // create formatter
+            .toFormatter();
+
+    private static final DateTimeFormatter ISO_LOCAL_DATE_OPTIONAL_TIME = new DateTimeFormatterBuilder()
+            .parseCaseInsensitive()
+            .append(ISO_LOCAL_DATE)
+            .optionalStart()
+            .appendLiteral('T')
+            .append(ISO_LOCAL_TIME)
+            .optionalEnd()
+            .toFormatter();
+
+    public static final DateTimeFormatter DATE_FORMAT = new DateTimeFormatterBuilder()
+            // date/time
+            .append(ISO_LOCAL_DATE_OPTIONAL_TIME)
+            // offset (hh:mm - "+00:00" when it's zero)
+            .optionalStart().appendOffset("+HH:MM", "+00:00").optionalEnd()
+            // offset (hh:mm - "+0000" when it's zero)
+            .optionalStart().appendOffset("+HH:MM", "+0000").optionalEnd()
+            // offset (hh - "+00" when it's zero)
+            .optionalStart().appendOffset("+HH", "+00").optionalEnd()
+            // offset (pattern "X" uses "Z" for zero offset)
+            .optionalStart().appendPattern("X").optionalEnd()
+            // create formatter
+            .toFormatter();
+
+    /**
+     * "yyyy-MM-dd".
+     */
+    private static final int DATE_LENGTH = 10;
+
+    /**
+     * "yyyy-MM-ddTHH:mm".
+     */
+    private static final int MIN_DATE_TIME_LENGTH = 16;
+
+    private static final int MAX_FRACTION_DIGITS = 9;
+
+    private static final int[] NANO_FACTORS = {
+            1_000_000_000, 100_000_000, 10_000_000, 1_000_000, 100_000, 10_000, 1_000, 100, 10, 1
+    };
+
+    private static final int MAX_OFFSET_HOURS = 18;
+
+    private JwayDateParser() {
+    }
+
+    public static LocalDateTime parseLocalDateTime(String text) {
+        return parseLocalDateTime(text.toCharArray(), 0, text.length());
+    }
+
+    public static LocalDateTime parseLocalDateTime(char[] buffer, int offset, int length) {
+        LocalDateTime dateTime = readDateTime(buffer, offset, length);
+        if (dateTime == null) {
+            dateTime = LocalDateTime.parse(new String(buffer, offset, length), DATE_TIME_FORMAT);
+        }
+        return dateTime;
+    }
+
+    public static LocalDate parseLocalDate(String text) {
+        return parseLocalDate(text.toCharArray(), 0, text.length());
+    }
+
+    public static LocalDate parseLocalDate(char[] buffer, int offset, int length) {
+        LocalDate date;
+        if (length == DATE_LENGTH) {
+            date = readDate(buffer, offset);
+        } else {
+            LocalDateTime dateTime = readDateTime(buffer, offset, length);
+            date = dateTime == null ? null : dateTime.toLocalDate();
+        }
+        if (date == null) {
+            date = LocalDate.parse(new String(buffer, offset, length), DATE_FORMAT);
+        }
+        return date;
+    }
+
+    /**
+     * @return null si le texte n'a pas une forme usuelle ou si une valeur est hors limites
+     */
+    private static LocalDate readDate(char[] buffer, int offset) {
+        int year = readDigits(buffer, offset, 4);
+        int month = readDigits(buffer, offset + 5, 2);
+        int day = readDigits(buffer, offset + 8, 2);
+        if (year < 0 || month < 0 || day < 0 || buffer[offset + 4] != '-' || buffer[offset + 7] != '-') {
+            return null;
+        }
+        try {
+            return LocalDate.of(year, month, day);
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return null si le texte n'a pas une forme usuelle ou si une valeur est hors limites
+     */
+    private static LocalDateTime readDateTime(char[] buffer, int offset, int length) {
+        if (length < MIN_DATE_TIME_LENGTH) {
+            return null;
+        }
+        int end = offset + length;
+
+        // date et heure
+        int year = readDigits(buffer, offset, 4);
+        int month = readDigits(buffer, offset + 5, 2);
+        int day = readDigits(buffer, offset + 8, 2);
+        int hour = readDigits(buffer, offset + 11, 2);
+        int minute = readDigits(buffer, offset + 14, 2);
+        char separator = buffer[offset + 10];
+        if (year < 0 || month < 0 || day < 0 || hour < 0 || minute < 0
+                || buffer[offset + 4] != '-' || buffer[offset + 7] != '-'
+                || (separator != 'T' && separator != 't') || buffer[offset + 13] != ':') {
+            return null;
+        }
+
+        // secondes et fraction de seconde
+        int second = 0;
+        int nano = 0;
+        int pos = offset + MIN_DATE_TIME_LENGTH;
+        if (pos < end && buffer[pos] == ':') {
+            if (end - pos < 3 || (second = readDigits(buffer, pos + 1, 2)) < 0) {
+                return null;
+            }
+            pos += 3;
+            if (pos < end && buffer[pos] == '.') {
+                int start = ++pos;
+                while (pos < end && pos - start < MAX_FRACTION_DIGITS && isDigit(buffer[pos])) {
+                    nano = nano * 10 + (buffer[pos++] - '0');
+                }
+                if (pos == start) {
+                    return null;
+                }
+                nano *= NANO_FACTORS[pos - start];
+            }
+        }
+
+        if (!isOffset(buffer, pos, end)) {
+            return null;
+        }
+        try {
+            return LocalDateTime.of(year, month, day, hour, minute, second, nano);
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Vrai si le texte de pos a end est vide, "Z", "+HH", "+HHMM" ou "+HH:MM" (ou le meme avec "-").
+     */
+    private static boolean isOffset(char[] buffer, int pos, int end) {
+        int length = end - pos;
+        if (length == 0) {
+            return true;
+        } else if (length == 1) {
+            return buffer[pos] == 'Z';
+        } else if (buffer[pos] != '+' && buffer[pos] != '-') {
+            return false;
+        }
+
+        int hours = readDigits(buffer, pos + 1, 2);
+        int minutes;
+        if (length == 3) {
+            minutes = 0;
+        } else if (length == 5) {
+            minutes = readDigits(buffer, pos + 3, 2);
+        } else if (length == 6 && buffer[pos + 3] == ':') {
+            minutes = readDigits(buffer, pos + 4, 2);
+        } else {
+            return false;
+        }
+        return hours >= 0 && minutes >= 0 && minutes <= 59
+                && (hours < MAX_OFFSET_HOURS || (hours == MAX_OFFSET_HOURS && minutes == 0));
+    }
+
+    /**
+     * @return -1 si l'un des caracteres n'est pas un chiffre
+     */
+    private static int readDigits(char[] buffer, int pos, int count) {
+        int value = 0;
+        for (int i = pos; i < pos + count; i++) {
+            if (!isDigit(buffer[i])) {
+                return -1;
+            }
+            value = value * 10 + (buffer[i] - '0');
+        }
+        return value;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+}
@@ -19,55 +19,33 @@
 package ch.ge.ael.enu.mediation.configuration.serialization;
 
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.datatype.jsr310.deser.LocalDateDeserializer;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeFormatterBuilder;
-
-import static java.time.format.DateTimeFormatter.ISO_LOCAL_DATE;
-import static java.time.format.DateTimeFormatter.ISO_LOCAL_TIME;
 
 /**
  * Transforme en LocalDate une date reçue de FormServices, comme "2020-11-25T15:42:05.445+0000" ou
  * "2020-11-25T15:42:05.445+00:00".
+ * Voir {@link JwayDateParser}.
  */
 @Slf4j
 public class JwayLocalDateDeserializer extends LocalDateDeserializer {
 
-    private static final DateTimeFormatter ISO_LOCAL_DATE_TIME = new DateTimeFormatterBuilder()
-                .parseCaseInsensitive()
-                .append(ISO_LOCAL_DATE)
-            .optionalStart()
-                .appendLiteral('T')
-                .append(ISO_LOCAL_TIME)
-            .optionalEnd()
-                .toFormatter();
-
-    private static final DateTimeFormatter FORMAT = new DateTimeFormatterBuilder()
-            // date/time
-            .append(ISO_LOCAL_DATE_TIME)
-            // offset (hh:mm - "+00:00" when it's zero)
-            .optionalStart().appendOffset("+HH:MM", "+00:00").optionalEnd()
-            // offset (hh:mm - "+0000" when it's zero)
-            .optionalStart().appendOffset("+HH:MM", "+0000").optionalEnd()
-            // offset (hh - "+00" when it's zero)
-            .optionalStart().appendOffset("+HH", "+00").optionalEnd()
-            // offset (pattern "X" uses "Z" for zero offset)
-            .optionalStart().appendPattern("X").optionalEnd()
-            // create formatter
-            .toFormatter();
-
     public JwayLocalDateDeserializer() {
-        super(FORMAT);
+        super(JwayDateParser.DATE_FORMAT);
     }
 
     @Override
     public LocalDate deserialize(JsonParser parser, DeserializationContext ctx) throws IOException {
-        return LocalDate.parse(parser.getText(), FORMAT);
+        if (parser.hasToken(JsonToken.VALUE_STRING)) {
+            return JwayDateParser.parseLocalDate(
+                    parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+        }
+        return LocalDate.parse(parser.getText(), JwayDateParser.DATE_FORMAT);
     }
 
 }
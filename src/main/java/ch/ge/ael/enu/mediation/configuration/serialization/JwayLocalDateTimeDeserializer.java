@@ -19,43 +19,38 @@
 package ch.ge.ael.enu.mediation.configuration.serialization;
 
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.datatype.jsr310.deser.LocalDateTimeDeserializer;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeFormatterBuilder;
+import java.time.ZoneOffset;
 
 /**
  * Transforme en LocalDateTime une date reçue de FormServices, comme "2020-11-25T15:42:05.445+0000" ou
- * "2020-11-25T15:42:05.445+00:00".
+ * "2020-11-25T15:42:05.445+00:00", ou un timestamp "raw" en millisecondes (UTC).
+ * Voir {@link JwayDateParser}.
  */
 @Slf4j
 public class JwayLocalDateTimeDeserializer extends LocalDateTimeDeserializer {
 
-    private static final DateTimeFormatter FORMAT = new DateTimeFormatterBuilder()
-            // date/time
-            .append(DateTimeFormatter.ISO_LOCAL_DATE_TIME)
-            // offset (hh:mm - "+00:00" when it's zero)
-            .optionalStart().appendOffset("+HH:MM", "+00:00").optionalEnd()
-            // offset (hhmm - "+0000" when it's zero)
-            .optionalStart().appendOffset("+HH:MM", "+0000").optionalEnd()
-            // offset (hh - "+00" when it's zero)
-            .optionalStart().appendOffset("+HH", "+00").optionalEnd()
-            // offset (pattern "X" uses "Z" for zero offset)
-            .optionalStart().appendPattern("X").optionalEnd()
-            // create formatter
-            .toFormatter();
-
     public JwayLocalDateTimeDeserializer() {
-        super(FORMAT);
+        super(JwayDateParser.DATE_TIME_FORMAT);
     }
 
     @Override
     public LocalDateTime deserialize(JsonParser parser, DeserializationContext ctx) throws IOException {
-        return LocalDateTime.parse(parser.getText(), FORMAT);
+        if (parser.hasToken(JsonToken.VALUE_STRING)) {
+            return JwayDateParser.parseLocalDateTime(
+                    parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+        } else if (parser.hasToken(JsonToken.VALUE_NUMBER_INT)) {
+            Instant instant = Instant.ofEpochMilli(parser.getValueAsLong());
+            return LocalDateTime.ofInstant(instant, ZoneOffset.UTC);
+        }
+        return super.deserialize(parser, ctx);
     }
 
 }
@@ -0,0 +1,65 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.configuration.serialization;
+
+/**
+ * Format d'encodage d'un message, indique par le suffixe de son type : par exemple
+ * "application/new-demarche-v1.0+smile" est un message "application/new-demarche-v1.0+json" encode en Smile.
+ * Les formats binaires (Smile, CBOR) transportent les champs binaires tels quels, sans base64.
+ */
+public enum MessageFormat {
+
+    JSON("+json"),
+
+    SMILE("+smile"),
+
+    CBOR("+cbor");
+
+    private final String suffix;
+
+    MessageFormat(String suffix) {
+        this.suffix = suffix;
+    }
+
+    /**
+     * @return JSON si le type n'a pas de suffixe de format binaire
+     */
+    public static MessageFormat fromContentType(String contentType) {
+        if (contentType != null) {
+            if (contentType.endsWith(SMILE.suffix)) {
+                return SMILE;
+            } else if (contentType.endsWith(CBOR.suffix)) {
+                return CBOR;
+            }
+        }
+        return JSON;
+    }
+
+    /**
+     * Le type du message JSON equivalent, par exemple "application/new-demarche-v1.0+smile" ->
+     * "application/new-demarche-v1.0+json".
+     */
+    public String toJsonContentType(String contentType) {
+        if (this == JSON) {
+            return contentType;
+        }
+        return contentType.substring(0, contentType.length() - suffix.length()) + JSON.suffix;
+    }
+
+}
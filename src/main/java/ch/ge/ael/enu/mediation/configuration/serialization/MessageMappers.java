@@ -0,0 +1,51 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.configuration.serialization;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * Un ObjectMapper par format de message, tous configures comme l'ObjectMapper JSON.
+ * Les ObjectMapper Smile et CBOR ne sont volontairement pas des beans Spring, pour que l'injection
+ * d'un ObjectMapper reste non ambigue.
+ */
+public class MessageMappers {
+
+    private final Map<MessageFormat, ObjectMapper> mappers = new EnumMap<>(MessageFormat.class);
+
+    public MessageMappers(ObjectMapper json, UnaryOperator<ObjectMapper> configurer) {
+        mappers.put(MessageFormat.JSON, json);
+        // champs binaires ecrits tels quels, et non en 7 bits : la lecture accepte les deux
+        SmileFactory smileFactory = new SmileFactory().disable(SmileGenerator.Feature.ENCODE_BINARY_AS_7BIT);
+        mappers.put(MessageFormat.SMILE, configurer.apply(new ObjectMapper(smileFactory)));
+        mappers.put(MessageFormat.CBOR, configurer.apply(new ObjectMapper(new CBORFactory())));
+    }
+
+    public ObjectMapper forFormat(MessageFormat format) {
+        return mappers.get(format);
+    }
+
+}
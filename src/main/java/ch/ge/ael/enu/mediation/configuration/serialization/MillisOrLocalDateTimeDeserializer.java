@@ -1,53 +0,0 @@
-/*
- * Espace numerique de l'usager - enu-mediation
- *
- * Copyright (C) 2021 Republique et canton de Geneve
- *
- * This program is free software: you can redistribute it and/or modify
- * it under the terms of the GNU Affero General Public License as published by
- * the Free Software Foundation, either version 3 of the License, or
- * (at your option) any later version.
- *
- * This program is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- *
- * You should have received a copy of the GNU Affero General Public License
- * along with this program.  If not, see <http://www.gnu.org/licenses/>.
- */
-package ch.ge.ael.enu.mediation.configuration.serialization;
-
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonToken;
-import com.fasterxml.jackson.databind.DeserializationContext;
-import com.fasterxml.jackson.datatype.jsr310.deser.LocalDateTimeDeserializer;
-
-import java.io.IOException;
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
-
-/**
- * Deserialisation automatique des timestamps "raw" vers java.time.LocalDateTime
- */
-public class MillisOrLocalDateTimeDeserializer extends LocalDateTimeDeserializer {
-
-    public MillisOrLocalDateTimeDeserializer() {
-        super(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
-    }
-
-    @Override
-    public LocalDateTime deserialize(JsonParser parser, DeserializationContext context) throws IOException {
-        if (parser.hasToken(JsonToken.VALUE_NUMBER_INT)) {
-            long value = parser.getValueAsLong();
-            Instant instant = Instant.ofEpochMilli(value);
-
-            return LocalDateTime.ofInstant(instant, ZoneOffset.UTC);
-        }
-
-        return super.deserialize(parser, context);
-    }
-
-}
\ No newline at end of file
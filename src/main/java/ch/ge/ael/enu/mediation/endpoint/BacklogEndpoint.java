@@ -0,0 +1,172 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.endpoint;
+
+import ch.ge.ael.enu.mediation.service.technical.AdaptiveConcurrencyLimiter;
+import ch.ge.ael.enu.mediation.service.technical.FormServicesCallFilter;
+import ch.ge.ael.enu.mediation.service.technical.InFlightMessages;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.QueueInformation;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Endpoint actuator /actuator/backlog : la mediation suit-elle le rythme ?
+ * <ul>
+ *     <li>queue : messages en attente dans la queue d'entree et nombre de consommateurs, toutes instances confondues
+ *     (declaration passive de la queue) ;</li>
+ *     <li>inFlight : messages recus par cette instance et pas encore repondus ;</li>
+ *     <li>formServices : occupation du pool de connexions HTTP a FormServices ;</li>
+ *     <li>caches : taux de succes des caches de lectures FormServices ;</li>
+ *     <li>concurrency : etat de la concurrence adaptative, qui reduit le debit quand FormServices se degrade.</li>
+ * </ul>
+ * "queue.backlogPerConsumer" (messages en attente par consommateur) peut servir de signal pour ajuster le nombre d'instances.
+ */
+@Component
+@Endpoint(id = "backlog")
+public class BacklogEndpoint {
+
+    private final RabbitAdmin rabbitAdmin;
+    private final String queueName;
+    private final InFlightMessages inFlightMessages;
+    private final FormServicesCallFilter formServicesCallFilter;
+    private final int maxConnections;
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+    private final MeterRegistry meterRegistry;
+
+    public BacklogEndpoint(ConnectionFactory connectionFactory,
+                           @Value("${app.rabbitmq.queue-in}") String queueName,
+                           InFlightMessages inFlightMessages,
+                           FormServicesCallFilter formServicesCallFilter,
+                           @Value("${app.formservices.max-connections:50}") int maxConnections,
+                           AdaptiveConcurrencyLimiter concurrencyLimiter,
+                           MeterRegistry meterRegistry) {
+        this.rabbitAdmin = new RabbitAdmin(connectionFactory);
+        this.queueName = queueName;
+        this.inFlightMessages = inFlightMessages;
+        this.formServicesCallFilter = formServicesCallFilter;
+        this.maxConnections = maxConnections;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @ReadOperation
+    public Map<String, Object> backlog() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("queue", queue());
+        result.put("inFlight", inFlight());
+        result.put("formServices", formServices());
+        result.put("caches", caches());
+        result.put("concurrency", concurrency());
+        return result;
+    }
+
+    private Map<String, Object> queue() {
+        Map<String, Object> queue = new LinkedHashMap<>();
+        queue.put("name", queueName);
+        try {
+            QueueInformation information = rabbitAdmin.getQueueInfo(queueName);
+            if (information == null) {
+                queue.put("error", "queue introuvable");
+            } else {
+                int messages = information.getMessageCount();
+                int consumers = information.getConsumerCount();
+                queue.put("messages", messages);
+                queue.put("consumers", consumers);
+                queue.put("backlogPerConsumer", consumers > 0 ? (double) messages / consumers : messages);
+            }
+        } catch (AmqpException e) {
+            queue.put("error", e.getMessage());
+        }
+        return queue;
+    }
+
+    private Map<String, Object> inFlight() {
+        Map<String, Object> inFlight = new LinkedHashMap<>();
+        inFlight.put("messages", inFlightMessages.getCount());
+        inFlight.put("bytes", inFlightMessages.getBytes());
+        return inFlight;
+    }
+
+    private Map<String, Object> formServices() {
+        Map<String, Object> formServices = new LinkedHashMap<>();
+        int inFlightCalls = formServicesCallFilter.getInFlightCalls();
+        formServices.put("maxConnections", maxConnections);
+        formServices.put("inFlightCalls", inFlightCalls);
+        // appels en attente d'une connexion libre : le pool est sature
+        formServices.put("pendingConnections", (long) sumPoolGauge("reactor.netty.connection.provider.pending.connections"));
+        formServices.put("saturation", maxConnections > 0 ? Math.min(1.0, (double) inFlightCalls / maxConnections) : 0.0);
+        return formServices;
+    }
+
+    private double sumPoolGauge(String name) {
+        double sum = 0;
+        for (Gauge gauge : meterRegistry.find(name).tag("name", "formservices").gauges()) {
+            double value = gauge.value();
+            if (!Double.isNaN(value)) {
+                sum += value;
+            }
+        }
+        return sum;
+    }
+
+    private Map<String, Object> caches() {
+        Map<String, long[]> gets = new TreeMap<>();
+        for (Counter counter : meterRegistry.find("enu.mediation.cache.gets").counters()) {
+            long[] hitsAndMisses = gets.computeIfAbsent(counter.getId().getTag("cache"), cache -> new long[2]);
+            hitsAndMisses["hit".equals(counter.getId().getTag("result")) ? 0 : 1] += (long) counter.count();
+        }
+        Map<String, Object> caches = new LinkedHashMap<>();
+        gets.forEach((name, hitsAndMisses) -> {
+            Map<String, Object> cache = new LinkedHashMap<>();
+            long total = hitsAndMisses[0] + hitsAndMisses[1];
+            cache.put("hits", hitsAndMisses[0]);
+            cache.put("misses", hitsAndMisses[1]);
+            cache.put("hitRatio", total > 0 ? (double) hitsAndMisses[0] / total : null);
+            caches.put(name, cache);
+        });
+        return caches;
+    }
+
+    private Map<String, Object> concurrency() {
+        Map<String, Object> concurrency = new LinkedHashMap<>();
+        concurrency.put("enabled", concurrencyLimiter.isEnabled());
+        concurrency.put("limit", concurrencyLimiter.getLimit());
+        List<AdaptiveConcurrencyLimiter.Change> changes = concurrencyLimiter.getChanges();
+        if (!changes.isEmpty()) {
+            AdaptiveConcurrencyLimiter.Change last = changes.get(0);
+            // une reduction de la limite signale que FormServices est degrade
+            concurrency.put("backingOff", last.getTo() < last.getFrom());
+            concurrency.put("lastChange", last.getDate() + " : " + last.getReason());
+        }
+        return concurrency;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.endpoint;
+
+import ch.ge.ael.enu.mediation.service.technical.AdaptiveConcurrencyLimiter;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Endpoint actuator /actuator/concurrency : limite courante de la concurrence adaptative et derniers changements.
+ */
+@Component
+@Endpoint(id = "concurrency")
+@RequiredArgsConstructor
+public class ConcurrencyEndpoint {
+
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+
+    @ReadOperation
+    public Map<String, Object> concurrency() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", concurrencyLimiter.isEnabled());
+        result.put("limit", concurrencyLimiter.getLimit());
+        result.put("changes", concurrencyLimiter.getChanges());
+        return result;
+    }
+}
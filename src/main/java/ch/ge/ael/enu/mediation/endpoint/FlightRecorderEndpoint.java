@@ -0,0 +1,163 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.endpoint;
+
+import ch.ge.ael.enu.mediation.service.technical.jfr.FlightEvents;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.boot.actuate.endpoint.web.annotation.WebEndpoint;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Endpoint actuator /actuator/flightrecorder : enregistrement Java Flight Recorder a la demande, borne en duree
+ * et en taille, avec les evenements de la mediation ({@link FlightEvents}).
+ * <ul>
+ *     <li>POST (corps optionnel <code>{"duration": 120}</code>, en secondes) : demarre un enregistrement ;</li>
+ *     <li>GET : rend le fichier .jfr de l'enregistrement en cours ou du dernier termine, a ouvrir avec JDK Mission Control ;</li>
+ *     <li>DELETE : arrete et supprime l'enregistrement.</li>
+ * </ul>
+ * Un seul enregistrement a la fois ; seul le dernier fichier .jfr rendu est conserve sur disque.
+ * <p>
+ * Les evenements JDK qui reproduisent les variables d'environnement, les proprietes systeme et de securite et la ligne de commande
+ * de la JVM sont desactives quelle que soit la configuration : ils exposeraient les secrets (UAA_CLIENT_SECRET...).
+ * L'endpoint n'est pas expose par defaut.
+ */
+@Component
+@Slf4j
+@WebEndpoint(id = "flightrecorder")
+@ConditionalOnClass(name = "jdk.jfr.Recording")
+public class FlightRecorderEndpoint implements DisposableBean {
+
+    private static final List<String> SENSITIVE_EVENT_TYPES = Arrays.asList(
+            "jdk.InitialEnvironmentVariable",
+            "jdk.InitialSystemProperty",
+            "jdk.InitialSecurityProperty",
+            "jdk.JVMInformation");
+
+    private final long maxDurationSeconds;
+    private final long maxSize;
+    private final String settings;
+    private final Path dumpFile;
+
+    private Recording recording;
+
+    public FlightRecorderEndpoint(@Value("${app.jfr.max-duration:600}") long maxDurationSeconds,
+                                  @Value("${app.jfr.max-size:104857600}") long maxSize,
+                                  @Value("${app.jfr.settings:default}") String settings,
+                                  @Value("${app.jfr.directory:${java.io.tmpdir}}") String directory) {
+        this.maxDurationSeconds = maxDurationSeconds;
+        this.maxSize = maxSize;
+        this.settings = settings;
+        this.dumpFile = Paths.get(directory, "enu-mediation.jfr");
+    }
+
+    @WriteOperation
+    public synchronized WebEndpointResponse<Map<String, Object>> start(@Nullable Long duration) {
+        if (!FlightEvents.isFlightRecorderAvailable()) {
+            return new WebEndpointResponse<>(status("JFR n'est pas disponible dans cette JVM"), WebEndpointResponse.STATUS_SERVICE_UNAVAILABLE);
+        }
+        if (recording != null && recording.getState() == RecordingState.RUNNING) {
+            return new WebEndpointResponse<>(status("Un enregistrement est deja en cours"), WebEndpointResponse.STATUS_BAD_REQUEST);
+        }
+        long seconds = duration == null || duration <= 0 ? maxDurationSeconds : Math.min(duration, maxDurationSeconds);
+        Recording next;
+        try {
+            next = new Recording(Configuration.getConfiguration(settings));
+        } catch (IOException | ParseException e) {
+            return new WebEndpointResponse<>(status("Configuration JFR [" + settings + "] illisible : " + e.getMessage()), WebEndpointResponse.STATUS_INTERNAL_SERVER_ERROR);
+        }
+        FlightEvents.eventTypes().forEach(next::enable);
+        SENSITIVE_EVENT_TYPES.forEach(next::disable);
+        next.setName("enu-mediation");
+        next.setToDisk(true);
+        next.setMaxSize(maxSize);
+        next.setDuration(Duration.ofSeconds(seconds));
+        if (recording != null) {
+            recording.close();
+        }
+        recording = next;
+        recording.start();
+        log.info("Enregistrement JFR demarre pour {} s (configuration [{}], {} octets au plus)", seconds, settings, maxSize);
+        return new WebEndpointResponse<>(status("Enregistrement demarre"));
+    }
+
+    @ReadOperation(produces = "application/octet-stream")
+    public synchronized WebEndpointResponse<Resource> dump() throws IOException {
+        if (recording == null || recording.getState() == RecordingState.NEW || recording.getState() == RecordingState.CLOSED) {
+            return new WebEndpointResponse<>(WebEndpointResponse.STATUS_NOT_FOUND);
+        }
+        Files.createDirectories(dumpFile.getParent());
+        Files.deleteIfExists(dumpFile);
+        recording.dump(dumpFile);
+        log.info("Enregistrement JFR ecrit dans {} ({} octets)", dumpFile, Files.size(dumpFile));
+        return new WebEndpointResponse<>(new FileSystemResource(dumpFile));
+    }
+
+    @DeleteOperation
+    public synchronized Map<String, Object> stop() {
+        if (recording != null) {
+            recording.close();
+            recording = null;
+            log.info("Enregistrement JFR arrete");
+        }
+        return status("Aucun enregistrement");
+    }
+
+    private Map<String, Object> status(String message) {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("message", message);
+        if (recording != null) {
+            status.put("state", recording.getState());
+            status.put("startTime", recording.getStartTime());
+            status.put("duration", recording.getDuration());
+            status.put("maxSize", recording.getMaxSize());
+        }
+        return status;
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (recording != null) {
+            recording.close();
+        }
+    }
+}
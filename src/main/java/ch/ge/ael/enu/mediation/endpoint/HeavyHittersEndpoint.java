@@ -0,0 +1,55 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.endpoint;
+
+import ch.ge.ael.enu.mediation.service.technical.HeavyHitters;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * Endpoint actuator /actuator/heavyhitters : prestations et usagers les plus lourds (messages, octets, temps
+ * FormServices), par ex. /actuator/heavyhitters?top=5. Le poids reel d'une cle est compris entre
+ * weight - maxOverestimate et weight. DELETE remet les compteurs a zero.
+ * Les usagers n'y figurent que sous un pseudonyme. L'endpoint n'est pas authentifie et n'est pas expose par defaut.
+ */
+@Component
+@Endpoint(id = "heavyhitters")
+@RequiredArgsConstructor
+public class HeavyHittersEndpoint {
+
+    private static final int DEFAULT_TOP = 10;
+
+    private final HeavyHitters heavyHitters;
+
+    @ReadOperation
+    public Map<String, Object> heavyHitters(@Nullable Integer top) {
+        return heavyHitters.top(top != null && top > 0 ? top : DEFAULT_TOP);
+    }
+
+    @DeleteOperation
+    public void reset() {
+        heavyHitters.reset();
+    }
+}
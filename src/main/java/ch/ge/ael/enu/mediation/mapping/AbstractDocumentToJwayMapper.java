@@ -18,13 +18,35 @@
  */
 package ch.ge.ael.enu.mediation.mapping;
 
+import ch.ge.ael.enu.mediation.util.file.FileNameSanitizer;
+import ch.ge.ael.enu.mediation.util.mime.MimeUtils;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+
+import java.nio.file.Path;
 
 @Slf4j
 public class AbstractDocumentToJwayMapper {
+    private static final FileNameSanitizer FILE_NAME_SANITIZER = new FileNameSanitizer();
+
     public AbstractDocumentToJwayMapper() {}
 
+    /**
+     * Nom de fichier assaini, entre guillemets, par exemple : "Mon-document.pdf".
+     * L'extension est toujours composee de caracteres admis : seul le libelle est assaini.
+     */
+    protected String fileName(String libelleDocument, String mime) {
+        String extension = MimeUtils.getFileExtension(mime);
+        String sanitized = FILE_NAME_SANITIZER.sanitize(String.valueOf(libelleDocument));
+        String fileName = new StringBuilder(sanitized.length() + extension.length() + 3)
+                .append('"').append(sanitized).append('.').append(extension).append('"')
+                .toString();
+        // note : l'upload va supprimer les caracteres accentues
+        log.debug("fileName apres assainissement = [{}]", fileName);
+        return fileName;
+    }
+
     public static class CustomByteArrayResource extends ByteArrayResource {
 
         private final String fileName;
@@ -40,4 +62,22 @@ public class AbstractDocumentToJwayMapper {
         }
     }
 
+    /**
+     * Contenu lu depuis un fichier (document volumineux ecrit dans le repertoire de spool).
+     */
+    public static class CustomFileSystemResource extends FileSystemResource {
+
+        private final String fileName;
+
+        public CustomFileSystemResource(Path file, String fileName) {
+            super(file);
+            this.fileName = fileName;
+        }
+
+        @Override
+        public String getFilename() {
+            return fileName;
+        }
+    }
+
 }
@@ -0,0 +1,70 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.mapping;
+
+/**
+ * Construction des champs "name" des documents envoyes a Jway, dont les valeurs sont separees par des "|",
+ * par exemple "libelle|idDocumentSiMetier|index|nbDocuments|fournisseur|version|idDocument|algorithmeHash|hash".
+ * Le tampon est reutilise d'un document a l'autre dans un meme thread.
+ * Les valeurs nulles sont ecrites "null", comme avec une concatenation de chaines.
+ */
+final class JwayNameBuilder {
+
+    private static final char SEPARATOR = '|';
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    /**
+     * Au-dela, le tampon n'est pas conserve pour le document suivant (libelle exceptionnellement long).
+     */
+    private static final int MAX_RETAINED_CAPACITY = 4 * 1024;
+
+    private static final ThreadLocal<JwayNameBuilder> BUILDERS = ThreadLocal.withInitial(JwayNameBuilder::new);
+
+    private StringBuilder sb = new StringBuilder(INITIAL_CAPACITY);
+
+    private JwayNameBuilder() {
+    }
+
+    static JwayNameBuilder start(String first) {
+        JwayNameBuilder builder = BUILDERS.get();
+        builder.sb.setLength(0);
+        builder.sb.append(first);
+        return builder;
+    }
+
+    JwayNameBuilder add(Object value) {
+        sb.append(SEPARATOR).append(value);
+        return this;
+    }
+
+    JwayNameBuilder add(int value) {
+        sb.append(SEPARATOR).append(value);
+        return this;
+    }
+
+    String build() {
+        String name = sb.toString();
+        if (sb.capacity() > MAX_RETAINED_CAPACITY) {
+            sb = new StringBuilder(INITIAL_CAPACITY);
+        }
+        return name;
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.mapping;
+
+import ch.ge.ael.enu.mediation.mapping.AbstractDocumentToJwayMapper.CustomByteArrayResource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Contenus factices envoyes a FormServices a la place du contenu reel d'un document, quand ce contenu est
+ * dans la GED du SI metier (DocumentUsager, Courrier).
+ * Les contenus sont lus une seule fois, au demarrage, depuis le classpath ; ils sont ensuite partages par toutes
+ * les requetes, sans copie.
+ */
+@Component
+@Slf4j
+public class PlaceholderContentRegistry {
+
+    private static final String GED_DOCUMENT_PATH = "placeholder/document-ged.pdf";
+
+    private final byte[] gedDocument;
+
+    public PlaceholderContentRegistry() throws IOException {
+        try (InputStream in = new ClassPathResource(GED_DOCUMENT_PATH).getInputStream()) {
+            gedDocument = StreamUtils.copyToByteArray(in);
+        }
+        log.info("Contenu factice des documents GED charge : {} octets", gedDocument.length);
+    }
+
+    /**
+     * Contenu factice d'un document GED, sous le nom de fichier donne.
+     * Le tableau d'octets sous-jacent est partage : il ne doit en aucun cas etre modifie.
+     */
+    public ByteArrayResource gedDocument(String fileName) {
+        return new CustomByteArrayResource(gedDocument, fileName);
+    }
+}
@@ -43,6 +43,18 @@ public class Header {
      */
     public static final String REMOTE_USER = "remote_user";
 
+    /**
+     * Contexte : HTTP.
+     * CorrelationId du message RabbitMQ a l'origine de l'appel a FormServices.
+     */
+    public static final String X_CORRELATION_ID = "X-Correlation-Id";
+
+    /**
+     * Contexte : HTTP.
+     * Span a l'origine de l'appel a FormServices, au format W3C Trace Context.
+     */
+    public static final String TRACEPARENT = "traceparent";
+
     private Header() {
     }
 
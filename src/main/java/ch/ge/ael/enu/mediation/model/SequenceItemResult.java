@@ -0,0 +1,43 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.model;
+
+import ch.ge.ael.enu.business.domain.v1_0.ResponseType;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Resultat du traitement d'un des messages d'une sequence de messages (SEQUENCE_MESSAGES).
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class SequenceItemResult {
+
+    /**
+     * Position du message dans la sequence, a partir de 0.
+     */
+    private int index;
+
+    private ResponseType resultat;
+
+    private String description;
+
+}
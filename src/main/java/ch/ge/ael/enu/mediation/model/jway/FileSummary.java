@@ -0,0 +1,52 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.model.jway;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.Data;
+
+import java.util.UUID;
+
+/**
+ * Projection d'un {@link File} renvoye par FormServices, limitee aux champs exploites par la mediation.
+ * Les autres champs (owner, application, dates...) sont sautes a la lecture sans etre decodes.
+ * Les champs de la derniere transition (step, stepDescription, form, toDate) evitent de la reecrire a l'identique :
+ * voir TransitionWriteAvoidance.
+ */
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class FileSummary {
+
+    private UUID uuid = null;
+
+    private String name = null;
+
+    private String workflowStatus = null;
+
+    private String step = null;
+
+    private String stepDescription = null;
+
+    private Form form = null;
+
+    /**
+     * Echeance au format "yyyy-MM-dd", comme a l'ecriture.
+     */
+    private String toDate = null;
+}
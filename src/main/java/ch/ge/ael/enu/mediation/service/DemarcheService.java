@@ -20,8 +20,10 @@ package ch.ge.ael.enu.mediation.service;
 
 import ch.ge.ael.enu.business.domain.v1_0.*;
 import ch.ge.ael.enu.mediation.exception.NotFoundException;
+import ch.ge.ael.enu.mediation.exception.TechnicalException;
 import ch.ge.ael.enu.mediation.model.jway.*;
 import ch.ge.ael.enu.mediation.mapping.*;
+import ch.ge.ael.enu.mediation.service.technical.TransitionWriteAvoidance;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
@@ -30,7 +32,8 @@ import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.UUID;
+import java.util.Collections;
+import java.util.List;
 
 
 /**
@@ -48,11 +51,12 @@ public class DemarcheService {
     private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
 
     private final FormServicesApi formServicesApi;
+    private final TransitionWriteAvoidance transitionWriteAvoidance;
     private final BrouillonToJwayMapper brouillonToJwayMapper = new BrouillonToJwayMapper();
     private final DemarcheDeposeeToJwayMapper demarcheDeposeeToJwayMapper = new DemarcheDeposeeToJwayMapper();
 
     public void handleDemarcheBrouillon(BrouillonDemarche brouillonDemarche) {
-        File demarcheExistante;
+        FileSummary demarcheExistante;
         try {
             demarcheExistante = formServicesApi.getFile(brouillonDemarche.getIdDemarcheSiMetier(), brouillonDemarche.getIdUsager());
             log.warn("ECHEC création brouillon: existe déjà: {} pour idSimetier = {}", demarcheExistante.getUuid(), demarcheExistante.getName());
@@ -64,110 +68,192 @@ public class DemarcheService {
         }
     }
 
+    /**
+     * Changement d'etat a appliquer a une demarche existante.
+     */
+    private static class Transition {
+        private final Status newStatus;
+        private final LocalDateTime statusDate;
+        private final Form form;
+        private final String stepDescription;
+        private final LocalDate toDate;
+
+        private Transition(Status newStatus, LocalDateTime statusDate, Form form, String stepDescription, LocalDate toDate) {
+            this.newStatus = newStatus;
+            this.statusDate = statusDate;
+            this.form = form;
+            this.stepDescription = stepDescription;
+            this.toDate = toDate;
+        }
+
+        private Transition(Status newStatus, LocalDateTime statusDate) {
+            this(newStatus, statusDate, null, null, null);
+        }
+    }
+
+    /**
+     * Ecrit la transition dans FormServices, puis la reporte sur l'etat lu de la demarche.
+     */
     private void updateDemarcheStatus(String idDemarcheSiMetier,
                                       String idUsager,
-                                      UUID fileUuid,
-                                      LocalDateTime statusDate,
-                                      Status newStatus,
-                                      Form form,
-                                      String stepDescription,
-                                      LocalDate toDate) {
+                                      FileSummary demarche,
+                                      Transition transition) {
+        Status newStatus = transition.newStatus;
         FileForStep fileForStep = new FileForStep();
         fileForStep.setStep(newStatus.toString());
-        fileForStep.setLastUpdate(statusDate.format(FORMATTER));
-        if(form != null) {
-            fileForStep.setForm(form);
+        fileForStep.setLastUpdate(transition.statusDate.format(FORMATTER));
+        if(transition.form != null) {
+            fileForStep.setForm(transition.form);
         }
-        if(stepDescription != null) {
-            fileForStep.setStepDescription(stepDescription);
+        if(transition.stepDescription != null) {
+            fileForStep.setStepDescription(transition.stepDescription);
         }
-        formServicesApi.postFileStep(fileForStep, idUsager, fileUuid);
 
         FileForWorkflow fileForWorkflow = new FileForWorkflow();
         fileForWorkflow.setName(idDemarcheSiMetier);
         fileForWorkflow.setWorkflowStatus(newStatus.toString());
-        if(stepDescription != null) {
-            fileForWorkflow.setStepDescription(stepDescription);
+        if(transition.stepDescription != null) {
+            fileForWorkflow.setStepDescription(transition.stepDescription);
+        }
+        if(transition.toDate != null) {
+            fileForWorkflow.setToDate(transition.toDate.format(FORMATTER));
         }
-        if(toDate != null) {
-            fileForWorkflow.setToDate(toDate.format(FORMATTER));
+
+        // une transition identique a l'etat de la demarche dans FormServices (par ex. un rappel DemarcheActionRequise)
+        // n'est pas renvoyee
+        if(transitionWriteAvoidance.isAlreadyApplied(demarche, fileForStep, fileForWorkflow)) {
+            log.info("Transition deja appliquee a la demarche {} ({}) : pas d'ecriture dans FormServices", idDemarcheSiMetier, newStatus);
+            return;
+        }
+        formServicesApi.postFileStep(fileForStep, idUsager, demarche.getUuid());
+        formServicesApi.putFileWorkflow(fileForWorkflow, idUsager, demarche.getUuid());
+        TransitionWriteAvoidance.applied(demarche, fileForStep, fileForWorkflow);
+    }
+
+    /**
+     * Rend la transition a appliquer a une demarche dont l'etat courant est "currentStatus", ou null si le message
+     * n'est pas applicable dans cet etat.
+     */
+    private Transition transitionFor(Object message, String demarcheName, String currentStatus) {
+        if (message instanceof DemarcheDeposee) {
+            DemarcheDeposee demarcheDeposee = (DemarcheDeposee) message;
+            if(currentStatus.equals(Status.START.toString())) {
+                return new Transition(Status.VALIDATION, demarcheDeposee.getDateDepot());
+            }
+        } else if (message instanceof DemarcheEnTraitement) {
+            DemarcheEnTraitement demarcheEnTraitement = (DemarcheEnTraitement) message;
+            if(currentStatus.equals(Status.VALIDATION.toString()) || currentStatus.equals(Status.CORRECTION.toString())) {
+                return new Transition(Status.CORRECTION, demarcheEnTraitement.getDateTraitement());
+            }
+            log.warn("ECHEC passage demarche en traitement: {}, status prédédent = {}", demarcheName, currentStatus);
+        } else if (message instanceof DemarcheActionRequise) {
+            DemarcheActionRequise demarcheActionRequise = (DemarcheActionRequise) message;
+            if(currentStatus.equals(Status.VALIDATION.toString()) || currentStatus.equals(Status.CORRECTION.toString())) {
+                FormUrl formUrl = new FormUrl();
+                formUrl.setBaseUrl(demarcheActionRequise.getUrlAction().toString());
+                Form form = new Form();
+                form.setUrls(new ArrayList<>());
+                form.getUrls().add(formUrl);
+
+                return new Transition(Status.CORRECTION,
+                        demarcheActionRequise.getDateActionRequise(),
+                        form,
+                        demarcheActionRequise.getLibelleAction() +
+                                "|" +
+                                demarcheActionRequise.getTypeAction(),
+                        demarcheActionRequise.getDateEcheanceAction());
+            }
+            log.warn("ECHEC passage demarche en traitement: {}, status prédédent = {}", demarcheName, currentStatus);
+        } else if (message instanceof DemarcheTerminee) {
+            DemarcheTerminee demarcheTerminee = (DemarcheTerminee) message;
+            if(currentStatus.equals(Status.CORRECTION.toString())) {
+                return new Transition(Status.DONE, demarcheTerminee.getDateCloture());
+            }
+            log.warn("ECHEC passage demarche terminée: {}, status prédédent = {}", demarcheName, currentStatus);
+        } else {
+            throw new IllegalArgumentException("Message de changement d'etat non prevu : " + message.getClass().getName());
         }
-        formServicesApi.putFileWorkflow(fileForWorkflow, idUsager, fileUuid);
+        return null;
     }
 
-    public void handleDemarcheDeposee(DemarcheDeposee demarcheDeposee) {
-        File demarcheExistante;
+    /**
+     * Recherche la demarche dans FormServices. Si elle n'existe pas et que le message est une DemarcheDeposee,
+     * la demarche est creee.
+     */
+    private FileSummary getOrCreateDemarche(Object message, String idDemarcheSiMetier, String idUsager) throws NotFoundException {
         try {
-            demarcheExistante = formServicesApi.getFile(demarcheDeposee.getIdDemarcheSiMetier(), demarcheDeposee.getIdUsager());
+            return formServicesApi.getFile(idDemarcheSiMetier, idUsager);
         } catch (NotFoundException e) {
-            demarcheExistante = formServicesApi.postFile(
-                    demarcheDeposeeToJwayMapper.map(demarcheDeposee),
-                    demarcheDeposee.getIdUsager());
-            log.debug("Demarche Deposee - Creation: {}", demarcheExistante);
+            if (!(message instanceof DemarcheDeposee)) {
+                throw e;
+            }
+            FileSummary demarcheCreee = formServicesApi.postFile(demarcheDeposeeToJwayMapper.map((DemarcheDeposee) message), idUsager);
+            log.debug("Demarche Deposee - Creation: {}", demarcheCreee);
+            return demarcheCreee;
         }
-        if(demarcheExistante.getWorkflowStatus().equals(Status.START.toString())) {
-            updateDemarcheStatus(demarcheDeposee.getIdDemarcheSiMetier(),
-                    demarcheDeposee.getIdUsager(),
-                    demarcheExistante.getUuid(),
-                    demarcheDeposee.getDateDepot(),
-                    Status.VALIDATION, null, null, null);
+    }
+
+    private void handleTransition(Object message, String idDemarcheSiMetier, String idUsager) throws NotFoundException {
+        FileSummary demarcheExistante = getOrCreateDemarche(message, idDemarcheSiMetier, idUsager);
+        Transition transition = transitionFor(message, demarcheExistante.getName(), demarcheExistante.getWorkflowStatus());
+        if(transition != null) {
+            updateDemarcheStatus(idDemarcheSiMetier, idUsager, demarcheExistante, transition);
         }
     }
 
+    public void handleDemarcheDeposee(DemarcheDeposee demarcheDeposee) throws NotFoundException {
+        handleTransition(demarcheDeposee, demarcheDeposee.getIdDemarcheSiMetier(), demarcheDeposee.getIdUsager());
+    }
+
     public void handleDemarcheEnTraitement(DemarcheEnTraitement demarcheEnTraitement) throws NotFoundException {
-        File demarcheExistante;
-        demarcheExistante = formServicesApi.getFile(demarcheEnTraitement.getIdDemarcheSiMetier(), demarcheEnTraitement.getIdUsager());
-        if(demarcheExistante.getWorkflowStatus().equals(Status.VALIDATION.toString()) || demarcheExistante.getWorkflowStatus().equals(Status.CORRECTION.toString())) {
-            updateDemarcheStatus(demarcheEnTraitement.getIdDemarcheSiMetier(),
-                    demarcheEnTraitement.getIdUsager(),
-                    demarcheExistante.getUuid(),
-                    demarcheEnTraitement.getDateTraitement(),
-                    Status.CORRECTION, null, null, null);
-        } else {
-            log.warn("ECHEC passage demarche en traitement: {}, status prédédent = {}", demarcheExistante.getName(), demarcheExistante.getWorkflowStatus());
-        }
+        handleTransition(demarcheEnTraitement, demarcheEnTraitement.getIdDemarcheSiMetier(), demarcheEnTraitement.getIdUsager());
     }
 
     public void handleDemarcheActionRequise(DemarcheActionRequise demarcheActionRequise) throws NotFoundException {
-        File demarcheExistante;
-        demarcheExistante = formServicesApi.getFile(demarcheActionRequise.getIdDemarcheSiMetier(), demarcheActionRequise.getIdUsager());
-        if(demarcheExistante.getWorkflowStatus().equals(Status.VALIDATION.toString()) || demarcheExistante.getWorkflowStatus().equals(Status.CORRECTION.toString())) {
-            FormUrl formUrl = new FormUrl();
-            formUrl.setBaseUrl(demarcheActionRequise.getUrlAction().toString());
-            Form form = new Form();
-            form.setUrls(new ArrayList<>());
-            form.getUrls().add(formUrl);
-
-            updateDemarcheStatus(demarcheActionRequise.getIdDemarcheSiMetier(),
-                    demarcheActionRequise.getIdUsager(),
-                    demarcheExistante.getUuid(),
-                    demarcheActionRequise.getDateActionRequise(),
-                    Status.CORRECTION,
-                    form,
-                    demarcheActionRequise.getLibelleAction() +
-                            "|" +
-                            demarcheActionRequise.getTypeAction(),
-                    demarcheActionRequise.getDateEcheanceAction());
-        } else {
-            log.warn("ECHEC passage demarche en traitement: {}, status prédédent = {}", demarcheExistante.getName(), demarcheExistante.getWorkflowStatus());
-        }
+        handleTransition(demarcheActionRequise, demarcheActionRequise.getIdDemarcheSiMetier(), demarcheActionRequise.getIdUsager());
     }
 
     public void handleDemarcheTerminee(DemarcheTerminee demarcheTerminee) throws NotFoundException {
-        File demarcheExistante;
-        demarcheExistante = formServicesApi.getFile(demarcheTerminee.getIdDemarcheSiMetier(), demarcheTerminee.getIdUsager());
-        if(demarcheExistante.getWorkflowStatus().equals(Status.CORRECTION.toString())) {
-            FileForStep file = new FileForStep();
-            file.setStep(Status.DONE.toString());
-            file.setLastUpdate(demarcheTerminee.getDateCloture().format(FORMATTER));
-            formServicesApi.postFileStep(file, demarcheTerminee.getIdUsager(), demarcheExistante.getUuid());
-
-            FileForWorkflow fileForWorkflow = new FileForWorkflow();
-            fileForWorkflow.setName(demarcheTerminee.getIdDemarcheSiMetier());
-            fileForWorkflow.setWorkflowStatus(Status.DONE.toString());
-            formServicesApi.putFileWorkflow(fileForWorkflow, demarcheTerminee.getIdUsager(), demarcheExistante.getUuid());
-        } else {
-            log.warn("ECHEC passage demarche terminée: {}, status prédédent = {}", demarcheExistante.getName(), demarcheExistante.getWorkflowStatus());
+        handleTransition(demarcheTerminee, demarcheTerminee.getIdDemarcheSiMetier(), demarcheTerminee.getIdUsager());
+    }
+
+    /**
+     * Applique une suite de changements d'etat (DemarcheDeposee, DemarcheEnTraitement, DemarcheActionRequise,
+     * DemarcheTerminee) portant tous sur la meme demarche, dans l'ordre de la liste.
+     * La demarche n'est lue qu'une fois dans FormServices. Chaque transition est ensuite ecrite, afin de ne perdre
+     * aucune donnee portee par un message (formulaire d'action, echeance...) ; seules les ecritures identiques a l'etat
+     * de la demarche (lu, puis mis a jour par les transitions precedentes) sont evitees (voir TransitionWriteAvoidance).
+     * Si l'ecriture d'une transition echoue, les messages suivants ne sont pas appliques, l'etat de la demarche
+     * n'etant plus connu.
+     * Rend, pour chaque message de la liste, l'erreur survenue lors de son traitement, ou null si le traitement a reussi.
+     */
+    public List<Exception> handleDemarcheTransitions(String idDemarcheSiMetier, String idUsager, List<?> messages) {
+        List<Exception> errors = new ArrayList<>(Collections.nCopies(messages.size(), (Exception) null));
+        FileSummary demarcheExistante = null;
+        RuntimeException writeError = null;
+        for (int i = 0; i < messages.size(); i++) {
+            Object message = messages.get(i);
+            if (writeError != null) {
+                errors.set(i, new TechnicalException("Changement d'etat non applique suite a l'echec du precedent : " + writeError.getMessage()));
+                continue;
+            }
+            try {
+                if (demarcheExistante == null) {
+                    demarcheExistante = getOrCreateDemarche(message, idDemarcheSiMetier, idUsager);
+                }
+                Transition transition = transitionFor(message, demarcheExistante.getName(), demarcheExistante.getWorkflowStatus());
+                if (transition != null) {
+                    try {
+                        updateDemarcheStatus(idDemarcheSiMetier, idUsager, demarcheExistante, transition);
+                    } catch (RuntimeException e) {
+                        writeError = e;
+                        throw e;
+                    }
+                }
+            } catch (NotFoundException | RuntimeException e) {
+                errors.set(i, e);
+            }
         }
+        return errors;
     }
 }
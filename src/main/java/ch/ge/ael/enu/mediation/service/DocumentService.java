@@ -19,14 +19,23 @@
 package ch.ge.ael.enu.mediation.service;
 
 import ch.ge.ael.enu.business.domain.v1_0.*;
+import ch.ge.ael.enu.mediation.exception.IllegalMessageException;
 import ch.ge.ael.enu.mediation.exception.NotFoundException;
-import ch.ge.ael.enu.mediation.model.jway.File;
+import ch.ge.ael.enu.mediation.model.jway.FileSummary;
+import ch.ge.ael.enu.mediation.service.technical.BlobReference;
+import ch.ge.ael.enu.mediation.service.technical.DecodedContent;
+import ch.ge.ael.enu.mediation.service.technical.DocumentContentResolver;
+import ch.ge.ael.enu.mediation.util.codec.Base64Decoder;
+import ch.ge.ael.enu.mediation.util.hash.HashAlgorithm;
+import ch.ge.ael.enu.mediation.util.mime.MimeRegistry;
+import ch.ge.ael.enu.mediation.util.mime.MimeType;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -45,36 +54,122 @@ import java.util.List;
 public class DocumentService {
 
     /**
-     * Types MIME (par ex. 'applicatiopn/pdf') de documents acceptes par la mediation.
-     * Noter que si un type est ajoute a cette liste, le document n'est pas pour autant forcement accepte par
-     * FormServices, car FormServivces a sa propre liste de types acceptes.
+     * Types MIME (par ex. 'application/pdf') de documents acceptes par la mediation.
      */
-    @Value("${app.document.mime-types}")
-    private List<String> allowedMimeTypes;
+    private final MimeRegistry mimeRegistry;
 
     private final FormServicesApi formServicesApi;
 
+    private final DocumentContentResolver documentContentResolver;
+
+    /**
+     * Refus des documents GED dont l'empreinte annoncee n'est pas exploitable. Desactive par defaut : la mediation
+     * ne dispose pas du contenu d'un document GED et ne peut donc pas verifier son empreinte.
+     */
+    @Value("${app.document.ged-hash-check:false}")
+    private boolean gedHashCheck;
+
     private String getDemarcheUuid(String idDemarcheSiMetier, String idUsager) throws NotFoundException {
         // recuperation dans FormServices de l'uuid de la demarche
-        File demarche = formServicesApi.getFile(idDemarcheSiMetier, idUsager);
+        FileSummary demarche = formServicesApi.getFile(idDemarcheSiMetier, idUsager);
         String demarcheUuid = demarche.getUuid().toString();
         log.debug("UUID demarche = [{}]", demarcheUuid);
         return demarcheUuid;
     }
 
-    public void handleDocument(DocumentUsager newDocument) throws NotFoundException {
+    /**
+     * Si app.document.ged-hash-check est actif, verifie que l'empreinte GED annoncee est exploitable : algorithme
+     * supporte et empreinte, en hexadecimal ou en base64, de la longueur produite par cet algorithme.
+     */
+    private void checkGedHash(String idDocumentSiMetier, String algorithmeHash, String hash) throws IllegalMessageException {
+        if (!gedHashCheck) {
+            return;
+        }
+        HashAlgorithm algorithm = HashAlgorithm.fromLabel(algorithmeHash);
+        if (algorithm == null) {
+            throw new IllegalMessageException("Document [" + idDocumentSiMetier + "] : l'algorithme d'empreinte ["
+                    + algorithmeHash + "] n'est pas supporte. Valeurs acceptees : SHA-256, SHA-512, MD5");
+        }
+        if (algorithm.parseHash(hash) == null) {
+            throw new IllegalMessageException("Document [" + idDocumentSiMetier + "] : l'empreinte [" + hash
+                    + "] n'est pas une empreinte " + algorithmeHash + " valide");
+        }
+    }
+
+    /**
+     * Verifie que le type MIME declare est accepte par la mediation.
+     */
+    private MimeType checkMimeType(String idDocumentSiMetier, String mime) throws IllegalMessageException {
+        MimeType mimeType = mimeRegistry.getAllowed(mime);
+        if (mimeType == null) {
+            throw new IllegalMessageException("Document [" + idDocumentSiMetier + "] : le type mime [" + mime
+                    + "] n'est pas accepte");
+        }
+        return mimeType;
+    }
+
+    /**
+     * Verifie que le debut du contenu d'un document binaire correspond a son type MIME declare.
+     */
+    private void checkContent(String idDocumentSiMetier, MimeType mimeType, byte[] head) throws IllegalMessageException {
+        if (!mimeRegistry.contentMatches(mimeType, head)) {
+            throw new IllegalMessageException("Document [" + idDocumentSiMetier + "] : le contenu ne correspond pas"
+                    + " au type mime declare [" + mimeType.getName() + "]");
+        }
+    }
+
+    /**
+     * Contenu d'un document binaire (base64 ou reference au depot de contenus), verifie.
+     * Un contenu base64 est verifie sur ses premiers caracteres, avant d'etre decode entierement.
+     * A fermer une fois l'upload termine.
+     */
+    private DecodedContent resolveContent(String idDocumentSiMetier, String mime, String contenu) throws IllegalMessageException, NotFoundException {
+        MimeType mimeType = checkMimeType(idDocumentSiMetier, mime);
+        if (!mimeRegistry.isSniffing()) {
+            return documentContentResolver.resolve(idDocumentSiMetier, contenu);
+        }
+        if (contenu != null && !BlobReference.isReference(contenu)) {
+            byte[] head;
+            try {
+                head = Base64Decoder.decodeHead(contenu, MimeType.HEAD_LENGTH);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalMessageException("Document [" + idDocumentSiMetier + "] : le contenu n'est pas du base64 valide");
+            }
+            checkContent(idDocumentSiMetier, mimeType, head);
+            return documentContentResolver.resolve(idDocumentSiMetier, contenu);
+        }
+        DecodedContent content = documentContentResolver.resolve(idDocumentSiMetier, contenu);
+        try {
+            checkContent(idDocumentSiMetier, mimeType, content.head(MimeType.HEAD_LENGTH));
+        } catch (IllegalMessageException e) {
+            content.close();
+            throw e;
+        }
+        return content;
+    }
+
+    public void handleDocument(DocumentUsager newDocument) throws NotFoundException, IllegalMessageException {
+        checkMimeType(newDocument.getIdDocumentSiMetier(), newDocument.getMime());
+        checkGedHash(newDocument.getIdDocumentSiMetier(), newDocument.getGed().getAlgorithmeHash(), newDocument.getGed().getHash());
         String idUsager = newDocument.getIdUsager();
         String demarcheUuid = getDemarcheUuid(newDocument.getIdDemarcheSiMetier(),idUsager);
         formServicesApi.postDocument(newDocument, demarcheUuid, idUsager);
     }
 
-    public void handleDocument(DocumentUsagerBinaire newDocument) throws NotFoundException {
-        String idUsager = newDocument.getIdUsager();
-        String demarcheUuid = getDemarcheUuid(newDocument.getIdDemarcheSiMetier(),idUsager);
-        formServicesApi.postDocumentBinaire(newDocument, demarcheUuid, idUsager);
+    public void handleDocument(DocumentUsagerBinaire newDocument) throws NotFoundException, IllegalMessageException {
+        // le fichier de spool eventuel est supprime une fois l'upload termine, qu'il ait reussi ou non
+        try (DecodedContent content = resolveContent(newDocument.getIdDocumentSiMetier(), newDocument.getMime(), newDocument.getContenu())) {
+            String idUsager = newDocument.getIdUsager();
+            String demarcheUuid = getDemarcheUuid(newDocument.getIdDemarcheSiMetier(),idUsager);
+            formServicesApi.postDocumentBinaire(newDocument, content, demarcheUuid, idUsager);
+        }
     }
 
-    public void handleCourrier(Courrier courrier) throws NotFoundException {
+    public void handleCourrier(Courrier courrier) throws NotFoundException, IllegalMessageException {
+        for (CourrierDocument courrierDoc : courrier.getDocuments()) {
+            checkMimeType(courrierDoc.getIdDocumentSiMetier(), courrierDoc.getMime());
+            checkGedHash(courrierDoc.getIdDocumentSiMetier(), courrierDoc.getGed().getAlgorithmeHash(), courrierDoc.getGed().getHash());
+        }
         // ajout au courrier d'une clef technique. Cette clef sera affectee a chaque document constituant le
         // courrier et permettra donc de regrouper les documents du courrier
         courrier.setClef("Courrier-" + ZonedDateTime.now().toEpochSecond());
@@ -86,13 +181,22 @@ public class DocumentService {
         }
     }
 
-    public void handleCourrier(CourrierBinaire courrierBinaire) throws NotFoundException {
-        courrierBinaire.setClef("Courrier-" + ZonedDateTime.now().toEpochSecond());
-        if(courrierBinaire.getIdDemarcheSiMetier() != null) {
-            final String demarcheUuid = getDemarcheUuid(courrierBinaire.getIdDemarcheSiMetier(),courrierBinaire.getIdUsager());
-            formServicesApi.postCourrierBinaire(courrierBinaire, demarcheUuid, courrierBinaire.getIdUsager());
-        } else {
-            formServicesApi.postCourrierBinaire(courrierBinaire, null, courrierBinaire.getIdUsager());
+    public void handleCourrier(CourrierBinaire courrierBinaire) throws NotFoundException, IllegalMessageException {
+        List<DecodedContent> contents = new ArrayList<>();
+        try {
+            for (CourrierDocumentBinaire courrierDoc : courrierBinaire.getDocuments()) {
+                contents.add(resolveContent(courrierDoc.getIdDocumentSiMetier(), courrierDoc.getMime(), courrierDoc.getContenu()));
+            }
+            courrierBinaire.setClef("Courrier-" + ZonedDateTime.now().toEpochSecond());
+            if(courrierBinaire.getIdDemarcheSiMetier() != null) {
+                final String demarcheUuid = getDemarcheUuid(courrierBinaire.getIdDemarcheSiMetier(),courrierBinaire.getIdUsager());
+                formServicesApi.postCourrierBinaire(courrierBinaire, contents, demarcheUuid, courrierBinaire.getIdUsager());
+            } else {
+                formServicesApi.postCourrierBinaire(courrierBinaire, contents, null, courrierBinaire.getIdUsager());
+            }
+        } finally {
+            // suppression des fichiers de spool, que l'upload ait reussi ou non
+            contents.forEach(DecodedContent::close);
         }
     }
 
@@ -30,13 +30,19 @@ import ch.ge.ael.enu.mediation.model.jway.Document;
 import ch.ge.ael.enu.mediation.model.jway.File;
 import ch.ge.ael.enu.mediation.model.jway.FileForStep;
 import ch.ge.ael.enu.mediation.model.jway.FileForWorkflow;
+import ch.ge.ael.enu.mediation.model.jway.FileSummary;
 import ch.ge.ael.enu.mediation.mapping.DocumentToJwayMapper;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import ch.ge.ael.enu.mediation.service.technical.DecodedContent;
+import ch.ge.ael.enu.mediation.service.technical.JsonBodyWriter;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -46,11 +52,15 @@ import org.springframework.web.reactive.function.client.ClientResponse;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 
 import static ch.ge.ael.enu.mediation.model.Header.REMOTE_USER;
 import static ch.ge.ael.enu.mediation.model.Header.X_CSRF_TOKEN;
@@ -66,10 +76,75 @@ public class FormServicesApi {
 
     private static final String CSRF_PATH = "/auth/me";
 
-    private final ObjectMapper jackson;
+    private final JsonBodyWriter jsonBodyWriter;
     private final WebClient formServicesWebClient;
     private final DocumentToJwayMapper newDocumentToJwayMapper;
     private final CourrierDocumentToJwayMapper courrierDocumentToJwayMapper;
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * Lectures partagees par les messages d'une sequence de messages, pour le thread courant.
+     */
+    private final ThreadLocal<SharedLookups> sharedLookups = new ThreadLocal<>();
+
+    /**
+     * Envoi de tous les documents d'un courrier en une seule requete multipart.
+     */
+    @Value("${app.formservices.courrier-batch-upload:false}")
+    private boolean courrierBatchUpload;
+
+    /**
+     * Taille totale (octets) maximale des documents d'un courrier envoyes en une seule requete ; au-dela, les
+     * documents sont envoyes un par un.
+     */
+    @Value("${app.formservices.courrier-batch-max-size:10485760}")
+    private long courrierBatchMaxSize;
+
+    /**
+     * Positionne si FormServices ne connait pas l'envoi groupe (405, 415, ou 404 sans erreur Jway) : l'envoi groupe
+     * est alors abandonne jusqu'au redemarrage.
+     */
+    private final AtomicBoolean courrierBatchUnsupported = new AtomicBoolean();
+
+    /**
+     * Message des erreurs Spring Boot qui n'en precisent pas, par exemple pour une route inconnue.
+     */
+    private static final String NO_ERROR_MESSAGE = "No message available";
+
+    /**
+     * Resultats de lectures FormServices (demarches, jetons CSRF) reutilises par tous les messages traites
+     * dans le thread courant jusqu'a la fermeture, typiquement les messages d'une sequence SEQUENCE_MESSAGES.
+     * Une demarche modifiee via cette API est retiree du cache.
+     */
+    public final class SharedLookups implements AutoCloseable {
+        private final Map<String, FileSummary> files = new HashMap<>();
+        private final Map<String, String> csrfTokens = new HashMap<>();
+
+        private void evict(UUID demarcheUuid) {
+            files.values().removeIf(file -> demarcheUuid.equals(file.getUuid()));
+        }
+
+        @Override
+        public void close() {
+            sharedLookups.remove();
+        }
+    }
+
+    /**
+     * Ouvre, pour le thread courant, une portee dans laquelle les lectures FormServices sont partagees.
+     */
+    public SharedLookups shareLookups() {
+        SharedLookups lookups = new SharedLookups();
+        sharedLookups.set(lookups);
+        return lookups;
+    }
+
+    /**
+     * Compte une lecture partagee, trouvee ou non : metrique "enu.mediation.cache.gets".
+     */
+    private void countLookup(String cache, boolean hit) {
+        meterRegistry.counter("enu.mediation.cache.gets", "cache", cache, "result", hit ? "hit" : "miss").increment();
+    }
 
     /**
      * Pour Spring WebClient: erreurs 4xx
@@ -94,12 +169,22 @@ public class FormServicesApi {
     /**
      * API Jway Formsolutions GET /file
      */
-    public File getFile(String demarcheId, String userId) throws NotFoundException {
+    public FileSummary getFile(String demarcheId, String userId) throws NotFoundException {
+        SharedLookups lookups = sharedLookups.get();
+        String lookupKey = userId + "|" + demarcheId;
+        if (lookups != null) {
+            boolean hit = lookups.files.containsKey(lookupKey);
+            countLookup("shared-files", hit);
+            if (hit) {
+                log.debug("Jway GET File: demarche [{}] deja lue", demarcheId);
+                return lookups.files.get(lookupKey);
+            }
+        }
         final String SEARCH_PATH = "/file/mine?name=%s&max=1&order=id&reverse=true";
         String path = format(SEARCH_PATH, demarcheId);
         log.debug("Jway GET File: " + path);
 
-        List<File> demarches = getFileList(path,userId);
+        List<FileSummary> demarches = getFileList(path,userId);
 
         if (demarches == null || demarches.isEmpty()) {
             // si on ne trouve pas de demarche, on cherche avec le prefixe "DRAFT"
@@ -109,13 +194,16 @@ public class FormServicesApi {
                 throw new NotFoundException("Démarche introuvable: \"" + demarcheId + "\"");
             }
         }
+        if (lookups != null) {
+            lookups.files.put(lookupKey, demarches.get(0));
+        }
         return demarches.get(0);
     }
 
     /**
-     * Call API Formsolutions
+     * Call API Formsolutions. Seuls les champs de {@link FileSummary} sont decodes.
      */
-    private List<File> getFileList(String path, String userId) {
+    private List<FileSummary> getFileList(String path, String userId) {
         log.debug("Jway GET File List: " + path);
         return formServicesWebClient.get()
                 .uri(path)
@@ -123,74 +211,59 @@ public class FormServicesApi {
                 .retrieve()
                 .onStatus(HttpStatus::is4xxClientError, ClientErrorHandler)
                 .onStatus(HttpStatus::is5xxServerError, ServerErrorHandler)
-                .bodyToMono(new ParameterizedTypeReference<List<File>>(){}).block();
+                .bodyToMono(new ParameterizedTypeReference<List<FileSummary>>(){}).block();
     }
 
     /**
      * API Jway Formsolutions POST /alpha/file
      */
-    public File postFile(File file, String userId) {
-        return postFileData("/alpha/file", file, userId);
+    public FileSummary postFile(File file, String userId) {
+        return sendFileData(HttpMethod.POST, "/alpha/file", file, userId)
+                .bodyToMono(FileSummary.class).block();
     }
 
     /**
-     * API Jway Formsolutions POST /alpha/file/{uid}/step
+     * API Jway Formsolutions POST /alpha/file/{uid}/step.
+     * La demarche renvoyee par FormServices n'est pas exploitee : le corps de la reponse est ignore.
      */
-    public File postFileStep(FileForStep file, String userId, UUID demarcheUuid) {
+    public void postFileStep(FileForStep file, String userId, UUID demarcheUuid) {
         String path = format("/alpha/file/%s/step", demarcheUuid);
-        return postFileData(path, file, userId);
+        evictSharedLookup(demarcheUuid);
+        sendFileData(HttpMethod.POST, path, file, userId)
+                .toBodilessEntity().block();
     }
 
     /**
-     * API Jway Formsolutions PUT /alpha/file/{uid} for workflow
+     * API Jway Formsolutions PUT /alpha/file/{uid} for workflow.
+     * La demarche renvoyee par FormServices n'est pas exploitee : le corps de la reponse est ignore.
      */
-    public File putFileWorkflow(FileForWorkflow file, String userId, UUID demarcheUuid) {
+    public void putFileWorkflow(FileForWorkflow file, String userId, UUID demarcheUuid) {
         String path = format("/alpha/file/%s", demarcheUuid);
-        return putFileData(path, file, userId);
+        evictSharedLookup(demarcheUuid);
+        sendFileData(HttpMethod.PUT, path, file, userId)
+                .toBodilessEntity().block();
     }
 
-    /**
-     * API Jway Formsolutions POST new File
-     */
-    private File postFileData(String path, Object file, String userId) {
-        log.debug("Jway API: POST " + path);
-        File createdFile;
-        try {
-            createdFile = formServicesWebClient.post()
-                    .uri(path)
-                    .header(REMOTE_USER,userId)
-                    .bodyValue(jackson.writeValueAsString(file))
-                    .retrieve()
-                    .onStatus(HttpStatus::is4xxClientError, ClientErrorHandler)
-                    .onStatus(HttpStatus::is5xxServerError, ServerErrorHandler)
-                    .bodyToMono(new ParameterizedTypeReference<File>(){}).block();
-        } catch (JsonProcessingException e) {
-            log.error("JSON marshalling error for file : " + file + " - Jackson error: " + e.getMessage());
-            throw new TechnicalException("Erreur interne mediation - JSON marshalling");
+    private void evictSharedLookup(UUID demarcheUuid) {
+        SharedLookups lookups = sharedLookups.get();
+        if (lookups != null) {
+            lookups.evict(demarcheUuid);
         }
-        return createdFile;
     }
 
     /**
-     * API Jway Formsolutions PUT new date into existing File
+     * API Jway Formsolutions POST new File / PUT new data into existing File.
+     * L'appelant choisit comment lire la reponse : projection ou corps ignore.
      */
-    private File putFileData(String path, Object file, String userId) {
-        log.debug("Jway API: PUT " + path);
-        File updatedFile;
-        try {
-            updatedFile = formServicesWebClient.put()
-                    .uri(path)
-                    .header(REMOTE_USER,userId)
-                    .bodyValue(jackson.writeValueAsString(file))
-                    .retrieve()
-                    .onStatus(HttpStatus::is4xxClientError, ClientErrorHandler)
-                    .onStatus(HttpStatus::is5xxServerError, ServerErrorHandler)
-                    .bodyToMono(new ParameterizedTypeReference<File>(){}).block();
-        } catch (JsonProcessingException e) {
-            log.error("JSON marshalling error for file : " + file + " - Jackson error: " + e.getMessage());
-            throw new TechnicalException("Erreur interne mediation - JSON marshalling");
-        }
-        return updatedFile;
+    private WebClient.ResponseSpec sendFileData(HttpMethod method, String path, Object file, String userId) {
+        log.debug("Jway API: " + method + " " + path);
+        return formServicesWebClient.method(method)
+                .uri(path)
+                .header(REMOTE_USER,userId)
+                .body(jsonBodyWriter.body(file))
+                .retrieve()
+                .onStatus(HttpStatus::is4xxClientError, ClientErrorHandler)
+                .onStatus(HttpStatus::is5xxServerError, ServerErrorHandler);
     }
 
     /**
@@ -208,11 +281,11 @@ public class FormServicesApi {
     /**
      * API Jway Formsolutions POST new binary document attached to existing File
      */
-    public void postDocumentBinaire(DocumentUsagerBinaire newDocument, String demarcheUuid, String userId) {
+    public void postDocumentBinaire(DocumentUsagerBinaire newDocument, DecodedContent content, String demarcheUuid, String userId) {
         String path = format("/document/ds/%s/attachment", demarcheUuid);
         log.debug("Jway API: POST {} for user [{}]", path, userId);
         String csrfToken = getCsrfToken(userId);
-        Document result = postDocumentFormData(path, csrfToken, userId, newDocumentToJwayMapper.map(newDocument, csrfToken));
+        Document result = postDocumentFormData(path, csrfToken, userId, newDocumentToJwayMapper.map(newDocument, csrfToken, content));
         log.debug("Document " + result.getUuid() + " créé pour la démarche " + demarcheUuid + ".");
     }
 
@@ -223,32 +296,146 @@ public class FormServicesApi {
         String path = "/alpha/document";
         log.debug("Jway API: POST {} for user [{}]", path, userId);
         String csrfToken = getCsrfToken(userId);
-        AtomicInteger index = new AtomicInteger(0);
-        courrier.documents.stream()
-                .map(courrierDoc -> courrierDocumentToJwayMapper.map(courrier, courrierDoc, demarcheUuid, csrfToken, index.getAndIncrement()))
-                .forEach(doc -> {
-                    Document result = postDocumentFormData(path, csrfToken, userId, doc);
-                    log.debug("Courrier " + result.getUuid() + " créé pour l'utilisateur " + userId + ".");
-                });
+        postCourrierDocuments(path, csrfToken, userId, courrier.documents.size(), 0,
+                () -> courrierDocumentToJwayMapper.mapBatch(courrier, demarcheUuid, csrfToken),
+                index -> courrierDocumentToJwayMapper.map(courrier, courrier.documents.get(index), demarcheUuid, csrfToken, index));
     }
 
-    public void postCourrierBinaire(CourrierBinaire courrierBinaire, String demarcheUuid, String userId) {
+    /**
+     * @param contents les contenus des documents, dans l'ordre des documents
+     */
+    public void postCourrierBinaire(CourrierBinaire courrierBinaire, List<DecodedContent> contents, String demarcheUuid, String userId) {
         String path = "/alpha/document";
         log.debug("Jway API: POST {} for user [{}]", path, userId);
         String csrfToken = getCsrfToken(userId);
-        AtomicInteger index = new AtomicInteger(0);
-        courrierBinaire.documents.stream()
-                .map(courrierDoc -> courrierDocumentToJwayMapper.map(courrierBinaire, courrierDoc, demarcheUuid, csrfToken, index.getAndIncrement()))
-                .forEach(doc -> {
-                    Document result = postDocumentFormData(path, csrfToken, userId, doc);
-                    log.debug("Courrier " + result.getUuid() + " créé pour l'utilisateur " + userId + ".");
-                });
+        long totalSize = contents.stream().mapToLong(DecodedContent::getSize).sum();
+        postCourrierDocuments(path, csrfToken, userId, courrierBinaire.documents.size(), totalSize,
+                () -> courrierDocumentToJwayMapper.mapBatch(courrierBinaire, demarcheUuid, csrfToken, contents),
+                index -> courrierDocumentToJwayMapper.map(courrierBinaire, courrierBinaire.documents.get(index), demarcheUuid, csrfToken, index, contents.get(index)));
+    }
+
+    /**
+     * Envoie les documents d'un courrier : en une seule requete multipart si le mode "courrier-batch-upload" est actif,
+     * que le courrier a plusieurs documents et que leur taille totale ne depasse pas "courrier-batch-max-size" ;
+     * sinon (ou si FormServices ne connait pas l'envoi groupe) une requete par document.
+     * @param totalSize la taille totale des contenus des documents
+     */
+    private void postCourrierDocuments(String path,
+                                       String csrfToken,
+                                       String userId,
+                                       int nbDocuments,
+                                       long totalSize,
+                                       Supplier<MultiValueMap<String, HttpEntity<?>>> batchBody,
+                                       IntFunction<MultiValueMap<String, HttpEntity<?>>> documentBody) {
+        if (nbDocuments > 1 && courrierBatchUpload && !courrierBatchUnsupported.get() && totalSize <= courrierBatchMaxSize
+                && postCourrierBatch(path, csrfToken, userId, nbDocuments, batchBody.get())) {
+            return;
+        }
+        for (int index = 0; index < nbDocuments; index++) {
+            Document result = postDocumentFormData(path, csrfToken, userId, documentBody.apply(index));
+            log.debug("Courrier " + result.getUuid() + " créé pour l'utilisateur " + userId + ".");
+        }
+    }
+
+    /**
+     * Envoie tous les documents d'un courrier dans une seule requete multipart.
+     * FormServices doit repondre par la liste des documents crees, un par document envoye.
+     * @return true si tous les documents ont ete crees, false si FormServices ne connait pas l'envoi groupe
+     * (aucun document cree : ils restent a envoyer un par un)
+     * @throws TechnicalException si la reponse ne permet pas de savoir quels documents ont ete crees : les renvoyer
+     * un par un risquerait de les dupliquer
+     */
+    private boolean postCourrierBatch(String path,
+                                      String csrfToken,
+                                      String userId,
+                                      int nbDocuments,
+                                      MultiValueMap<String, HttpEntity<?>> doc) {
+        JsonNode result = formServicesWebClient.post()
+                .uri(path)
+                .header(X_CSRF_TOKEN, csrfToken)
+                .header(REMOTE_USER,userId)
+                .contentType(MediaType.MULTIPART_FORM_DATA)
+                .bodyValue(doc)
+                .exchangeToMono(response -> {
+                    if (isBatchUnsupported(response.statusCode())) {
+                        return response.releaseBody().then(Mono.<JsonNode>empty());
+                    }
+                    if (response.statusCode() == HttpStatus.NOT_FOUND) {
+                        // corps illisible (page HTML d'un proxy...) : traite comme un corps sans erreur Jway
+                        return response.bodyToMono(JsonNode.class)
+                                .onErrorResume(e -> Mono.empty())
+                                .defaultIfEmpty(MissingNode.getInstance())
+                                .flatMap(FormServicesApi::courrierBatchNotFound);
+                    }
+                    if (response.statusCode().is4xxClientError()) {
+                        return ClientErrorHandler.apply(response).flatMap(Mono::<JsonNode>error);
+                    }
+                    if (response.statusCode().is5xxServerError()) {
+                        return ServerErrorHandler.apply(response).flatMap(Mono::<JsonNode>error);
+                    }
+                    return response.bodyToMono(JsonNode.class).defaultIfEmpty(MissingNode.getInstance());
+                })
+                .block();
+
+        if (result == null) {
+            courrierBatchUnsupported.set(true);
+            log.warn("Envoi groupe des documents de courrier non supporte par FormServices. Retour a l'envoi document par document");
+            return false;
+        }
+        if (result.isArray() && result.size() == nbDocuments && allHaveUuid(result)) {
+            result.forEach(created -> log.debug("Courrier " + created.path("uuid").asText() + " créé pour l'utilisateur " + userId + "."));
+            return true;
+        }
+        log.error("Reponse inattendue de FormServices a l'envoi groupe de {} documents de courrier : {}."
+                + " Si FormServices ne supporte pas cet envoi, desactiver app.formservices.courrier-batch-upload", nbDocuments, result);
+        throw new TechnicalException("Envoi groupe des documents de courrier : FormServices n'a pas rendu les "
+                + nbDocuments + " documents crees ; documents non renvoyes un par un pour eviter des doublons");
+    }
+
+    /**
+     * Statuts par lesquels FormServices signale qu'il ne connait pas l'envoi groupe, sans avoir rien cree.
+     * Un 404 n'en fait pas partie : voir {@link #courrierBatchNotFound}.
+     */
+    private static boolean isBatchUnsupported(HttpStatus status) {
+        return status == HttpStatus.METHOD_NOT_ALLOWED
+                || status == HttpStatus.UNSUPPORTED_MEDIA_TYPE;
+    }
+
+    /**
+     * Reponse 404 a l'envoi groupe. Sans erreur Jway dans son corps, elle vient d'une route inconnue : FormServices
+     * ne connait pas l'envoi groupe (Mono vide). Avec une erreur Jway, c'est le courrier qui est en cause (fileUuid ou
+     * tag inconnu...) : erreur client ordinaire, qui ne doit pas desactiver l'envoi groupe des autres courriers.
+     */
+    private static Mono<JsonNode> courrierBatchNotFound(JsonNode body) {
+        String message = body.path("message").asText("").trim();
+        if (message.isEmpty() || NO_ERROR_MESSAGE.equals(message)) {
+            return Mono.empty();
+        }
+        log.error("Client error {} a l'envoi groupe des documents de courrier : {}", HttpStatus.NOT_FOUND, body);
+        return Mono.error(new ValidationException("Client error " + HttpStatus.NOT_FOUND + " : " + message));
+    }
+
+    private static boolean allHaveUuid(JsonNode documents) {
+        for (JsonNode document : documents) {
+            if (document.path("uuid").asText("").isEmpty()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
      * Gets the CSRF token for POST/PUT queries
      */
     private String getCsrfToken(String userId) {
+        SharedLookups lookups = sharedLookups.get();
+        if (lookups != null) {
+            boolean hit = lookups.csrfTokens.containsKey(userId);
+            countLookup("shared-csrf-tokens", hit);
+            if (hit) {
+                return lookups.csrfTokens.get(userId);
+            }
+        }
         ResponseEntity<Void> response = formServicesWebClient.head()
                 .uri(CSRF_PATH)
                 .header(REMOTE_USER,userId)
@@ -259,6 +446,9 @@ public class FormServicesApi {
                 .toBodilessEntity().block();
         String csrfToken = Objects.requireNonNull(Objects.requireNonNull(response).getHeaders().get(X_CSRF_TOKEN)).get(0);
         log.debug("Jeton CSRF obtenu = [{}]", csrfToken);
+        if (lookups != null) {
+            lookups.csrfTokens.put(userId, csrfToken);
+        }
         return csrfToken;
     }
 
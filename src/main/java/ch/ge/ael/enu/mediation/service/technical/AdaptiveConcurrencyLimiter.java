@@ -0,0 +1,235 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import ch.ge.ael.enu.mediation.MainRouter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.listener.DirectMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ajuste dynamiquement le nombre de consommateurs RabbitMQ et leur prefetch en fonction de la sante de FormServices,
+ * selon le principe AIMD (additive increase, multiplicative decrease) :
+ * <ul>
+ *     <li>si, sur la derniere periode, la latence moyenne des appels a FormServices depasse la cible ou si le taux
+ *     d'erreurs depasse le seuil, la limite est multipliee par un facteur de recul ;</li>
+ *     <li>sinon elle est augmentee de 1, jusqu'au maximum configure.</li>
+ * </ul>
+ * Seul le conteneur du {@link MainRouter} (traitement message par message) est ajuste. Le mode par lots et le mode
+ * files de traitement, qui ont leur propre conteneur et leur propre prefetch, sont incompatibles avec cet ajustement :
+ * l'application refuse de demarrer si l'un d'eux est active en meme temps.
+ * Le prefetch s'applique a chaque consommateur : le nombre de messages non acquittes est donc au plus
+ * limite x prefetch par consommateur. Un consommateur garde le prefetch qu'il avait a sa creation ; les consommateurs
+ * demarres avant la prise en main du conteneur par le limiteur sont donc redemarres une fois, au demarrage.
+ */
+@Component
+@Slf4j
+public class AdaptiveConcurrencyLimiter implements DisposableBean {
+
+    private static final int MAX_CHANGES_KEPT = 20;
+
+    /**
+     * Un changement de limite, avec sa raison.
+     */
+    @Getter
+    @RequiredArgsConstructor
+    public static class Change {
+        private final LocalDateTime date;
+        private final int from;
+        private final int to;
+        private final String reason;
+    }
+
+    private final RabbitListenerEndpointRegistry listenerRegistry;
+
+    @Getter
+    private final boolean enabled;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long targetLatencyMillis;
+    private final double maxErrorRate;
+    private final double backoffRatio;
+    private final int prefetchPerConsumer;
+    private final long intervalMillis;
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+
+    @Getter
+    private volatile int limit;
+
+    private final Deque<Change> changes = new ArrayDeque<>();
+
+    private ScheduledExecutorService scheduler;
+
+    public AdaptiveConcurrencyLimiter(RabbitListenerEndpointRegistry listenerRegistry,
+                                      MeterRegistry meterRegistry,
+                                      @Value("${app.concurrency.adaptive.enabled:false}") boolean enabled,
+                                      @Value("${app.concurrency.adaptive.min:1}") int minLimit,
+                                      @Value("${app.concurrency.adaptive.max:8}") int maxLimit,
+                                      @Value("${app.concurrency.adaptive.target-latency:500}") long targetLatencyMillis,
+                                      @Value("${app.concurrency.adaptive.max-error-rate:0.05}") double maxErrorRate,
+                                      @Value("${app.concurrency.adaptive.backoff-ratio:0.75}") double backoffRatio,
+                                      @Value("${app.concurrency.adaptive.prefetch-per-consumer:10}") int prefetchPerConsumer,
+                                      @Value("${app.concurrency.adaptive.interval:10000}") long intervalMillis,
+                                      @Value("${app.rabbitmq.batch.enabled:false}") boolean batchEnabled,
+                                      @Value("${app.lanes.enabled:false}") boolean lanesEnabled) {
+        if (enabled && (batchEnabled || lanesEnabled)) {
+            throw new IllegalStateException("app.concurrency.adaptive.enabled ne s'applique qu'au traitement message par message :"
+                    + " incompatible avec app.rabbitmq.batch.enabled et app.lanes.enabled");
+        }
+        this.listenerRegistry = listenerRegistry;
+        this.enabled = enabled;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.targetLatencyMillis = targetLatencyMillis;
+        this.maxErrorRate = maxErrorRate;
+        this.backoffRatio = backoffRatio;
+        this.prefetchPerConsumer = prefetchPerConsumer;
+        this.intervalMillis = intervalMillis;
+        this.limit = minLimit;
+        Gauge.builder("enu.mediation.concurrency.limit", this, AdaptiveConcurrencyLimiter::getLimit)
+                .description("Nombre courant de consommateurs RabbitMQ autorises")
+                .register(meterRegistry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        log.info("Concurrence adaptative : entre {} et {} consommateurs, latence cible {} ms", minLimit, maxLimit, targetLatencyMillis);
+        apply(limit, false);
+        MessageListenerContainer container = listenerRegistry.getListenerContainer(MainRouter.LISTENER_ID);
+        if (container instanceof SimpleMessageListenerContainer && container.isRunning()) {
+            // les consommateurs deja demarres ont le prefetch de la fabrique de conteneurs
+            container.stop();
+            container.start();
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("concurrency-limiter-"));
+        scheduler.scheduleWithFixedDelay(this::adjust, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Enregistre un appel a FormServices.
+     * @param error true si l'appel a echoue pour une raison imputable a FormServices (5xx, delai, connexion)
+     */
+    public void record(long latencyNanos, boolean error) {
+        calls.increment();
+        totalLatencyNanos.add(latencyNanos);
+        if (error) {
+            errors.increment();
+        }
+    }
+
+    /**
+     * Les derniers changements de limite, du plus recent au plus ancien.
+     */
+    public List<Change> getChanges() {
+        synchronized (changes) {
+            return new ArrayList<>(changes);
+        }
+    }
+
+    void adjust() {
+        long callCount = calls.sumThenReset();
+        long errorCount = errors.sumThenReset();
+        long latencyNanos = totalLatencyNanos.sumThenReset();
+        if (callCount == 0) {
+            return;
+        }
+        long averageLatencyMillis = TimeUnit.NANOSECONDS.toMillis(latencyNanos / callCount);
+        double errorRate = (double) errorCount / callCount;
+
+        int current = limit;
+        int next;
+        String reason;
+        if (errorRate > maxErrorRate) {
+            next = Math.max(minLimit, (int) (current * backoffRatio));
+            reason = String.format("taux d'erreurs FormServices %.1f %% > %.1f %%", errorRate * 100, maxErrorRate * 100);
+        } else if (averageLatencyMillis > targetLatencyMillis) {
+            next = Math.max(minLimit, (int) (current * backoffRatio));
+            reason = "latence moyenne FormServices " + averageLatencyMillis + " ms > " + targetLatencyMillis + " ms";
+        } else {
+            next = Math.min(maxLimit, current + 1);
+            reason = "latence moyenne FormServices " + averageLatencyMillis + " ms, taux d'erreurs " + String.format("%.1f %%", errorRate * 100);
+        }
+        if (next != current) {
+            log.info("Concurrence adaptative : {} -> {} consommateurs ({})", current, next, reason);
+            synchronized (changes) {
+                changes.addFirst(new Change(LocalDateTime.now(), current, next, reason));
+                if (changes.size() > MAX_CHANGES_KEPT) {
+                    changes.removeLast();
+                }
+            }
+            limit = next;
+            apply(next, next > current);
+        }
+    }
+
+    private void apply(int consumers, boolean increase) {
+        MessageListenerContainer container = listenerRegistry.getListenerContainer(MainRouter.LISTENER_ID);
+        if (container instanceof SimpleMessageListenerContainer) {
+            SimpleMessageListenerContainer simpleContainer = (SimpleMessageListenerContainer) container;
+            simpleContainer.setPrefetchCount(prefetchPerConsumer);
+            // le maximum ne peut pas etre inferieur au nombre courant de consommateurs, d'ou l'ordre des appels
+            if (increase) {
+                simpleContainer.setMaxConcurrentConsumers(consumers);
+                simpleContainer.setConcurrentConsumers(consumers);
+            } else {
+                simpleContainer.setConcurrentConsumers(consumers);
+                simpleContainer.setMaxConcurrentConsumers(consumers);
+            }
+        } else if (container instanceof DirectMessageListenerContainer) {
+            DirectMessageListenerContainer directContainer = (DirectMessageListenerContainer) container;
+            directContainer.setPrefetchCount(prefetchPerConsumer);
+            directContainer.setConsumersPerQueue(consumers);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import ch.ge.ael.enu.mediation.exception.IllegalMessageException;
+import ch.ge.ael.enu.mediation.util.hash.HashAlgorithm;
+import lombok.Getter;
+
+/**
+ * Reference a un contenu du depot de contenus, a la place du contenu base64 dans le champ "contenu" d'un document :
+ * <code>enu-blob:&lt;clef&gt;;&lt;algorithme&gt;=&lt;empreinte&gt;</code>,
+ * par exemple <code>enu-blob:afc/2021/decision-123.pdf;SHA-256=9f86d081884c7d65...</code>.
+ * Le prefixe "enu-blob:" ne peut pas etre confondu avec du base64, qui ne contient ni "-" ni ":".
+ * L'empreinte est obligatoire : le contenu lu dans le depot est verifie avant l'envoi a FormServices.
+ */
+@Getter
+public class BlobReference {
+
+    public static final String PREFIX = "enu-blob:";
+
+    private final String key;
+
+    private final HashAlgorithm algorithm;
+
+    private final String hash;
+
+    private BlobReference(String key, HashAlgorithm algorithm, String hash) {
+        this.key = key;
+        this.algorithm = algorithm;
+        this.hash = hash;
+    }
+
+    public static boolean isReference(String contenu) {
+        return contenu != null && contenu.startsWith(PREFIX);
+    }
+
+    public static BlobReference parse(String contenu) throws IllegalMessageException {
+        int separator = contenu.lastIndexOf(';');
+        int equals = contenu.indexOf('=', separator + 1);
+        if (separator <= PREFIX.length() || equals < 0) {
+            throw new IllegalMessageException("Reference de contenu invalide [" + contenu + "]. Format attendu : "
+                    + PREFIX + "<clef>;<algorithme>=<empreinte>");
+        }
+        String label = contenu.substring(separator + 1, equals);
+        HashAlgorithm algorithm = HashAlgorithm.fromLabel(label);
+        if (algorithm == null) {
+            throw new IllegalMessageException("Reference de contenu [" + contenu + "] : l'algorithme d'empreinte ["
+                    + label + "] n'est pas supporte. Valeurs acceptees : SHA-256, SHA-512, MD5");
+        }
+        String hash = contenu.substring(equals + 1);
+        if (algorithm.parseHash(hash) == null) {
+            throw new IllegalMessageException("Reference de contenu [" + contenu + "] : l'empreinte [" + hash
+                    + "] n'est pas une empreinte " + label + " valide");
+        }
+        return new BlobReference(contenu.substring(PREFIX.length(), separator), algorithm, hash);
+    }
+
+}
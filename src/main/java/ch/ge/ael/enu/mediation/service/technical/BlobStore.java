@@ -0,0 +1,42 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import ch.ge.ael.enu.mediation.exception.IllegalMessageException;
+import ch.ge.ael.enu.mediation.exception.NotFoundException;
+
+import java.io.InputStream;
+
+/**
+ * Depot de contenus de documents, pour le mode "claim-check" : au lieu du contenu base64, le message du SI metier
+ * porte dans le champ "contenu" une reference a un contenu depose au prealable dans ce depot.
+ * Voir {@link BlobReference}.
+ */
+public interface BlobStore {
+
+    /**
+     * Lecture du contenu de clef donnee, a fermer par l'appelant.
+     * Le contenu n'est lu qu'une fois : la mediation le recopie (voir {@link ContentSpool#copy}) en calculant son
+     * empreinte, et n'envoie a FormServices que cette copie verifiee.
+     * @throws IllegalMessageException si la clef n'est pas acceptable pour ce depot
+     * @throws NotFoundException si aucun contenu n'a cette clef
+     */
+    InputStream open(String key) throws IllegalMessageException, NotFoundException;
+
+}
@@ -0,0 +1,236 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import ch.ge.ael.enu.mediation.exception.TechnicalException;
+import ch.ge.ael.enu.mediation.util.codec.Base64Decoder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Decodage du contenu base64 des documents binaires.
+ * Au-dela d'une taille seuil, le contenu decode n'est pas garde en memoire mais ecrit dans un fichier temporaire
+ * du repertoire de spool ; l'upload vers FormServices lit alors ce fichier. Le heap n'a ainsi plus a etre
+ * dimensionne pour le plus gros document possible.
+ * <p>
+ * Le repertoire de spool pouvant etre partage par plusieurs instances, chaque instance ecrit dans son propre
+ * sous-repertoire, supprime a l'arret. Tant qu'elle tourne, l'instance garde un verrou sur le fichier ".lock" de son
+ * sous-repertoire : le verrou est libere par le systeme meme en cas d'arret brutal. Au demarrage, seuls les fichiers
+ * residuels anciens des instances arretees sont supprimes ; le sous-repertoire d'une instance en cours n'est jamais
+ * touche, meme inactif depuis longtemps.
+ */
+@Component
+@Slf4j
+public class ContentSpool implements DisposableBean {
+
+    private static final String FILE_PREFIX = "enu-document-";
+
+    private static final String INSTANCE_PREFIX = "instance-";
+
+    private static final String LOCK_FILE = ".lock";
+
+    /**
+     * Age au-dela duquel un fichier de spool d'une autre instance est considere comme residuel.
+     */
+    private static final Duration LEFTOVER_AGE = Duration.ofHours(24);
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final long threshold;
+
+    /**
+     * Sous-repertoire propre a cette instance.
+     */
+    private final Path directory;
+
+    /**
+     * Verrou signalant aux autres instances que le sous-repertoire est utilise.
+     */
+    private final FileChannel lock;
+
+    public ContentSpool(@Value("${app.document.spool.threshold:1048576}") long threshold,
+                        @Value("${app.document.spool.directory:${java.io.tmpdir}/enu-mediation}") String directory) throws IOException {
+        this.threshold = threshold;
+        Path root = Paths.get(directory);
+        Files.createDirectories(root);
+        deleteLeftovers(root);
+        this.directory = Files.createDirectories(root.resolve(INSTANCE_PREFIX + UUID.randomUUID()));
+        this.lock = FileChannel.open(this.directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        lock.lock();
+        log.info("Spool des documents : repertoire [{}], seuil {} octets", this.directory, threshold);
+    }
+
+    /**
+     * Fichiers laisses par un arret brutal d'une instance, ou d'une version anterieure qui ecrivait directement dans
+     * le repertoire de spool.
+     */
+    private static void deleteLeftovers(Path root) throws IOException {
+        Instant limit = Instant.now().minus(LEFTOVER_AGE);
+        deleteOldFiles(root, limit);
+        try (DirectoryStream<Path> instances = Files.newDirectoryStream(root, INSTANCE_PREFIX + "*")) {
+            for (Path instance : instances) {
+                if (!Files.isDirectory(instance) || isLive(instance)) {
+                    continue;
+                }
+                // date lue avant la purge, qui la met a jour ; elle protege aussi une instance qui demarre et n'a pas
+                // encore pris son verrou
+                boolean old = Files.getLastModifiedTime(instance).toInstant().isBefore(limit);
+                if (deleteOldFiles(instance, limit) && old) {
+                    Files.deleteIfExists(instance.resolve(LOCK_FILE));
+                    Files.deleteIfExists(instance);
+                }
+            }
+        }
+    }
+
+    /**
+     * Indique si le sous-repertoire est celui d'une instance en cours, c'est-a-dire si son verrou est pris.
+     */
+    private static boolean isLive(Path instance) throws IOException {
+        Path lockFile = instance.resolve(LOCK_FILE);
+        if (!Files.exists(lockFile)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE)) {
+            return channel.tryLock() == null;
+        } catch (OverlappingFileLockException e) {
+            // verrou pris par une autre instance de la meme JVM
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true si le repertoire ne contient plus de fichier de spool
+     */
+    private static boolean deleteOldFiles(Path dir, Instant limit) throws IOException {
+        boolean empty = true;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, FILE_PREFIX + "*")) {
+            for (Path file : files) {
+                if (Files.getLastModifiedTime(file).toInstant().isBefore(limit)) {
+                    log.info("Suppression du fichier de spool residuel [{}]", file);
+                    Files.deleteIfExists(file);
+                } else {
+                    empty = false;
+                }
+            }
+        }
+        return empty;
+    }
+
+    /**
+     * Decode le contenu base64 d'un document, en memoire ou dans un fichier de spool selon sa taille.
+     * @throws IllegalArgumentException si le contenu n'est pas du base64 valide
+     */
+    public DecodedContent decode(String base64) {
+        Objects.requireNonNull(base64, "contenu");
+        int size = Base64Decoder.decodedLength(base64);
+        if (size <= threshold) {
+            return DecodedContent.inMemory(Base64Decoder.decode(base64));
+        }
+
+        Path file = null;
+        try {
+            file = Files.createTempFile(directory, FILE_PREFIX, ".bin");
+            long written;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+                 OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE)) {
+                written = Base64Decoder.decode(base64, out);
+            }
+            log.debug("Contenu de {} octets ecrit dans le fichier de spool [{}]", written, file);
+            return DecodedContent.spooled(file, written);
+        } catch (IOException | RuntimeException e) {
+            if (file != null) {
+                DecodedContent.spooled(file, 0).close();
+            }
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            throw new TechnicalException("Erreur d'ecriture dans le repertoire de spool " + directory + " : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Recopie un contenu, en memoire ou dans un fichier de spool selon sa taille, en une seule lecture du flux.
+     * L'appelant peut ainsi calculer l'empreinte du contenu pendant la copie (DigestInputStream).
+     */
+    public DecodedContent copy(InputStream in) throws IOException {
+        byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int count = 0;
+        while (head.size() <= threshold && (count = in.read(buffer)) >= 0) {
+            head.write(buffer, 0, count);
+        }
+        if (count < 0) {
+            return DecodedContent.inMemory(head.toByteArray());
+        }
+
+        Path file = Files.createTempFile(directory, FILE_PREFIX, ".bin");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), WRITE_BUFFER_SIZE)) {
+            head.writeTo(out);
+            long written = head.size();
+            while ((count = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, count);
+                written += count;
+            }
+            log.debug("Contenu de {} octets recopie dans le fichier de spool [{}]", written, file);
+            return DecodedContent.spooled(file, written);
+        } catch (IOException | RuntimeException e) {
+            DecodedContent.spooled(file, 0).close();
+            throw e;
+        }
+    }
+
+    /**
+     * Les uploads sont termines a l'arret : le sous-repertoire de l'instance est supprime.
+     */
+    @Override
+    public void destroy() throws IOException {
+        lock.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+}
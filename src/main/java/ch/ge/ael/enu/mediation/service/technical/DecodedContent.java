@@ -0,0 +1,155 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import ch.ge.ael.enu.mediation.mapping.AbstractDocumentToJwayMapper.CustomByteArrayResource;
+import ch.ge.ael.enu.mediation.mapping.AbstractDocumentToJwayMapper.CustomFileSystemResource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.Resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Contenu d'un document binaire, decode (ou recopie depuis le depot de contenus) en memoire ou dans un fichier
+ * du repertoire de spool.
+ * Le fichier de spool eventuel est supprime a la fermeture : a utiliser dans un try-with-resources englobant l'upload.
+ */
+@Slf4j
+public abstract class DecodedContent implements AutoCloseable {
+
+    private final long size;
+
+    private DecodedContent(long size) {
+        this.size = size;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Le contenu, sous le nom de fichier donne, pour la requete multipart.
+     */
+    public abstract Resource asResource(String fileName);
+
+    /**
+     * Lecture du contenu.
+     */
+    public abstract InputStream newInputStream() throws IOException;
+
+    /**
+     * Les premiers octets du contenu (au plus maxBytes), par exemple pour reconnaitre son type.
+     */
+    public abstract byte[] head(int maxBytes);
+
+    @Override
+    public abstract void close();
+
+    static DecodedContent inMemory(byte[] bytes) {
+        return new InMemory(bytes);
+    }
+
+    static DecodedContent spooled(Path file, long size) {
+        return new InFile(file, size);
+    }
+
+    private static class InMemory extends DecodedContent {
+
+        private final byte[] bytes;
+
+        private InMemory(byte[] bytes) {
+            super(bytes.length);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public Resource asResource(String fileName) {
+            return new CustomByteArrayResource(bytes, fileName);
+        }
+
+        @Override
+        public InputStream newInputStream() {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public byte[] head(int maxBytes) {
+            return Arrays.copyOf(bytes, Math.min(maxBytes, bytes.length));
+        }
+
+        @Override
+        public void close() {
+            // rien a liberer
+        }
+    }
+
+    private static class InFile extends DecodedContent {
+
+        private final Path file;
+
+        private InFile(Path file, long size) {
+            super(size);
+            this.file = file;
+        }
+
+        @Override
+        public Resource asResource(String fileName) {
+            return new CustomFileSystemResource(file, fileName);
+        }
+
+        @Override
+        public InputStream newInputStream() throws IOException {
+            return Files.newInputStream(file);
+        }
+
+        @Override
+        public byte[] head(int maxBytes) {
+            byte[] head = new byte[(int) Math.min(maxBytes, getSize())];
+            try (InputStream in = newInputStream()) {
+                int read = 0;
+                while (read < head.length) {
+                    int count = in.read(head, read, head.length - read);
+                    if (count < 0) {
+                        return Arrays.copyOf(head, read);
+                    }
+                    read += count;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return head;
+        }
+
+        @Override
+        public void close() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("Impossible de supprimer le fichier de spool [{}] : {}", file, e.getMessage());
+            }
+        }
+    }
+
+}
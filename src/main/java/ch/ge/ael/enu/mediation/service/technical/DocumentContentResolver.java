@@ -0,0 +1,87 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import ch.ge.ael.enu.mediation.exception.IllegalMessageException;
+import ch.ge.ael.enu.mediation.exception.NotFoundException;
+import ch.ge.ael.enu.mediation.exception.TechnicalException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
+/**
+ * Obtention du contenu d'un document binaire a partir de son champ "contenu" : decodage du base64, ou, si le champ
+ * contient une {@link BlobReference}, copie depuis le depot de contenus et verification de l'empreinte.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class DocumentContentResolver {
+
+    private final ContentSpool contentSpool;
+
+    private final ObjectProvider<BlobStore> blobStore;
+
+    /**
+     * A fermer une fois l'upload termine.
+     */
+    public DecodedContent resolve(String idDocumentSiMetier, String contenu) throws IllegalMessageException, NotFoundException {
+        if (contenu == null) {
+            throw new IllegalMessageException("Document [" + idDocumentSiMetier + "] : le contenu est absent");
+        }
+        if (BlobReference.isReference(contenu)) {
+            return fromBlobStore(idDocumentSiMetier, BlobReference.parse(contenu));
+        }
+        try {
+            return contentSpool.decode(contenu);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalMessageException("Document [" + idDocumentSiMetier + "] : le contenu n'est pas du base64 valide");
+        }
+    }
+
+    private DecodedContent fromBlobStore(String idDocumentSiMetier, BlobReference reference) throws IllegalMessageException, NotFoundException {
+        BlobStore store = blobStore.getIfAvailable();
+        if (store == null) {
+            throw new IllegalMessageException("Document [" + idDocumentSiMetier + "] : reference de contenu [" + reference.getKey()
+                    + "] recue, mais aucun depot de contenus n'est configure (app.blob-store.directory)");
+        }
+        // une seule lecture du depot : l'empreinte est calculee pendant la copie, et seule la copie verifiee est envoyee
+        MessageDigest digest = reference.getAlgorithm().newMessageDigest();
+        DecodedContent content;
+        try (InputStream in = new DigestInputStream(store.open(reference.getKey()), digest)) {
+            content = contentSpool.copy(in);
+        } catch (IOException e) {
+            throw new TechnicalException("Lecture du contenu [" + reference.getKey() + "] impossible : " + e.getMessage());
+        }
+        if (!reference.getAlgorithm().matches(digest.digest(), reference.getHash())) {
+            content.close();
+            throw new IllegalMessageException("Document [" + idDocumentSiMetier + "] : l'empreinte du contenu ["
+                    + reference.getKey() + "] ne correspond pas a l'empreinte annoncee");
+        }
+        log.debug("Contenu [{}] de {} octets lu dans le depot de contenus", reference.getKey(), content.getSize());
+        return content;
+    }
+
+}
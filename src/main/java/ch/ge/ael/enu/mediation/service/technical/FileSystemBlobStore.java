@@ -0,0 +1,79 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import ch.ge.ael.enu.mediation.exception.IllegalMessageException;
+import ch.ge.ael.enu.mediation.exception.NotFoundException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.regex.Pattern;
+
+/**
+ * Depot de contenus dans un repertoire local (typiquement un partage monte a la fois par le SI metier et par
+ * la mediation). La clef est le chemin du fichier relativement a ce repertoire.
+ */
+@Component
+@ConditionalOnProperty(prefix = "app.blob-store", name = "directory")
+@Slf4j
+public class FileSystemBlobStore implements BlobStore {
+
+    /**
+     * Segments de chemin separes par des "/", sans "." ni ".." : la clef ne peut pas sortir du repertoire.
+     */
+    private static final Pattern KEY_PATTERN = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]*(/[A-Za-z0-9_-][A-Za-z0-9._-]*)*");
+
+    private final Path root;
+
+    public FileSystemBlobStore(@Value("${app.blob-store.directory}") String directory) throws IOException {
+        root = Paths.get(directory).toRealPath();
+        log.info("Depot de contenus : repertoire [{}]", root);
+    }
+
+    @Override
+    public InputStream open(String key) throws IllegalMessageException, NotFoundException {
+        if (!KEY_PATTERN.matcher(key).matches()) {
+            throw new IllegalMessageException("Clef de contenu invalide [" + key + "]");
+        }
+        Path file = root.resolve(key).normalize();
+        if (!file.startsWith(root)) {
+            throw new IllegalMessageException("Clef de contenu invalide [" + key + "]");
+        }
+        if (!Files.isRegularFile(file)) {
+            throw new NotFoundException("Aucun contenu de clef [" + key + "] dans le depot de contenus");
+        }
+        try {
+            // un lien symbolique ne doit pas non plus permettre de sortir du repertoire
+            if (!file.toRealPath().startsWith(root)) {
+                throw new IllegalMessageException("Clef de contenu invalide [" + key + "]");
+            }
+            return Files.newInputStream(file);
+        } catch (IOException e) {
+            throw new NotFoundException("Contenu de clef [" + key + "] illisible : " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import ch.ge.ael.enu.mediation.service.technical.jfr.FlightEvent;
+import ch.ge.ael.enu.mediation.service.technical.jfr.FlightEvents;
+import ch.ge.ael.enu.mediation.service.technical.tracing.MessageTracer;
+import ch.ge.ael.enu.mediation.service.technical.tracing.Span;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ch.ge.ael.enu.mediation.model.Header.TRACEPARENT;
+import static ch.ge.ael.enu.mediation.model.Header.X_CORRELATION_ID;
+
+/**
+ * Mesure chaque appel HTTP a FormServices : duree et echec eventuel.
+ * Les appels en erreur 4xx ne sont pas comptes comme des echecs, car ils sont imputables au message et non a FormServices.
+ * <p>
+ * Chaque appel est aussi un span du message en cours de traitement ; le CorrelationId du message et le span
+ * sont transmis a FormServices dans les en-tetes "X-Correlation-Id" et "traceparent".
+ * Les appels etant bloquants, ce filtre s'execute dans le thread qui traite le message.
+ * <p>
+ * Le nombre d'appels en cours est la metrique "enu.mediation.formservices.inflight". Chaque appel est aussi un
+ * evenement JFR (voir {@link FlightEvents}).
+ */
+@Component
+public class FormServicesCallFilter implements ExchangeFilterFunction {
+
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+
+    private final MessageTracer messageTracer;
+
+    private final FlightEvents flightEvents;
+
+    private final HeavyHitters heavyHitters;
+
+    private final AtomicInteger inFlightCalls = new AtomicInteger();
+
+    public FormServicesCallFilter(AdaptiveConcurrencyLimiter concurrencyLimiter, MessageTracer messageTracer,
+                                  FlightEvents flightEvents, HeavyHitters heavyHitters, MeterRegistry meterRegistry) {
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.messageTracer = messageTracer;
+        this.flightEvents = flightEvents;
+        this.heavyHitters = heavyHitters;
+        Gauge.builder("enu.mediation.formservices.inflight", inFlightCalls, AtomicInteger::get)
+                .description("Appels HTTP a FormServices en cours")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Appels HTTP a FormServices en cours, chacun occupant une connexion du pool.
+     */
+    public int getInFlightCalls() {
+        return inFlightCalls.get();
+    }
+
+    @Override
+    public Mono<ClientResponse> filter(ClientRequest request, ExchangeFunction next) {
+        String correlationId = messageTracer.currentCorrelationId();
+        Span span = messageTracer.startChild("FormServices " + request.method(), Span.Kind.CLIENT);
+        if (span != null) {
+            span.attribute("http.method", request.method().name())
+                    .attribute("http.target", request.url().getRawPath());
+        }
+        ClientRequest tracedRequest = correlationId == null && span == null ? request : ClientRequest.from(request)
+                .headers(headers -> {
+                    if (correlationId != null) {
+                        headers.set(X_CORRELATION_ID, correlationId);
+                    }
+                    if (span != null) {
+                        headers.set(TRACEPARENT, span.traceparent());
+                    }
+                })
+                .build();
+        FlightEvent callEvent = flightEvents.formServicesCallStarted(tracedRequest, correlationId);
+        HeavyHitters.Attribution attribution = heavyHitters.current();
+        long start = System.nanoTime();
+        return next.exchange(tracedRequest)
+                .doOnSubscribe(subscription -> inFlightCalls.incrementAndGet())
+                .doFinally(signal -> inFlightCalls.decrementAndGet())
+                .doOnNext(response -> {
+                    long latency = System.nanoTime() - start;
+                    concurrencyLimiter.record(latency, response.statusCode().is5xxServerError());
+                    heavyHitters.formServicesCall(attribution, latency);
+                    flightEvents.formServicesCallCompleted(callEvent, response, null);
+                    if (span != null) {
+                        span.attribute("http.status_code", response.rawStatusCode());
+                        if (response.statusCode().isError()) {
+                            span.fail("HTTP " + response.rawStatusCode());
+                        }
+                        span.end();
+                    }
+                })
+                .doOnError(e -> {
+                    long latency = System.nanoTime() - start;
+                    concurrencyLimiter.record(latency, true);
+                    heavyHitters.formServicesCall(attribution, latency);
+                    flightEvents.formServicesCallCompleted(callEvent, null, e);
+                    if (span != null) {
+                        span.fail(e.getMessage());
+                        span.end();
+                    }
+                });
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import ch.ge.ael.enu.business.domain.v1_0.MessageENU;
+import ch.ge.ael.enu.mediation.util.stats.SpaceSaving;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Les prestations et les usagers qui pesent le plus sur la mediation : nombre de messages, volume des messages et
+ * temps passe dans FormServices. Les identifiants ne sont pas des tags de metriques (cardinalite non bornee) :
+ * chaque mesure est un {@link SpaceSaving} de taille fixe, "app.heavy-hitters.capacity" cles.
+ * <p>
+ * Les poids sont divises par deux toutes les "app.heavy-hitters.half-life" secondes : le classement reflete
+ * l'activite recente. Voir l'endpoint /actuator/heavyhitters.
+ * <p>
+ * Les usagers ne sont suivis que sous un pseudonyme : HMAC-SHA256 de l'idUsager, tronque, avec une cle tiree au
+ * demarrage. Le pseudonyme d'un usager est stable pendant la vie de l'instance mais ne permet pas de retrouver
+ * l'idUsager, qui n'est jamais conserve ni rendu.
+ */
+@Component
+@Slf4j
+public class HeavyHitters {
+
+    public enum Dimension {
+        PRESTATION,
+        USAGER
+    }
+
+    public enum Measure {
+        MESSAGES,
+        BYTES,
+        FORMSERVICES_MILLIS
+    }
+
+    /**
+     * Prestation et usager (pseudonyme) auxquels sont imputes les appels a FormServices du message courant.
+     */
+    @Getter
+    @RequiredArgsConstructor
+    public static class Attribution {
+        private final String idPrestation;
+        private final String usager;
+    }
+
+    /**
+     * Nombre de reductions des poids par demi-vie, pour un declin progressif.
+     */
+    private static final int DECAYS_PER_HALF_LIFE = 10;
+
+    private static final String PSEUDONYM_ALGORITHM = "HmacSHA256";
+
+    /**
+     * Longueur (octets) retenue de l'empreinte d'un usager : 16 caracteres hexadecimaux.
+     */
+    private static final int PSEUDONYM_LENGTH = 8;
+
+    private final boolean enabled;
+
+    private final Map<Dimension, Map<Measure, SpaceSaving>> summaries = new EnumMap<>(Dimension.class);
+
+    private final ThreadLocal<Attribution> current = new ThreadLocal<>();
+
+    private final ThreadLocal<Mac> pseudonymMac;
+
+    private final long halfLifeNanos;
+
+    private final long decayIntervalNanos;
+
+    private volatile long lastDecay = System.nanoTime();
+
+    public HeavyHitters(@Value("${app.heavy-hitters.enabled:true}") boolean enabled,
+                        @Value("${app.heavy-hitters.capacity:200}") int capacity,
+                        @Value("${app.heavy-hitters.half-life:600}") long halfLifeSeconds) {
+        this.enabled = enabled;
+        this.halfLifeNanos = TimeUnit.SECONDS.toNanos(halfLifeSeconds);
+        this.decayIntervalNanos = halfLifeNanos / DECAYS_PER_HALF_LIFE;
+        byte[] pseudonymKey = new byte[32];
+        new SecureRandom().nextBytes(pseudonymKey);
+        SecretKeySpec key = new SecretKeySpec(pseudonymKey, PSEUDONYM_ALGORITHM);
+        this.pseudonymMac = ThreadLocal.withInitial(() -> newMac(key));
+        for (Dimension dimension : Dimension.values()) {
+            Map<Measure, SpaceSaving> measures = new EnumMap<>(Measure.class);
+            for (Measure measure : Measure.values()) {
+                measures.put(measure, new SpaceSaving(capacity));
+            }
+            summaries.put(dimension, measures);
+        }
+        log.info("Suivi des prestations et usagers les plus lourds : {}, {} cles par mesure, demi-vie {} s",
+                enabled ? "actif" : "inactif", capacity, halfLifeSeconds);
+    }
+
+    /**
+     * Un message deserialise : il compte pour sa prestation et son usager, qui deviennent ceux du message courant.
+     * @param bytes taille du message recu
+     */
+    public void messageParsed(Object body, long bytes) {
+        Attribution attribution = attribute(body);
+        if (attribution != null) {
+            add(attribution, Measure.MESSAGES, 1);
+            add(attribution, Measure.BYTES, bytes);
+        }
+    }
+
+    /**
+     * Designe le message courant (par ex. lors d'un traitement par lots), sans le compter.
+     */
+    public Attribution attribute(Object body) {
+        if (!enabled || !(body instanceof MessageENU)) {
+            current.remove();
+            return null;
+        }
+        MessageENU message = (MessageENU) body;
+        Attribution attribution = new Attribution(message.getIdPrestation(), pseudonymOf(message.getIdUsager()));
+        current.set(attribution);
+        return attribution;
+    }
+
+    /**
+     * Le message courant, null s'il n'y en a pas.
+     */
+    public Attribution current() {
+        return current.get();
+    }
+
+    /**
+     * Un appel a FormServices pour un message.
+     */
+    public void formServicesCall(Attribution attribution, long nanos) {
+        if (attribution != null) {
+            add(attribution, Measure.FORMSERVICES_MILLIS, nanos / 1_000_000.0);
+        }
+    }
+
+    /**
+     * Fin du traitement du message courant.
+     */
+    public void messageFinished() {
+        current.remove();
+    }
+
+    /**
+     * Les n cles les plus lourdes de chaque mesure, par dimension.
+     */
+    public Map<String, Object> top(int n) {
+        decayIfDue();
+        Map<String, Object> result = new LinkedHashMap<>();
+        summaries.forEach((dimension, measures) -> {
+            Map<String, Object> byMeasure = new LinkedHashMap<>();
+            measures.forEach((measure, summary) -> {
+                List<Map<String, Object>> entries = new ArrayList<>();
+                for (SpaceSaving.Entry entry : summary.top(n)) {
+                    Map<String, Object> item = new LinkedHashMap<>();
+                    item.put("id", entry.getKey());
+                    item.put("weight", Math.round(entry.getCount()));
+                    item.put("maxOverestimate", Math.round(entry.getError()));
+                    entries.add(item);
+                }
+                byMeasure.put(measure.name().toLowerCase(), entries);
+            });
+            result.put(dimension.name().toLowerCase(), byMeasure);
+        });
+        return result;
+    }
+
+    public void reset() {
+        summaries.values().forEach(measures -> measures.values().forEach(SpaceSaving::clear));
+    }
+
+    private void add(Attribution attribution, Measure measure, double weight) {
+        decayIfDue();
+        summaries.get(Dimension.PRESTATION).get(measure).add(attribution.getIdPrestation(), weight);
+        summaries.get(Dimension.USAGER).get(measure).add(attribution.getUsager(), weight);
+    }
+
+    private String pseudonymOf(String idUsager) {
+        if (idUsager == null) {
+            return null;
+        }
+        byte[] digest = pseudonymMac.get().doFinal(idUsager.getBytes(StandardCharsets.UTF_8));
+        StringBuilder pseudonym = new StringBuilder(PSEUDONYM_LENGTH * 2);
+        for (int i = 0; i < PSEUDONYM_LENGTH; i++) {
+            pseudonym.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+        }
+        return pseudonym.toString();
+    }
+
+    private static Mac newMac(SecretKeySpec key) {
+        try {
+            Mac mac = Mac.getInstance(PSEUDONYM_ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 est fourni par toute JVM
+            throw new IllegalStateException("Algorithme [" + PSEUDONYM_ALGORITHM + "] non disponible", e);
+        }
+    }
+
+    private void decayIfDue() {
+        long now = System.nanoTime();
+        if (halfLifeNanos <= 0 || now - lastDecay < decayIntervalNanos) {
+            return;
+        }
+        synchronized (this) {
+            long elapsed = now - lastDecay;
+            if (elapsed < decayIntervalNanos) {
+                return;
+            }
+            double factor = Math.pow(0.5, (double) elapsed / halfLifeNanos);
+            summaries.values().forEach(measures -> measures.values().forEach(summary -> summary.decay(factor)));
+            lastDecay = now;
+        }
+    }
+
+}
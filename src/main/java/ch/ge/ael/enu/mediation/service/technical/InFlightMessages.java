@@ -0,0 +1,79 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.amqp.core.Message;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Messages recus de RabbitMQ et pas encore repondus : en attente dans une file de traitement ou en cours de
+ * traitement. Leur nombre et leur taille cumulee sont aussi des metriques, "enu.mediation.inflight.messages"
+ * et "enu.mediation.inflight.bytes".
+ */
+@Component
+public class InFlightMessages {
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    public InFlightMessages(MeterRegistry meterRegistry) {
+        Gauge.builder("enu.mediation.inflight.messages", count, AtomicInteger::get)
+                .description("Messages recus et pas encore repondus")
+                .register(meterRegistry);
+        Gauge.builder("enu.mediation.inflight.bytes", bytes, AtomicLong::get)
+                .description("Taille cumulee des messages recus et pas encore repondus")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * A appeler a la reception du message.
+     */
+    public void received(Message message) {
+        count.incrementAndGet();
+        bytes.addAndGet(sizeOf(message));
+    }
+
+    /**
+     * A appeler une fois le message repondu, ou abandonne.
+     */
+    public void done(Message message) {
+        count.decrementAndGet();
+        bytes.addAndGet(-sizeOf(message));
+    }
+
+    public int getCount() {
+        return count.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    private static int sizeOf(Message message) {
+        return message.getBody() != null ? message.getBody().length : 0;
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import ch.ge.ael.enu.mediation.exception.TechnicalException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.MediaType;
+import org.springframework.http.ReactiveHttpOutputMessage;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.BodyInserter;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Corps JSON des requetes FormServices (File, FileForStep, FileForWorkflow), serialises en une seule fois
+ * directement dans un DataBuffer de la requete (tampon Netty du pool), sans passer par une String
+ * intermediaire reencodee ensuite en octets.
+ * Un ObjectWriter est gere par type de corps.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class JsonBodyWriter {
+
+    private final ObjectMapper jackson;
+
+    private final Map<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    /**
+     * La serialisation a lieu a l'envoi de la requete, dans un tampon fourni par la requete elle-meme.
+     */
+    public <T> BodyInserter<T, ReactiveHttpOutputMessage> body(T body) {
+        return (message, context) -> {
+            DataBuffer buffer;
+            try {
+                buffer = write(body, message.bufferFactory());
+            } catch (TechnicalException e) {
+                return Mono.error(e);
+            }
+            if (message.getHeaders().getContentType() == null) {
+                message.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+            }
+            message.getHeaders().setContentLength(buffer.readableByteCount());
+            return message.writeWith(Mono.just(buffer));
+        };
+    }
+
+    /**
+     * Serialise le corps dans un nouveau tampon de la fabrique. L'appelant doit liberer le tampon rendu.
+     */
+    public DataBuffer write(Object body, DataBufferFactory bufferFactory) {
+        ObjectWriter writer = writers.computeIfAbsent(body.getClass(), jackson::writerFor);
+        DataBuffer buffer = bufferFactory.allocateBuffer();
+        boolean written = false;
+        try (OutputStream out = buffer.asOutputStream()) {
+            writer.writeValue(out, body);
+            written = true;
+            return buffer;
+        } catch (IOException e) {
+            log.error("JSON marshalling error for file : " + body + " - Jackson error: " + e.getMessage());
+            throw new TechnicalException("Erreur interne mediation - JSON marshalling");
+        } finally {
+            if (!written) {
+                DataBufferUtils.release(buffer);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import ch.ge.ael.enu.business.domain.v1_0.MessageENU;
+import ch.ge.ael.enu.mediation.util.concurrent.BackgroundWriter;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static ch.ge.ael.enu.mediation.model.Header.CONTENT_TYPE;
+
+/**
+ * Trace d'audit : un enregistrement JSON compact par message traite (CorrelationId, type, prestation, usager,
+ * duree de chaque etape, resultat), ecrit dans le logger "AUDIT".
+ * <p>
+ * Le thread de traitement ne fait que deposer l'enregistrement dans une file sans verrou ; un thread dedie le
+ * formate et l'ecrit. Si la file est pleine, l'enregistrement est perdu et compte dans la metrique
+ * "enu.mediation.audit.dropped" : le traitement des messages n'attend jamais l'ecriture des traces.
+ * <p>
+ * Decide aussi, une fois par message, si son contenu detaille est trace ("app.audit.payload-sample-rate").
+ */
+@Component
+@Slf4j
+public class MessageAudit implements DisposableBean {
+
+    private static final Logger AUDIT = LoggerFactory.getLogger("AUDIT");
+
+    /**
+     * Au-dela, les messages commences et jamais termines par le thread courant sont oublies.
+     */
+    private static final int MAX_PENDING = 10_000;
+
+    /**
+     * Suivi d'un message, de sa reception a sa reponse.
+     */
+    static class Record {
+        private final long timestamp = System.currentTimeMillis();
+        private final long start = System.nanoTime();
+        private long lastLap = start;
+        private final String correlationId;
+        private final String contentType;
+        private final boolean payloadSampled;
+        private final Map<String, Long> stages = new LinkedHashMap<>();
+        private String idPrestation;
+        private String idUsager;
+        private long total;
+        private String error;
+
+        Record(Message message, boolean payloadSampled) {
+            MessageProperties properties = message.getMessageProperties();
+            this.correlationId = properties.getCorrelationId();
+            String type = properties.getContentType();
+            this.contentType = type != null ? type : properties.getHeader(CONTENT_TYPE);
+            this.payloadSampled = payloadSampled;
+        }
+
+        private void lap(String stage) {
+            long now = System.nanoTime();
+            stages.merge(stage, now - lastLap, Long::sum);
+            lastLap = now;
+        }
+
+        private void finish(Exception e) {
+            total = System.nanoTime() - start;
+            if (e != null) {
+                error = e.getClass().getSimpleName() + " : " + e.getMessage();
+            }
+        }
+    }
+
+    private final boolean enabled;
+
+    private final double payloadSampleRate;
+
+    private final BackgroundWriter<Record> writer;
+
+    private final Counter dropped;
+
+    private final ThreadLocal<Map<Message, Record>> pending = ThreadLocal.withInitial(IdentityHashMap::new);
+
+    private final ThreadLocal<Record> current = new ThreadLocal<>();
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    private final StringWriter out = new StringWriter(256);
+
+    public MessageAudit(@Value("${app.audit.enabled:true}") boolean enabled,
+                        @Value("${app.audit.buffer-size:8192}") int bufferSize,
+                        @Value("${app.audit.payload-sample-rate:0.01}") double payloadSampleRate,
+                        MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.payloadSampleRate = payloadSampleRate;
+        this.writer = enabled ? new BackgroundWriter<>("audit-writer", bufferSize, this::write) : null;
+        this.dropped = Counter.builder("enu.mediation.audit.dropped")
+                .description("Enregistrements d'audit perdus, faute de place dans la file d'ecriture")
+                .register(meterRegistry);
+        log.info("Trace d'audit : {}, file de {} enregistrements, echantillonnage des contenus : {}",
+                enabled ? "active" : "inactive", enabled ? writer.capacity() : 0, payloadSampleRate);
+    }
+
+    /**
+     * Debut du traitement d'un message par le thread courant.
+     */
+    public void begin(Message message) {
+        Record record = new Record(message, sample());
+        Map<Message, Record> records = pending.get();
+        if (records.size() >= MAX_PENDING) {
+            records.clear();
+        }
+        records.put(message, record);
+        current.set(record);
+    }
+
+    /**
+     * Fin d'une etape du traitement du message courant : sa duree est celle ecoulee depuis l'etape precedente.
+     */
+    public void lap(String stage) {
+        Record record = current.get();
+        if (record != null) {
+            record.lap(stage);
+        }
+    }
+
+    /**
+     * Prestation et usager du message courant, une fois deserialise.
+     */
+    public void identify(Object body) {
+        Record record = current.get();
+        if (record != null && body instanceof MessageENU) {
+            record.idPrestation = ((MessageENU) body).getIdPrestation();
+            record.idUsager = ((MessageENU) body).getIdUsager();
+        }
+    }
+
+    /**
+     * Vrai si le contenu detaille du message doit etre trace. Le tirage est fait une fois pour toutes par
+     * {@link #begin(Message)}, afin que toutes les traces detaillees d'un meme message soient presentes ou absentes.
+     */
+    public boolean isPayloadSampled(Message message) {
+        Record record = pending.get().get(message);
+        return record != null ? record.payloadSampled : sample();
+    }
+
+    /**
+     * Fin du traitement d'un message, au moment de sa reponse.
+     * @param error l'erreur du traitement, null s'il a reussi
+     */
+    public void end(Message message, Exception error) {
+        Record record = pending.get().remove(message);
+        if (record != null && current.get() == record) {
+            current.remove();
+        }
+        if (!enabled) {
+            return;
+        }
+        if (record == null) {
+            // message dont le debut n'a pas ete vu par ce thread : pas de durees
+            record = new Record(message, false);
+        }
+        record.finish(error);
+        if (!writer.offer(record)) {
+            dropped.increment();
+        }
+    }
+
+    private boolean sample() {
+        return payloadSampleRate >= 1 || (payloadSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < payloadSampleRate);
+    }
+
+    /**
+     * Appele par le seul thread d'ecriture.
+     */
+    private void write(Record record) {
+        out.getBuffer().setLength(0);
+        try (JsonGenerator json = jsonFactory.createGenerator(out)) {
+            write(record, json);
+        } catch (IOException e) {
+            log.warn("Enregistrement d'audit non ecrit : {}", e.getMessage());
+            return;
+        }
+        AUDIT.info(out.toString());
+    }
+
+    private static void write(Record record, JsonGenerator json) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("ts", Instant.ofEpochMilli(record.timestamp).toString());
+        json.writeStringField("correlationId", record.correlationId);
+        json.writeStringField("contentType", record.contentType);
+        if (record.idPrestation != null) {
+            json.writeStringField("idPrestation", record.idPrestation);
+        }
+        if (record.idUsager != null) {
+            json.writeStringField("idUsager", record.idUsager);
+        }
+        json.writeStringField("outcome", record.error == null ? "OK" : "KO");
+        if (record.error != null) {
+            json.writeStringField("error", record.error);
+        }
+        json.writeObjectFieldStart("stagesMs");
+        for (Map.Entry<String, Long> stage : record.stages.entrySet()) {
+            json.writeNumberField(stage.getKey(), toMillis(stage.getValue()));
+        }
+        json.writeEndObject();
+        json.writeNumberField("totalMs", toMillis(record.total));
+        json.writeEndObject();
+    }
+
+    private static double toMillis(long nanos) {
+        return Math.round(nanos / 10_000.0) / 100.0;
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+}
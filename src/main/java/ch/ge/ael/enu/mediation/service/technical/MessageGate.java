@@ -0,0 +1,227 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import ch.ge.ael.enu.mediation.configuration.serialization.MessageFormat;
+import ch.ge.ael.enu.mediation.exception.IllegalMessageException;
+import ch.ge.ael.enu.mediation.exception.UnsupportedMediaTypeException;
+import ch.ge.ael.enu.mediation.util.codec.ContentEncoding;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Locale;
+
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.COURRIER;
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.COURRIER_BINAIRE;
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.COURRIER_HORS_DEMARCHE;
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.COURRIER_HORS_DEMARCHE_BINAIRE;
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.DOCUMENT;
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.DOCUMENT_BINAIRE;
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.SEQUENCE_MESSAGES;
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.typeReferenceMap;
+import static ch.ge.ael.enu.mediation.model.Header.CONTENT_TYPE;
+
+/**
+ * Controles prealables a la deserialisation d'un message, sur ses seules proprietes et quelques octets de son
+ * corps : type de message pris en charge, taille maximale selon le type et debut/fin du corps conformes au
+ * format annonce (JSON, Smile, CBOR, ou gzip/deflate si le message est compresse).
+ * Un message refuse ici recoit la meme reponse KO que s'il avait ete refuse apres deserialisation, sans que son
+ * corps ait ete lu.
+ */
+@Component
+@Slf4j
+public class MessageGate {
+
+    /**
+     * En-tete d'un message Smile : ":)\n".
+     */
+    private static final byte[] SMILE_HEADER = {':', ')', '\n'};
+
+    /**
+     * Etiquette CBOR "self-describe" (55799), qui peut preceder la valeur.
+     */
+    private static final byte[] CBOR_SELF_DESCRIBE = {(byte) 0xD9, (byte) 0xD9, (byte) 0xF7};
+
+    /**
+     * Taille maximale (octets) des messages sans document : changements d'etat, brouillons, suggestions.
+     */
+    @Value("${app.rabbitmq.max-size.default:262144}")
+    private int defaultMaxSize;
+
+    /**
+     * Taille maximale (octets) des messages portant un document.
+     */
+    @Value("${app.rabbitmq.max-size.document:10485760}")
+    private int documentMaxSize;
+
+    /**
+     * Taille maximale (octets) des courriers, qui portent plusieurs documents, et des sequences de messages.
+     */
+    @Value("${app.rabbitmq.max-size.courrier:52428800}")
+    private int courrierMaxSize;
+
+    /**
+     * @param contentType le type du message, ramene au type JSON equivalent
+     * @param format le format d'encodage annonce par le type du message
+     */
+    public void check(Message message, String contentType, MessageFormat format) throws UnsupportedMediaTypeException, IllegalMessageException {
+        if (contentType == null || contentType.isEmpty()) {
+            log.error("Content-Type vide ou null !");
+            throw new UnsupportedMediaTypeException("L'en-tête \"" + CONTENT_TYPE + "\" manque dans le message ou est vide.");
+        }
+        boolean sequence = SEQUENCE_MESSAGES.equals(contentType);
+        if (!sequence && !typeReferenceMap.containsKey(contentType)) {
+            log.error("Content-Type non supporté : [{}]", contentType);
+            throw new UnsupportedMediaTypeException(
+                    "La valeur \"" + contentType + "\" de l'en-tête " + CONTENT_TYPE + " n'est pas prise en charge");
+        }
+
+        byte[] body = message.getBody();
+        if (body == null || body.length == 0) {
+            throw new IllegalMessageException("Le message est vide");
+        }
+        checkSize(contentType, body.length);
+
+        String contentEncoding = message.getMessageProperties().getContentEncoding();
+        if (!ContentEncoding.isIdentity(contentEncoding)) {
+            checkCompressed(body, contentEncoding);
+        } else if (format == MessageFormat.SMILE) {
+            checkSmile(body);
+        } else if (format == MessageFormat.CBOR) {
+            checkCbor(body, sequence);
+        } else {
+            checkJson(body, sequence);
+        }
+    }
+
+    /**
+     * Controle d'un des messages d'une sequence de messages, une fois lu : type pris en charge hors sequence et
+     * taille maximale selon son type.
+     * @param size la taille (octets) du message dans la sequence
+     */
+    public void checkSequenceItem(String contentType, long size) throws UnsupportedMediaTypeException, IllegalMessageException {
+        if (!typeReferenceMap.containsKey(contentType)) {
+            throw new UnsupportedMediaTypeException("La valeur \"" + contentType + "\" n'est pas prise en charge dans une sequence");
+        }
+        checkSize(contentType, size);
+    }
+
+    private void checkSize(String contentType, long size) throws IllegalMessageException {
+        int maxSize = maxSizeOf(contentType);
+        if (size > maxSize) {
+            log.warn("Message [{}] de {} octets refuse : maximum {} octets", contentType, size, maxSize);
+            throw new IllegalMessageException("Le message fait " + size + " octets, au-dela du maximum de "
+                    + maxSize + " octets pour le type \"" + contentType + "\"");
+        }
+    }
+
+    /**
+     * Taille maximale (octets) d'un message du type donne. Pour un message compresse, elle s'applique aussi
+     * au contenu decompresse.
+     */
+    public int maxSizeOf(String contentType) {
+        switch (contentType) {
+            case DOCUMENT:
+            case DOCUMENT_BINAIRE:
+                return documentMaxSize;
+            case COURRIER:
+            case COURRIER_BINAIRE:
+            case COURRIER_HORS_DEMARCHE:
+            case COURRIER_HORS_DEMARCHE_BINAIRE:
+            case SEQUENCE_MESSAGES:
+                return courrierMaxSize;
+            default:
+                return defaultMaxSize;
+        }
+    }
+
+    /**
+     * Un encodage non supporte est laisse a la deserialisation, qui produit le message d'erreur adequat.
+     */
+    private static void checkCompressed(byte[] body, String contentEncoding) throws IllegalMessageException {
+        String encoding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+        if (ContentEncoding.GZIP.equals(encoding) || "x-gzip".equals(encoding)) {
+            if (body.length < 2 || body[0] != (byte) 0x1F || body[1] != (byte) 0x8B) {
+                throw new IllegalMessageException("Le message n'est pas au format gzip annonce");
+            }
+        } else if (ContentEncoding.DEFLATE.equals(encoding)) {
+            // en-tete zlib : methode 8 (deflate), et CMF * 256 + FLG multiple de 31
+            int cmf = body[0] & 0xFF;
+            if (body.length < 2 || (cmf & 0x0F) != 8 || ((cmf << 8) | (body[1] & 0xFF)) % 31 != 0) {
+                throw new IllegalMessageException("Le message n'est pas au format deflate (zlib) annonce");
+            }
+        }
+    }
+
+    private static void checkSmile(byte[] body) throws IllegalMessageException {
+        if (!startsWith(body, SMILE_HEADER)) {
+            throw new IllegalMessageException("Le message n'est pas au format Smile annonce : en-tete absent");
+        }
+    }
+
+    private static void checkCbor(byte[] body, boolean sequence) throws IllegalMessageException {
+        int start = startsWith(body, CBOR_SELF_DESCRIBE) ? CBOR_SELF_DESCRIBE.length : 0;
+        // type majeur 5 (map) pour un message, 4 (tableau) pour une sequence
+        int expectedMajorType = sequence ? 4 : 5;
+        if (start >= body.length || ((body[start] & 0xFF) >>> 5) != expectedMajorType) {
+            throw new IllegalMessageException("Le message n'est pas au format CBOR annonce : "
+                    + (sequence ? "tableau" : "objet") + " attendu");
+        }
+    }
+
+    private static void checkJson(byte[] body, boolean sequence) throws IllegalMessageException {
+        char open = sequence ? '[' : '{';
+        char close = sequence ? ']' : '}';
+        int first = 0;
+        // BOM UTF-8 eventuel
+        if (body.length >= 3 && body[0] == (byte) 0xEF && body[1] == (byte) 0xBB && body[2] == (byte) 0xBF) {
+            first = 3;
+        }
+        while (first < body.length && isWhitespace(body[first])) {
+            first++;
+        }
+        int last = body.length - 1;
+        while (last > first && isWhitespace(body[last])) {
+            last--;
+        }
+        if (first >= last || body[first] != open || body[last] != close) {
+            throw new IllegalMessageException("Le message n'est pas un " + (sequence ? "tableau" : "objet")
+                    + " JSON : il doit commencer par '" + open + "' et finir par '" + close + "'");
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static boolean startsWith(byte[] body, byte[] prefix) {
+        if (body.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (body[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -20,6 +20,13 @@ package ch.ge.ael.enu.mediation.service.technical;
 
 import ch.ge.ael.enu.business.domain.v1_0.Response;
 import ch.ge.ael.enu.business.domain.v1_0.ResponseType;
+import ch.ge.ael.enu.mediation.exception.SequenceException;
+import ch.ge.ael.enu.mediation.model.SequenceResponse;
+import ch.ge.ael.enu.mediation.service.technical.jfr.FlightEvent;
+import ch.ge.ael.enu.mediation.service.technical.jfr.FlightEvents;
+import ch.ge.ael.enu.mediation.service.technical.tracing.MessageTracer;
+import ch.ge.ael.enu.mediation.util.codec.ContentEncoding;
+import ch.ge.ael.enu.mediation.util.logging.LogRenderer;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
@@ -27,6 +34,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.RESPONSE;
@@ -42,12 +50,32 @@ public class ResponseHandler {
     private final RabbitTemplate defaultTemplate;
     private final RabbitTemplate dlxTemplate;
     private final ObjectMapper objectMapper;
+    private final LogRenderer logRenderer;
+    private final MessageAudit messageAudit;
+    private final MessageTracer messageTracer;
+    private final InFlightMessages inFlightMessages;
+    private final FlightEvents flightEvents;
+    private final HeavyHitters heavyHitters;
+
+    /**
+     * Compression gzip des reponses, pour celles d'au moins "min-size" octets.
+     */
+    @Value("${app.rabbitmq.reply-compression.enabled:false}")
+    private boolean replyCompression;
+
+    @Value("${app.rabbitmq.reply-compression.min-size:1024}")
+    private int replyCompressionMinSize;
 
     /**
      * Les messages OK sont envoyés par le même exchange que les messages métier normaux
      */
     public void handleOk(Message originalMessage) throws JsonProcessingException {
         log.debug("RabbitMQ -> Traitement OK");
+        messageAudit.end(originalMessage, null);
+        messageTracer.end(originalMessage, null);
+        flightEvents.messageFinished();
+        heavyHitters.messageFinished();
+        inFlightMessages.done(originalMessage);
 
 //        defaultTemplate.convertAndSend(originalMessage.getMessageProperties().getReceivedRoutingKey(),
 //                objectMapper.writeValueAsString(Response.builder()
@@ -60,14 +88,35 @@ public class ResponseHandler {
      * Les erreurs sont rejetées dans la DLQ.
      */
     public void handleKo(Exception e, Message originalMessage) throws JsonProcessingException {
-        log.warn("RabbitMQ -> KO, Dead Letter [{}]", originalMessage);
+        if (messageAudit.isPayloadSampled(originalMessage)) {
+            log.warn("RabbitMQ -> KO, Dead Letter [{}]", logRenderer.message(originalMessage));
+        } else {
+            log.warn("RabbitMQ -> KO, Dead Letter - CorrelationID: [{}] : {}", originalMessage.getMessageProperties().getCorrelationId(), e.getMessage());
+        }
+        messageAudit.end(originalMessage, e);
+        messageTracer.end(originalMessage, e);
+        flightEvents.messageFinished();
+        heavyHitters.messageFinished();
+        inFlightMessages.done(originalMessage);
 
-        dlxTemplate.convertAndSend(originalMessage.getMessageProperties().getReceivedRoutingKey(),
-                objectMapper.writeValueAsString(Response.builder()
-                        .resultat(ResponseType.KO)
-                        .description(e.getMessage())
-                        .build()),
+        String reply = objectMapper.writeValueAsString(replyFor(e));
+        FlightEvent publishEvent = flightEvents.responsePublishStarted(originalMessage, "KO", reply);
+        dlxTemplate.convertAndSend(originalMessage.getMessageProperties().getReceivedRoutingKey(), reply,
                 msg -> processMessage(originalMessage, msg));
+        flightEvents.responsePublished(publishEvent);
+    }
+
+    /**
+     * Reponse KO ; pour une sequence de messages, elle donne aussi le resultat de chacun de ses messages.
+     */
+    private static Object replyFor(Exception e) {
+        if (e instanceof SequenceException) {
+            return new SequenceResponse(ResponseType.KO, e.getMessage(), ((SequenceException) e).getResults());
+        }
+        return Response.builder()
+                .resultat(ResponseType.KO)
+                .description(e.getMessage())
+                .build();
     }
 
     @NotNull
@@ -76,6 +125,10 @@ public class ResponseHandler {
         msg.getMessageProperties().setCorrelationId(originalMessage.getMessageProperties().getCorrelationId());
         msg.getMessageProperties().setContentType(RESPONSE);
         msg.getMessageProperties().setContentEncoding("UTF-8");
+        if (replyCompression && msg.getBody().length >= replyCompressionMinSize) {
+            msg.getMessageProperties().setContentEncoding(ContentEncoding.GZIP);
+            return new Message(ContentEncoding.gzip(msg.getBody()), msg.getMessageProperties());
+        }
         return msg;
     }
 }
@@ -0,0 +1,130 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import ch.ge.ael.enu.mediation.model.jway.FileForStep;
+import ch.ge.ael.enu.mediation.model.jway.FileForWorkflow;
+import ch.ge.ael.enu.mediation.model.jway.FileSummary;
+import ch.ge.ael.enu.mediation.model.jway.Form;
+import ch.ge.ael.enu.mediation.model.jway.FormUrl;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Evite de renvoyer a FormServices une transition identique a l'etat de la demarche, par exemple lorsqu'un
+ * SI metier renvoie un rappel DemarcheActionRequise avec la meme urlAction et la meme dateEcheanceAction.
+ * <p>
+ * La transition est comparee a l'etat de la demarche lu dans FormServices pour le traitement du message, et non a
+ * une memoire propre a l'instance : une ecriture faite entre-temps par une autre instance est donc toujours vue.
+ */
+@Component
+@Slf4j
+public class TransitionWriteAvoidance {
+
+    /**
+     * Nombre d'ecritures HTTP evitees pour une transition ignoree : POST step + PUT workflow.
+     */
+    private static final int WRITES_PER_TRANSITION = 2;
+
+    private final boolean enabled;
+
+    private final Counter skippedWrites;
+
+    public TransitionWriteAvoidance(@Value("${app.demarche.write-avoidance.enabled:true}") boolean enabled,
+                                    MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.skippedWrites = Counter.builder("enu.mediation.demarche.writes.skipped")
+                .description("Nombre d'ecritures FormServices evitees car identiques a l'etat de la demarche")
+                .register(meterRegistry);
+        log.info("Evitement des transitions redondantes : {}", enabled ? "actif" : "inactif");
+    }
+
+    /**
+     * Indique si la transition est deja appliquee telle quelle a la demarche, d'apres son etat lu dans FormServices.
+     * Si oui, le compteur d'ecritures evitees est incremente.
+     */
+    public boolean isAlreadyApplied(FileSummary demarche, FileForStep fileForStep, FileForWorkflow fileForWorkflow) {
+        if (!enabled) {
+            return false;
+        }
+        boolean applied = fingerprint(fileForStep, fileForWorkflow).equals(fingerprint(demarche));
+        if (applied) {
+            skippedWrites.increment(WRITES_PER_TRANSITION);
+        }
+        return applied;
+    }
+
+    /**
+     * Reporte une transition ecrite dans FormServices sur l'etat lu de la demarche, pour les transitions suivantes
+     * traitees sans relire la demarche (voir DemarcheService.handleDemarcheTransitions).
+     */
+    public static void applied(FileSummary demarche, FileForStep fileForStep, FileForWorkflow fileForWorkflow) {
+        demarche.setWorkflowStatus(fileForWorkflow.getWorkflowStatus());
+        demarche.setStep(fileForStep.getStep());
+        demarche.setStepDescription(fileForStep.getStepDescription());
+        demarche.setForm(fileForStep.getForm());
+        demarche.setToDate(fileForWorkflow.getToDate());
+    }
+
+    /**
+     * Empreinte d'une transition : l'etat et les donnees metier envoyes a FormServices. La date de mise a jour
+     * (lastUpdate) n'en fait pas partie : un rappel identique recu un autre jour est bien une transition redondante.
+     */
+    static List<Object> fingerprint(FileForStep fileForStep, FileForWorkflow fileForWorkflow) {
+        return Arrays.asList(
+                fileForWorkflow.getWorkflowStatus(),
+                fileForStep.getStep(),
+                fileForStep.getStepDescription(),
+                urlsOf(fileForStep.getForm()),
+                fileForWorkflow.getToDate());
+    }
+
+    /**
+     * Empreinte de l'etat d'une demarche lu dans FormServices, comparable a celle d'une transition.
+     */
+    static List<Object> fingerprint(FileSummary demarche) {
+        return Arrays.asList(
+                demarche.getWorkflowStatus(),
+                demarche.getStep(),
+                demarche.getStepDescription(),
+                urlsOf(demarche.getForm()),
+                demarche.getToDate());
+    }
+
+    /**
+     * Seules les URL du formulaire sont envoyees par la mediation ; FormServices peut completer le reste.
+     */
+    private static List<String> urlsOf(Form form) {
+        if (form == null || form.getUrls() == null) {
+            return null;
+        }
+        List<String> urls = new ArrayList<>();
+        for (FormUrl url : form.getUrls()) {
+            urls.add(url.getBaseUrl());
+        }
+        return urls;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.*;
+
+/**
+ * Files de traitement separees selon le type de message : les documents et courriers, potentiellement volumineux,
+ * ne retardent pas les messages legers (changements d'etat, suggestions).
+ * Chaque file a son propre nombre de threads et son propre budget de messages en cours (confies a la file et non
+ * encore traites).
+ * <p>
+ * Les messages d'une meme demarche sont traites dans leur ordre d'arrivee, quelle que soit leur file : un message
+ * n'est confie a sa file qu'une fois traite le message precedent de la meme demarche. Ainsi un document ne peut
+ * pas devancer le DemarcheDeposee qui cree sa demarche.
+ * <p>
+ * Confier un message a une file n'est jamais bloquant. Une file dont le budget est epuise refuse le message, qui
+ * est alors rendu a RabbitMQ et redelivre plus tard : une rafale de gros documents ne peut ni occuper toute la
+ * memoire ni toute la fenetre de prefetch (app.lanes.prefetch), les changements d'etat continuent de passer.
+ * Pour preserver l'ordre d'une demarche, les autres messages de la demarche d'un message refuse sont refuses eux
+ * aussi, jusqu'a ce que le message refuse, redelivre, soit accepte ou au plus pendant {@link #REFUSAL_HOLD_NANOS},
+ * au cas ou il aurait ete redelivre a une autre instance.
+ */
+@Component
+@Slf4j
+@ConditionalOnProperty(name = "app.lanes.enabled", havingValue = "true")
+public class WorkerLanes implements DisposableBean {
+
+    public enum Lane {
+        DOCUMENT,
+        STATUS
+    }
+
+    private static final Set<String> DOCUMENT_CONTENT_TYPES = new HashSet<>(Arrays.asList(
+            COURRIER, COURRIER_BINAIRE, COURRIER_HORS_DEMARCHE, COURRIER_HORS_DEMARCHE_BINAIRE,
+            DOCUMENT, DOCUMENT_BINAIRE, SEQUENCE_MESSAGES));
+
+    static final long REFUSAL_HOLD_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final Map<Lane, ThreadPoolExecutor> executors = new EnumMap<>(Lane.class);
+
+    private final Map<Lane, Timer> latencies = new EnumMap<>(Lane.class);
+
+    private final Map<Lane, Semaphore> budgets = new EnumMap<>(Lane.class);
+
+    private final Map<Lane, Counter> refusals = new EnumMap<>(Lane.class);
+
+    /**
+     * Par demarche, la fin du traitement du dernier message confie aux files.
+     */
+    private final Map<String, CompletableFuture<Void>> lastByDemarche = new ConcurrentHashMap<>();
+
+    /**
+     * Par demarche, son premier message refuse et pas encore accepte.
+     */
+    private final Map<String, Refusal> refusedDemarches = new ConcurrentHashMap<>();
+
+    @RequiredArgsConstructor
+    private static class Refusal {
+        private final String messageId;
+        private final long refusedAt;
+    }
+
+    public WorkerLanes(@Value("${app.lanes.document.threads:2}") int documentThreads,
+                       @Value("${app.lanes.document.max-in-flight:10}") int documentMaxInFlight,
+                       @Value("${app.lanes.status.threads:1}") int statusThreads,
+                       @Value("${app.lanes.status.max-in-flight:100}") int statusMaxInFlight,
+                       MeterRegistry meterRegistry) {
+        createLane(Lane.DOCUMENT, documentThreads, documentMaxInFlight, meterRegistry);
+        createLane(Lane.STATUS, statusThreads, statusMaxInFlight, meterRegistry);
+    }
+
+    private void createLane(Lane lane, int threads, int maxInFlight, MeterRegistry meterRegistry) {
+        String name = lane.name().toLowerCase();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new CustomizableThreadFactory("lane-" + name + "-"));
+        executors.put(lane, executor);
+        ExecutorServiceMetrics.monitor(meterRegistry, executor, "enu.mediation.lane." + name, Tags.of("lane", name));
+        latencies.put(lane, Timer.builder("enu.mediation.lane.latency")
+                .description("Duree entre la reception d'un message et la fin de son traitement")
+                .tag("lane", name)
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+        budgets.put(lane, new Semaphore(maxInFlight));
+        refusals.put(lane, Counter.builder("enu.mediation.lane.refused")
+                .description("Messages refuses par une file de traitement dont le budget est epuise, rendus a RabbitMQ")
+                .tag("lane", name)
+                .register(meterRegistry));
+        log.info("File de traitement [{}] : {} thread(s), {} message(s) en cours au plus", name, threads, maxInFlight);
+    }
+
+    public static Lane laneOf(String contentType) {
+        return DOCUMENT_CONTENT_TYPES.contains(contentType) ? Lane.DOCUMENT : Lane.STATUS;
+    }
+
+    /**
+     * Confie le traitement d'un message a la file correspondant a son type, sans attendre.
+     * @param demarcheKey la demarche concernee par le message, ou null si le message n'a pas a etre ordonne
+     * @param messageId identifiant du message (CorrelationId), pour le reconnaitre s'il est redelivre apres un refus
+     * @throws RejectedExecutionException si les files sont arretees, si le budget de la file est epuise ou si un
+     * message precedent de la meme demarche a ete refuse
+     */
+    public void submit(String contentType, String demarcheKey, String messageId, Runnable task) {
+        Lane lane = laneOf(contentType);
+        ThreadPoolExecutor executor = executors.get(lane);
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("File de traitement arretee");
+        }
+        Semaphore budget = budgets.get(lane);
+        long receivedAt = System.nanoTime();
+        Refusal refusal = demarcheKey == null ? null : refusedDemarches.get(demarcheKey);
+        if (refusal != null && receivedAt - refusal.refusedAt >= REFUSAL_HOLD_NANOS) {
+            refusedDemarches.remove(demarcheKey, refusal);
+            refusal = null;
+        }
+        if (refusal != null && (messageId == null || !messageId.equals(refusal.messageId))) {
+            refusals.get(lane).increment();
+            throw new RejectedExecutionException("Un message precedent de la demarche a ete refuse");
+        }
+        if (!budget.tryAcquire()) {
+            refusals.get(lane).increment();
+            if (demarcheKey != null) {
+                // nouveau refus, ou nouveau refus du meme message : le delai de garde repart
+                refusedDemarches.put(demarcheKey, new Refusal(messageId, receivedAt));
+            }
+            throw new RejectedExecutionException("File de traitement [" + lane.name().toLowerCase() + "] pleine");
+        }
+        if (refusal != null) {
+            refusedDemarches.remove(demarcheKey, refusal);
+        }
+        Timer latency = latencies.get(lane);
+        if (demarcheKey == null) {
+            execute(executor, budget, () -> {
+                try {
+                    task.run();
+                } finally {
+                    latency.record(System.nanoTime() - receivedAt, TimeUnit.NANOSECONDS);
+                    budget.release();
+                }
+            });
+            return;
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture<Void> previous = lastByDemarche.put(demarcheKey, done);
+        Runnable ordered = () -> {
+            try {
+                task.run();
+            } finally {
+                latency.record(System.nanoTime() - receivedAt, TimeUnit.NANOSECONDS);
+                budget.release();
+                lastByDemarche.remove(demarcheKey, done);
+                done.complete(null);
+            }
+        };
+        if (previous == null) {
+            execute(executor, budget, ordered);
+        } else {
+            // a l'arret des files, le message n'est pas traite : non acquitte, il sera redelivre
+            previous.thenRun(() -> executor.execute(ordered));
+        }
+    }
+
+    private static void execute(ThreadPoolExecutor executor, Semaphore budget, Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            budget.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        for (ThreadPoolExecutor executor : executors.values()) {
+            executor.shutdown();
+        }
+        for (ThreadPoolExecutor executor : executors.values()) {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("Des messages etaient encore en cours de traitement a l'arret");
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical.jfr;
+
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static ch.ge.ael.enu.mediation.model.Header.CONTENT_TYPE;
+
+/**
+ * Emission des evenements JFR de la mediation. Seule classe, avec les classes d'evenements, a dependre de jdk.jfr :
+ * elle n'est chargee par {@link FlightEvents} qu'une fois JFR reconnu disponible.
+ */
+final class FlightEventRecorder {
+
+    static final List<Class<? extends Event>> EVENT_TYPES = Collections.unmodifiableList(Arrays.asList(
+            MessageStageEvent.class, FormServicesCallEvent.class, ResponsePublishEvent.class));
+
+    /**
+     * Etape en cours du message traite par le thread courant.
+     */
+    private final ThreadLocal<MessageStageEvent> stage = new ThreadLocal<>();
+
+    FlightEventRecorder() {
+        // les evenements sont connus de JFR (et de JMC) avant leur premiere occurrence
+        EVENT_TYPES.forEach(FlightRecorder::register);
+    }
+
+    void messageStarted(Message message) {
+        MessageProperties properties = message.getMessageProperties();
+        MessageStageEvent event = new MessageStageEvent();
+        event.correlationId = properties.getCorrelationId();
+        event.contentType = properties.getContentType() != null ? properties.getContentType() : properties.getHeader(CONTENT_TYPE);
+        event.begin();
+        stage.set(event);
+    }
+
+    void stageCompleted(String name) {
+        MessageStageEvent event = stage.get();
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.stage = name;
+            event.commit();
+        }
+        MessageStageEvent next = new MessageStageEvent();
+        next.correlationId = event.correlationId;
+        next.contentType = event.contentType;
+        next.begin();
+        stage.set(next);
+    }
+
+    void messageFinished() {
+        stage.remove();
+    }
+
+    FlightEvent formServicesCallStarted(ClientRequest request, String correlationId) {
+        FormServicesCallEvent event = new FormServicesCallEvent();
+        event.correlationId = correlationId;
+        event.method = request.method().name();
+        event.endpoint = request.url().getRawPath();
+        event.requestBytes = request.headers().getContentLength();
+        event.begin();
+        return event;
+    }
+
+    void formServicesCallCompleted(FlightEvent callEvent, ClientResponse response, Throwable error) {
+        FormServicesCallEvent event = (FormServicesCallEvent) callEvent;
+        event.end();
+        if (event.shouldCommit()) {
+            if (response != null) {
+                event.status = response.rawStatusCode();
+                event.responseBytes = response.headers().asHttpHeaders().getContentLength();
+            } else {
+                event.responseBytes = -1;
+            }
+            if (error != null) {
+                event.error = error.getClass().getSimpleName() + " : " + error.getMessage();
+            }
+            event.commit();
+        }
+    }
+
+    FlightEvent responsePublishStarted(Message originalMessage, String outcome, String reply) {
+        ResponsePublishEvent event = new ResponsePublishEvent();
+        event.correlationId = originalMessage.getMessageProperties().getCorrelationId();
+        event.routingKey = originalMessage.getMessageProperties().getReceivedRoutingKey();
+        event.outcome = outcome;
+        event.length = reply.length();
+        event.begin();
+        return event;
+    }
+
+    void responsePublished(FlightEvent publishEvent) {
+        ((ResponsePublishEvent) publishEvent).commit();
+    }
+
+}
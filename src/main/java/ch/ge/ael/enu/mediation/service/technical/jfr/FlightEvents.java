@@ -0,0 +1,131 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical.jfr;
+
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+
+import java.util.List;
+
+/**
+ * Evenements Java Flight Recorder du traitement des messages : etapes, appels a FormServices, publications
+ * des reponses. Ils ne coutent presque rien tant qu'aucun enregistrement JFR n'est en cours, et peuvent donc
+ * rester actifs en production. Voir l'endpoint /actuator/flightrecorder pour un enregistrement a la demande.
+ * <p>
+ * Sans effet si "app.jfr.enabled" vaut false ou si la JVM ne dispose pas de JFR. Ni les champs ni les signatures
+ * de cette classe ne font reference aux classes d'evenements, qui heritent de jdk.jfr.Event : le bean est cree
+ * (et introspecte par Spring) sur une JVM sans JFR, le code JFR etant isole dans {@link FlightEventRecorder}.
+ */
+@Component
+@Slf4j
+public class FlightEvents {
+
+    /**
+     * null si les evenements sont inactifs.
+     */
+    private final FlightEventRecorder recorder;
+
+    public FlightEvents(@Value("${app.jfr.enabled:true}") boolean enabled) {
+        this.recorder = enabled && isFlightRecorderAvailable() ? new FlightEventRecorder() : null;
+        log.info("Evenements JFR : {}", recorder != null ? "actifs" : "inactifs");
+    }
+
+    public static boolean isFlightRecorderAvailable() {
+        try {
+            return FlightRecorder.isAvailable();
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Types des evenements de la mediation, a activer dans un enregistrement.
+     * A n'appeler qu'une fois JFR reconnu disponible ({@link #isFlightRecorderAvailable()}).
+     */
+    public static List<Class<? extends Event>> eventTypes() {
+        return FlightEventRecorder.EVENT_TYPES;
+    }
+
+    /**
+     * Debut du traitement d'un message par le thread courant : debut de sa premiere etape.
+     */
+    public void messageStarted(Message message) {
+        if (recorder != null) {
+            recorder.messageStarted(message);
+        }
+    }
+
+    /**
+     * Fin d'une etape du message courant, et debut de la suivante.
+     */
+    public void stageCompleted(String name) {
+        if (recorder != null) {
+            recorder.stageCompleted(name);
+        }
+    }
+
+    /**
+     * Fin du traitement du message courant.
+     */
+    public void messageFinished() {
+        if (recorder != null) {
+            recorder.messageFinished();
+        }
+    }
+
+    /**
+     * Debut d'un appel a FormServices.
+     * @return l'evenement de l'appel, a passer a {@link #formServicesCallCompleted} ; null si les evenements sont inactifs
+     */
+    public FlightEvent formServicesCallStarted(ClientRequest request, String correlationId) {
+        return recorder != null ? recorder.formServicesCallStarted(request, correlationId) : null;
+    }
+
+    /**
+     * Fin d'un appel a FormServices.
+     * @param response la reponse, null si l'appel a echoue sans reponse
+     * @param error l'erreur de l'appel, null s'il a abouti
+     */
+    public void formServicesCallCompleted(FlightEvent event, ClientResponse response, Throwable error) {
+        if (event != null) {
+            recorder.formServicesCallCompleted(event, response, error);
+        }
+    }
+
+    /**
+     * Debut de la publication de la reponse a un message.
+     * @return l'evenement de la publication, a passer a {@link #responsePublished} ; null si les evenements sont inactifs
+     */
+    public FlightEvent responsePublishStarted(Message originalMessage, String outcome, String reply) {
+        return recorder != null ? recorder.responsePublishStarted(originalMessage, outcome, reply) : null;
+    }
+
+    public void responsePublished(FlightEvent event) {
+        if (event != null) {
+            recorder.responsePublished(event);
+        }
+    }
+
+}
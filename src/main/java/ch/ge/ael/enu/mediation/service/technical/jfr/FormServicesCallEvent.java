@@ -0,0 +1,65 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Evenement JFR : un appel HTTP a FormServices. Sa duree est la latence de l'appel, jusqu'a la reception de
+ * l'en-tete de la reponse.
+ */
+@Name("ch.ge.ael.enu.mediation.FormServicesCall")
+@Label("FormServices Call")
+@Category({"ENU Mediation", "FormServices"})
+@Description("Appel HTTP a FormServices")
+@StackTrace(false)
+class FormServicesCallEvent extends jdk.jfr.Event implements FlightEvent {
+
+    @Label("CorrelationId")
+    String correlationId;
+
+    @Label("Method")
+    String method;
+
+    @Label("Endpoint")
+    String endpoint;
+
+    @Label("Status")
+    @Description("Statut HTTP de la reponse, 0 si l'appel a echoue sans reponse")
+    int status;
+
+    @Label("Request Size")
+    @Description("En-tete Content-Length de la requete, -1 s'il est absent")
+    @DataAmount
+    long requestBytes;
+
+    @Label("Response Size")
+    @Description("En-tete Content-Length de la reponse, -1 s'il est absent")
+    @DataAmount
+    long responseBytes;
+
+    @Label("Error")
+    String error;
+
+}
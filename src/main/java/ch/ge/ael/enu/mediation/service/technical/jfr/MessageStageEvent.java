@@ -0,0 +1,46 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Evenement JFR : une etape du traitement d'un message (admission, deserialize, validate, dispatch, sequence).
+ */
+@Name("ch.ge.ael.enu.mediation.MessageStage")
+@Label("Message Stage")
+@Category({"ENU Mediation", "Messages"})
+@Description("Etape du traitement d'un message RabbitMQ")
+@StackTrace(false)
+class MessageStageEvent extends jdk.jfr.Event {
+
+    @Label("CorrelationId")
+    String correlationId;
+
+    @Label("Content Type")
+    String contentType;
+
+    @Label("Stage")
+    String stage;
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Evenement JFR : publication dans RabbitMQ de la reponse a un message.
+ */
+@Name("ch.ge.ael.enu.mediation.ResponsePublish")
+@Label("Response Publish")
+@Category({"ENU Mediation", "Messages"})
+@Description("Publication de la reponse a un message RabbitMQ")
+@StackTrace(false)
+class ResponsePublishEvent extends jdk.jfr.Event implements FlightEvent {
+
+    @Label("CorrelationId")
+    String correlationId;
+
+    @Label("Outcome")
+    String outcome;
+
+    @Label("Routing Key")
+    String routingKey;
+
+    @Label("Length")
+    @Description("Longueur (caracteres) de la reponse JSON, avant compression eventuelle")
+    int length;
+
+}
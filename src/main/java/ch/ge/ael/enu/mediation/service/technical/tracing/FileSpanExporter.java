@@ -0,0 +1,56 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical.tracing;
+
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+/**
+ * Export des spans dans le logger "TRACES" (logs/enu-mediation-traces.*.log par defaut) : une ligne JSON OTLP
+ * par message, que l'on peut rejouer tel quel vers un collecteur OpenTelemetry.
+ */
+@Component
+@Slf4j
+@ConditionalOnProperty(name = "app.tracing.exporter", havingValue = "file", matchIfMissing = true)
+public class FileSpanExporter implements SpanExporter {
+
+    private static final Logger TRACES = LoggerFactory.getLogger("TRACES");
+
+    private final StringWriter out = new StringWriter(1024);
+
+    @Override
+    public void export(List<Span> spans) {
+        out.getBuffer().setLength(0);
+        try {
+            OtlpJson.write(spans, out);
+        } catch (IOException e) {
+            log.warn("Spans non ecrits : {}", e.getMessage());
+            return;
+        }
+        TRACES.info(out.toString());
+    }
+
+}
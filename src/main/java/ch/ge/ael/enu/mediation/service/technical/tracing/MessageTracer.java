@@ -0,0 +1,216 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical.tracing;
+
+import ch.ge.ael.enu.mediation.util.concurrent.BackgroundWriter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.MDC;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static ch.ge.ael.enu.mediation.model.Header.CONTENT_TYPE;
+
+/**
+ * Suivi du traitement de chaque message : un span par message, un span enfant par etape et par appel a
+ * FormServices ({@link ch.ge.ael.enu.mediation.service.technical.FormServicesCallFilter}).
+ * <p>
+ * Pendant le traitement, le CorrelationId du message est dans le MDC ("correlationId"), donc dans chaque trace
+ * applicative, et il est transmis a FormServices dans l'en-tete HTTP "X-Correlation-Id".
+ * A la fin du traitement, les spans du message sont remis au {@link SpanExporter} par un thread dedie ;
+ * si celui-ci ne suit pas, ils sont perdus et comptes dans la metrique "enu.mediation.tracing.dropped".
+ */
+@Component
+@Slf4j
+public class MessageTracer implements DisposableBean {
+
+    public static final String MDC_CORRELATION_ID = "correlationId";
+
+    /**
+     * Au-dela, les messages commences et jamais termines par le thread courant sont oublies.
+     */
+    private static final int MAX_PENDING = 10_000;
+
+    /**
+     * Les spans d'un message.
+     */
+    private static class Trace {
+        private final Span root;
+        private final String correlationId;
+        private final Queue<Span> children = new ConcurrentLinkedQueue<>();
+        private long stageStart;
+
+        Trace(Span root, String correlationId) {
+            this.root = root;
+            this.correlationId = correlationId;
+            this.stageStart = root.getStartNanoTime();
+        }
+    }
+
+    private final boolean enabled;
+
+    private final BackgroundWriter<List<Span>> writer;
+
+    private final Counter dropped;
+
+    private final ThreadLocal<Map<Message, Trace>> pending = ThreadLocal.withInitial(IdentityHashMap::new);
+
+    private final ThreadLocal<Trace> current = new ThreadLocal<>();
+
+    public MessageTracer(@Value("${app.tracing.enabled:true}") boolean enabled,
+                         @Value("${app.tracing.buffer-size:4096}") int bufferSize,
+                         ObjectProvider<SpanExporter> exporter,
+                         MeterRegistry meterRegistry) {
+        SpanExporter spanExporter = exporter.getIfAvailable();
+        this.enabled = enabled && spanExporter != null;
+        this.writer = this.enabled ? new BackgroundWriter<>("span-exporter", bufferSize, spanExporter::export) : null;
+        this.dropped = Counter.builder("enu.mediation.tracing.dropped")
+                .description("Messages dont les spans sont perdus, faute de place dans la file d'export")
+                .register(meterRegistry);
+        log.info("Spans des messages : {}", this.enabled ? "exportes par " + spanExporter.getClass().getSimpleName() : "inactifs");
+    }
+
+    /**
+     * Debut du traitement d'un message par le thread courant : son CorrelationId passe dans le MDC.
+     */
+    public void begin(Message message) {
+        MessageProperties properties = message.getMessageProperties();
+        String correlationId = properties.getCorrelationId();
+        Span root = Span.root("process " + properties.getConsumerQueue(), Span.Kind.CONSUMER)
+                .attribute("messaging.system", "rabbitmq")
+                .attribute("messaging.destination", properties.getConsumerQueue())
+                .attribute("messaging.conversation_id", correlationId)
+                .attribute("messaging.message_content_type",
+                        properties.getContentType() != null ? properties.getContentType() : properties.getHeader(CONTENT_TYPE));
+        Trace trace = new Trace(root, correlationId);
+        Map<Message, Trace> traces = pending.get();
+        if (traces.size() >= MAX_PENDING) {
+            traces.clear();
+        }
+        traces.put(message, trace);
+        makeCurrent(trace);
+    }
+
+    /**
+     * Reprise, par le thread courant, du traitement d'un message commence par {@link #begin(Message)} :
+     * les appels a FormServices qui suivent lui sont attribues. Utile au traitement par lots.
+     */
+    public void resume(Message message) {
+        Trace trace = pending.get().get(message);
+        if (trace != null) {
+            makeCurrent(trace);
+        }
+    }
+
+    /**
+     * Fin d'une etape du traitement du message courant : un span enfant allant de la fin de l'etape precedente
+     * a maintenant.
+     */
+    public void stage(String name) {
+        Trace trace = current.get();
+        if (trace == null || !enabled) {
+            return;
+        }
+        trace.children.add(trace.root.completedChild(name, trace.stageStart));
+        trace.stageStart = System.nanoTime();
+    }
+
+    /**
+     * Debut d'une operation du message courant, par ex. un appel HTTP.
+     * @return le span de l'operation, a terminer par l'appelant ; null s'il n'y a pas de message courant
+     */
+    public Span startChild(String name, Span.Kind kind) {
+        Trace trace = current.get();
+        if (trace == null || !enabled) {
+            return null;
+        }
+        Span span = trace.root.child(name, kind);
+        trace.children.add(span);
+        return span;
+    }
+
+    /**
+     * CorrelationId du message courant, null s'il n'y en a pas.
+     */
+    public String currentCorrelationId() {
+        Trace trace = current.get();
+        return trace != null ? trace.correlationId : null;
+    }
+
+    /**
+     * Fin du traitement d'un message, au moment de sa reponse.
+     * @param error l'erreur du traitement, null s'il a reussi
+     */
+    public void end(Message message, Exception error) {
+        Trace trace = pending.get().remove(message);
+        if (trace == null) {
+            return;
+        }
+        if (current.get() == trace) {
+            current.remove();
+            MDC.remove(MDC_CORRELATION_ID);
+        }
+        if (!enabled) {
+            return;
+        }
+        if (error != null) {
+            trace.root.fail(error.getClass().getSimpleName() + " : " + error.getMessage());
+        }
+        trace.root.end();
+        List<Span> spans = new ArrayList<>(trace.children.size() + 1);
+        spans.add(trace.root);
+        for (Span child : trace.children) {
+            // appel abandonne sans reponse : il est borne par la fin du message
+            child.end();
+            spans.add(child);
+        }
+        if (!writer.offer(spans)) {
+            dropped.increment();
+        }
+    }
+
+    private void makeCurrent(Trace trace) {
+        current.set(trace);
+        if (trace.correlationId != null) {
+            MDC.put(MDC_CORRELATION_ID, trace.correlationId);
+        } else {
+            MDC.remove(MDC_CORRELATION_ID);
+        }
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical.tracing;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ecriture de spans au format JSON d'OTLP (ExportTraceServiceRequest), lisible par un collecteur OpenTelemetry.
+ */
+final class OtlpJson {
+
+    static final String SERVICE_NAME = "enu-mediation";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final int STATUS_OK = 1;
+
+    private static final int STATUS_ERROR = 2;
+
+    private OtlpJson() {
+    }
+
+    static void write(List<Span> spans, Writer out) throws IOException {
+        try (JsonGenerator json = JSON_FACTORY.createGenerator(out)) {
+            write(spans, json);
+        }
+    }
+
+    static void write(List<Span> spans, OutputStream out) throws IOException {
+        try (JsonGenerator json = JSON_FACTORY.createGenerator(out)) {
+            write(spans, json);
+        }
+    }
+
+    private static void write(List<Span> spans, JsonGenerator json) throws IOException {
+        json.writeStartObject();
+        json.writeArrayFieldStart("resourceSpans");
+        json.writeStartObject();
+        json.writeObjectFieldStart("resource");
+        json.writeArrayFieldStart("attributes");
+        writeAttribute(json, "service.name", SERVICE_NAME);
+        json.writeEndArray();
+        json.writeEndObject();
+        json.writeArrayFieldStart("scopeSpans");
+        json.writeStartObject();
+        json.writeObjectFieldStart("scope");
+        json.writeStringField("name", SERVICE_NAME);
+        json.writeEndObject();
+        json.writeArrayFieldStart("spans");
+        for (Span span : spans) {
+            writeSpan(json, span);
+        }
+        json.writeEndArray();
+        json.writeEndObject();
+        json.writeEndArray();
+        json.writeEndObject();
+        json.writeEndArray();
+        json.writeEndObject();
+    }
+
+    private static void writeSpan(JsonGenerator json, Span span) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("traceId", span.getTraceId());
+        json.writeStringField("spanId", span.getSpanId());
+        if (span.getParentSpanId() != null) {
+            json.writeStringField("parentSpanId", span.getParentSpanId());
+        }
+        json.writeStringField("name", span.getName());
+        json.writeNumberField("kind", span.getKind().getCode());
+        // les entiers 64 bits sont des chaines en JSON OTLP
+        json.writeStringField("startTimeUnixNano", Long.toString(span.getStartEpochNanos()));
+        json.writeStringField("endTimeUnixNano", Long.toString(span.getEndEpochNanos()));
+        json.writeArrayFieldStart("attributes");
+        for (Map.Entry<String, Object> attribute : span.getAttributes().entrySet()) {
+            writeAttribute(json, attribute.getKey(), attribute.getValue());
+        }
+        json.writeEndArray();
+        json.writeObjectFieldStart("status");
+        if (span.getError() == null) {
+            json.writeNumberField("code", STATUS_OK);
+        } else {
+            json.writeNumberField("code", STATUS_ERROR);
+            json.writeStringField("message", span.getError());
+        }
+        json.writeEndObject();
+        json.writeEndObject();
+    }
+
+    private static void writeAttribute(JsonGenerator json, String key, Object value) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("key", key);
+        json.writeObjectFieldStart("value");
+        if (value instanceof Integer || value instanceof Long) {
+            json.writeStringField("intValue", value.toString());
+        } else if (value instanceof Boolean) {
+            json.writeBooleanField("boolValue", (Boolean) value);
+        } else {
+            json.writeStringField("stringValue", value.toString());
+        }
+        json.writeEndObject();
+        json.writeEndObject();
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical.tracing;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+
+/**
+ * Export des spans vers un collecteur OpenTelemetry, en OTLP/HTTP avec encodage JSON
+ * (par ex. POST http://localhost:4318/v1/traces). Une requete par message.
+ * <p>
+ * Un echec d'export est trace puis ignore : les spans du message sont perdus.
+ */
+@Component
+@Slf4j
+@ConditionalOnProperty(name = "app.tracing.exporter", havingValue = "otlp")
+public class OtlpSpanExporter implements SpanExporter {
+
+    private final URL endpoint;
+
+    private final int timeout;
+
+    public OtlpSpanExporter(@Value("${app.tracing.otlp.endpoint:http://localhost:4318/v1/traces}") URL endpoint,
+                            @Value("${app.tracing.otlp.timeout:2000}") int timeout) {
+        this.endpoint = endpoint;
+        this.timeout = timeout;
+        log.info("Export des spans vers {}", endpoint);
+    }
+
+    @Override
+    public void export(List<Span> spans) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setDoOutput(true);
+            connection.setRequestProperty(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE);
+            try (OutputStream out = connection.getOutputStream()) {
+                OtlpJson.write(spans, out);
+            }
+            int status = connection.getResponseCode();
+            if (status / 100 != 2) {
+                log.warn("Spans refuses par le collecteur {} : HTTP {}", endpoint, status);
+            }
+            // la reponse est lue jusqu'au bout pour que la connexion soit reutilisee
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                if (in != null) {
+                    StreamUtils.drain(in);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Echec de l'export des spans vers {} : {}", endpoint, e.getMessage());
+        }
+    }
+
+}
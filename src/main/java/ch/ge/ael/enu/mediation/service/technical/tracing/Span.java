@@ -0,0 +1,170 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical.tracing;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Une operation chronometree du traitement d'un message : le message lui-meme, une de ses etapes ou un appel
+ * a FormServices. Les identifiants suivent le format W3C Trace Context (et donc OTLP).
+ */
+@Getter
+public class Span {
+
+    /**
+     * Nature de l'operation, au sens OTLP.
+     */
+    public enum Kind {
+        INTERNAL(1), CLIENT(3), CONSUMER(5);
+
+        @Getter
+        private final int code;
+
+        Kind(int code) {
+            this.code = code;
+        }
+    }
+
+    private final String traceId;
+
+    private final String spanId;
+
+    private final String parentSpanId;
+
+    private final String name;
+
+    private final Kind kind;
+
+    private final long startEpochNanos;
+
+    private final long startNanoTime;
+
+    private volatile long endEpochNanos;
+
+    private volatile String error;
+
+    @Getter(AccessLevel.NONE)
+    private final Map<String, Object> attributes = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private Span(String traceId, String parentSpanId, String name, Kind kind, long startEpochNanos, long startNanoTime) {
+        this.traceId = traceId;
+        this.spanId = randomId(1);
+        this.parentSpanId = parentSpanId;
+        this.name = name;
+        this.kind = kind;
+        this.startEpochNanos = startEpochNanos;
+        this.startNanoTime = startNanoTime;
+    }
+
+    static Span root(String name, Kind kind) {
+        return new Span(randomId(2), null, name, kind, epochNanos(), System.nanoTime());
+    }
+
+    Span child(String name, Kind kind) {
+        long now = System.nanoTime();
+        return new Span(traceId, spanId, name, kind, startEpochNanos + (now - startNanoTime), now);
+    }
+
+    /**
+     * Span enfant deja termine, commence a l'instant (System.nanoTime()) donne.
+     */
+    Span completedChild(String name, long startNanoTime) {
+        Span child = new Span(traceId, spanId, name, Kind.INTERNAL,
+                startEpochNanos + (startNanoTime - this.startNanoTime), startNanoTime);
+        child.end();
+        return child;
+    }
+
+    public Span attribute(String key, Object value) {
+        if (value != null) {
+            attributes.put(key, value);
+        }
+        return this;
+    }
+
+    public Map<String, Object> getAttributes() {
+        synchronized (attributes) {
+            return new LinkedHashMap<>(attributes);
+        }
+    }
+
+    /**
+     * Marque l'operation comme echouee ; a appeler avant {@link #end()}.
+     */
+    public void fail(String message) {
+        this.error = message != null ? message : "";
+    }
+
+    /**
+     * Termine l'operation. Sans effet si elle l'est deja.
+     */
+    public void end() {
+        if (endEpochNanos == 0) {
+            endEpochNanos = startEpochNanos + (System.nanoTime() - startNanoTime);
+        }
+    }
+
+    public boolean isEnded() {
+        return endEpochNanos != 0;
+    }
+
+    public long getDurationNanos() {
+        return endEpochNanos - startEpochNanos;
+    }
+
+    /**
+     * Valeur de l'en-tete HTTP "traceparent" (W3C Trace Context) designant ce span.
+     */
+    public String traceparent() {
+        return "00-" + traceId + "-" + spanId + "-01";
+    }
+
+    private static long epochNanos() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    /**
+     * Identifiant aleatoire de 8 octets (span) ou 16 octets (trace), en hexadecimal.
+     */
+    private static String randomId(int longs) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        StringBuilder id = new StringBuilder(16 * longs);
+        for (int i = 0; i < longs; i++) {
+            long value;
+            do {
+                value = random.nextLong();
+            } while (value == 0);
+            String hex = Long.toHexString(value);
+            for (int pad = hex.length(); pad < 16; pad++) {
+                id.append('0');
+            }
+            id.append(hex);
+        }
+        return id.toString();
+    }
+
+}
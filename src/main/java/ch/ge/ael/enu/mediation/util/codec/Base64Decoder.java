@@ -0,0 +1,132 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.util.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Decodage base64 par blocs du champ "contenu" des documents, sans copie intermediaire de la chaine complete.
+ */
+public class Base64Decoder {
+
+    /**
+     * Taille d'un bloc de caracteres base64. Doit etre un multiple de 4.
+     */
+    static final int CHUNK_SIZE = 16 * 1024;
+
+    private Base64Decoder() {
+    }
+
+    /**
+     * Nombre d'octets obtenus par le decodage de la chaine base64 fournie.
+     */
+    public static int decodedLength(String base64) {
+        int length = base64.length();
+        while (length > 0 && base64.charAt(length - 1) == '=') {
+            length--;
+        }
+        return (int) ((long) length * 3 / 4);
+    }
+
+    /**
+     * Decode uniquement le debut de la chaine base64, par exemple pour reconnaitre le type du contenu.
+     * @return au plus maxBytes octets
+     * @throws IllegalArgumentException si le debut de la chaine n'est pas du base64 valide
+     */
+    public static byte[] decodeHead(String base64, int maxBytes) {
+        int chars = (maxBytes + 2) / 3 * 4;
+        // un prefixe plus court que la chaine est aligne sur 4 caracteres et ne contient donc pas de padding
+        byte[] head = decode(chars < base64.length() ? base64.substring(0, chars) : base64);
+        return head.length > maxBytes ? Arrays.copyOf(head, maxBytes) : head;
+    }
+
+    /**
+     * Decode la chaine base64 dans un tableau de la taille exacte du contenu.
+     * @throws IllegalArgumentException si la chaine n'est pas du base64 valide
+     */
+    public static byte[] decode(String base64) {
+        ArraySink sink = new ArraySink(decodedLength(base64));
+        try {
+            decode(base64, sink);
+        } catch (IOException e) {
+            // impossible avec un tableau en memoire
+            throw new UncheckedIOException(e);
+        }
+        return sink.bytes;
+    }
+
+    /**
+     * Decode la chaine base64 vers le flux fourni, bloc par bloc.
+     * @return le nombre d'octets decodes
+     * @throws IllegalArgumentException si la chaine n'est pas du base64 valide
+     */
+    public static long decode(String base64, OutputStream sink) throws IOException {
+        Base64.Decoder decoder = Base64.getDecoder();
+        byte[] in = new byte[CHUNK_SIZE];
+        byte[] out = new byte[CHUNK_SIZE / 4 * 3];
+        long total = 0;
+        int length = base64.length();
+        for (int start = 0; start < length; start += CHUNK_SIZE) {
+            int end = Math.min(length, start + CHUNK_SIZE);
+            int count = end - start;
+            for (int i = 0; i < count; i++) {
+                char c = base64.charAt(start + i);
+                if (c > 0x7F) {
+                    throw new IllegalArgumentException("Caractere base64 invalide a la position " + (start + i));
+                }
+                in[i] = (byte) c;
+            }
+            // seul le dernier bloc peut etre incomplet ou contenir du padding
+            int decoded = decoder.decode(count == CHUNK_SIZE ? in : Arrays.copyOf(in, count), out);
+            sink.write(out, 0, decoded);
+            total += decoded;
+        }
+        return total;
+    }
+
+    /**
+     * Flux ecrivant dans un tableau prealablement dimensionne, pour eviter la copie finale d'un ByteArrayOutputStream.
+     */
+    private static class ArraySink extends OutputStream {
+
+        private final byte[] bytes;
+
+        private int position;
+
+        ArraySink(int size) {
+            bytes = new byte[size];
+        }
+
+        @Override
+        public void write(int b) {
+            bytes[position++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, bytes, position, len);
+            position += len;
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.util.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression des messages RabbitMQ, indiquee par la propriete "content_encoding" du message.
+ * Valeurs supportees : "gzip" et "deflate" (format zlib). Une absence de valeur, "identity" ou un nom de charset
+ * (par exemple "UTF-8", valeur historiquement utilisee par les SI metier et par la mediation) signifient un
+ * message non compresse.
+ */
+public class ContentEncoding {
+
+    public static final String GZIP = "gzip";
+
+    public static final String DEFLATE = "deflate";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private ContentEncoding() {
+    }
+
+    public static boolean isIdentity(String contentEncoding) {
+        if (contentEncoding == null || contentEncoding.trim().isEmpty() || "identity".equalsIgnoreCase(contentEncoding.trim())) {
+            return true;
+        }
+        try {
+            return Charset.isSupported(contentEncoding.trim());
+        } catch (IllegalCharsetNameException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Flux du contenu decompresse. La decompression se fait au fil de la lecture : le contenu decompresse
+     * n'est jamais present en entier en memoire.
+     * @param maxDecodedSize taille maximale (octets) du contenu decompresse ; au-dela, la lecture du flux lance une
+     *                       {@link DecodedSizeExceededException}. Protege des "bombes" de compression.
+     * @throws IllegalArgumentException si l'encodage n'est pas supporte
+     * @throws IOException si le contenu n'est pas au format annonce
+     */
+    public static InputStream decode(byte[] body, String contentEncoding, long maxDecodedSize) throws IOException {
+        InputStream in = new ByteArrayInputStream(body);
+        if (isIdentity(contentEncoding)) {
+            return in;
+        }
+        switch (contentEncoding.trim().toLowerCase(Locale.ROOT)) {
+            case GZIP:
+            case "x-gzip":
+                return new BoundedInputStream(new GZIPInputStream(in, BUFFER_SIZE), maxDecodedSize);
+            case DEFLATE:
+                return new BoundedInputStream(new InflaterInputStream(in), maxDecodedSize);
+            default:
+                throw new IllegalArgumentException("L'encodage \"" + contentEncoding + "\" n'est pas supporte."
+                        + " Valeurs acceptees : " + GZIP + ", " + DEFLATE);
+        }
+    }
+
+    public static byte[] gzip(byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE)) {
+            gzip.write(body);
+        } catch (IOException e) {
+            // impossible avec un flux en memoire
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Flux comptant les octets lus, en echec des que la taille maximale est depassee.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+
+        private final long maxSize;
+
+        private long count;
+
+        BoundedInputStream(InputStream in, long maxSize) {
+            super(in);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void count(long n) throws DecodedSizeExceededException {
+            count += n;
+            if (count > maxSize) {
+                throw new DecodedSizeExceededException("Le message decompresse depasse le maximum de " + maxSize + " octets");
+            }
+        }
+    }
+
+}
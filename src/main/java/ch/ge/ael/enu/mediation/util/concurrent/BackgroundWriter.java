@@ -0,0 +1,118 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.util.concurrent;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Ecriture en arriere-plan : les producteurs deposent des elements dans un {@link RingBuffer}, un thread dedie
+ * les remet un a un a la destination. Un producteur n'attend jamais ; si la file est pleine, l'element est refuse
+ * et c'est a lui de le compter.
+ */
+@Slf4j
+public class BackgroundWriter<T> implements AutoCloseable {
+
+    /**
+     * Attente maximale du thread d'ecriture inoccupe. Il est reveille par le depot d'un element ; ce delai ne sert
+     * que de filet si un reveil est perdu (l'ecriture d'une case du RingBuffer n'est pas une barriere complete).
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final RingBuffer<T> buffer;
+
+    private final Consumer<? super T> sink;
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    /**
+     * Vrai quand le thread d'ecriture, ayant trouve la file vide, s'apprete a attendre ou attend.
+     */
+    private volatile boolean waiting;
+
+    /**
+     * @param name nom du thread d'ecriture
+     * @param capacity nombre d'elements en attente d'ecriture
+     * @param sink destination des elements, appelee par le seul thread d'ecriture
+     */
+    public BackgroundWriter(String name, int capacity, Consumer<? super T> sink) {
+        this.buffer = new RingBuffer<>(capacity);
+        this.sink = sink;
+        this.thread = new Thread(this::drain, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @return false si la file est pleine : l'element n'est pas ecrit
+     */
+    public boolean offer(T element) {
+        if (!running || !buffer.offer(element)) {
+            return false;
+        }
+        if (waiting) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    private void drain() {
+        while (running || buffer.size() > 0) {
+            T element = buffer.poll();
+            if (element == null) {
+                // signaler l'attente avant de relire la file : un element depose entre-temps est vu ici,
+                // ou son producteur voit l'attente et reveille le thread
+                waiting = true;
+                element = buffer.poll();
+                if (element == null && running) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                waiting = false;
+                if (element == null) {
+                    continue;
+                }
+            }
+            try {
+                sink.accept(element);
+            } catch (RuntimeException e) {
+                log.warn("Echec de l'ecriture en arriere-plan ({}) : {}", thread.getName(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Ecrit les elements encore en attente, puis arrete le thread d'ecriture (5 secondes au plus).
+     */
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(thread);
+        thread.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+}
@@ -18,15 +18,69 @@
  */
 package ch.ge.ael.enu.mediation.util.file;
 
+/**
+ * Remplace par un tiret toute suite de caracteres non admis dans un nom de fichier.
+ * Equivalent a {@code replaceAll(sanitizationRegex, "-").replaceAll("-+", "-")}, en un seul passage sur la chaine,
+ * avec une table des caracteres admis precalculee, et sans allocation si le nom est deja propre.
+ * Sans etat : une instance peut etre partagee.
+ */
 public class FileNameSanitizer {
 
     public static final String sanitizationRegex = "[^a-zA-Z0-9âàçéèêôùÂÀÉÈ.]";
 
+    private static final String ALLOWED_ACCENTED_CHARS = "âàçéèêôùÂÀÉÈ";
+
+    /**
+     * Caracteres admis, indexes par leur code. Tous les caracteres admis sont dans Latin-1.
+     */
+    private static final boolean[] ALLOWED = new boolean[256];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            ALLOWED[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            ALLOWED[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            ALLOWED[c] = true;
+        }
+        ALLOWED['.'] = true;
+        for (char c : ALLOWED_ACCENTED_CHARS.toCharArray()) {
+            ALLOWED[c] = true;
+        }
+    }
+
+    private static boolean isAllowed(char c) {
+        return c < ALLOWED.length && ALLOWED[c];
+    }
+
     public String sanitize(String fileName) {
-        String ret = null;
-        if (fileName != null) {
-            ret = fileName.replaceAll(sanitizationRegex, "-").replaceAll("-+", "-");
+        if (fileName == null) {
+            return null;
+        }
+        int length = fileName.length();
+        int first = 0;
+        while (first < length && isAllowed(fileName.charAt(first))) {
+            first++;
+        }
+        if (first == length) {
+            return fileName;
+        }
+
+        StringBuilder sb = new StringBuilder(length);
+        sb.append(fileName, 0, first);
+        boolean lastIsDash = false;
+        for (int i = first; i < length; i++) {
+            char c = fileName.charAt(i);
+            if (isAllowed(c)) {
+                sb.append(c);
+                lastIsDash = false;
+            } else if (!lastIsDash) {
+                sb.append('-');
+                lastIsDash = true;
+            }
         }
-        return ret;
+        return sb.toString();
     }
 }
@@ -0,0 +1,116 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.util.hash;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * Algorithmes d'empreinte acceptes dans le champ "ged.algorithmeHash" des messages.
+ */
+public enum HashAlgorithm {
+
+    SHA_256("SHA-256", 32),
+
+    SHA_512("SHA-512", 64),
+
+    MD5("MD5", 16);
+
+    private final String javaName;
+
+    private final int digestLength;
+
+    HashAlgorithm(String javaName, int digestLength) {
+        this.javaName = javaName;
+        this.digestLength = digestLength;
+    }
+
+    /**
+     * Par exemple : "SHA-256", "sha256", "SHA_256" -> SHA_256.
+     * @return null si l'algorithme n'est pas supporte
+     */
+    public static HashAlgorithm fromLabel(String label) {
+        if (label == null) {
+            return null;
+        }
+        String normalized = label.trim().toUpperCase(Locale.ROOT).replace("-", "").replace("_", "");
+        for (HashAlgorithm algorithm : values()) {
+            if (algorithm.javaName.replace("-", "").equals(normalized)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    public MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(javaName);
+        } catch (NoSuchAlgorithmException e) {
+            // les 3 algorithmes sont fournis par toute JVM
+            throw new IllegalStateException("Algorithme d'empreinte [" + javaName + "] non disponible", e);
+        }
+    }
+
+    /**
+     * Decode une empreinte exprimee en hexadecimal (casse indifferente) ou en base64.
+     * @return null si l'empreinte n'est ni l'un ni l'autre, ou n'a pas la longueur attendue pour l'algorithme
+     */
+    public byte[] parseHash(String hash) {
+        if (hash == null) {
+            return null;
+        }
+        String trimmed = hash.trim();
+        if (trimmed.length() == 2 * digestLength) {
+            byte[] bytes = parseHex(trimmed);
+            if (bytes != null) {
+                return bytes;
+            }
+        }
+        try {
+            byte[] bytes = Base64.getDecoder().decode(trimmed);
+            return bytes.length == digestLength ? bytes : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compare en temps constant une empreinte calculee a l'empreinte declaree.
+     */
+    public boolean matches(byte[] digest, String hash) {
+        byte[] expected = parseHash(hash);
+        return expected != null && MessageDigest.isEqual(expected, digest);
+    }
+
+    private static byte[] parseHex(String s) {
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(s.charAt(2 * i), 16);
+            int low = Character.digit(s.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+}
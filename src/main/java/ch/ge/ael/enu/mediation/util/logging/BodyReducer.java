@@ -22,12 +22,17 @@ import static ch.ge.ael.enu.mediation.util.logging.StringTruncationUtils.SHOW_AF
 import static ch.ge.ael.enu.mediation.util.logging.StringTruncationUtils.SHOW_BEFORE;
 import static ch.ge.ael.enu.mediation.util.logging.StringTruncationUtils.TRUNCATION;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Evite de mettre dans le fichier de trace un Body trop long, en tronquant les champs dont on sait qu'ils peuvent
  * etre tres longs.
+ * Le Body est parcouru octet par octet : seules les parties conservees sont decodees en texte.
  */
 public class BodyReducer {
 
+    private static final byte[] CONTENU = "\"contenu\"".getBytes(StandardCharsets.US_ASCII);
+
     private final int maxFileSize;
 
     public BodyReducer(int maxFileSize) {
@@ -38,22 +43,93 @@ public class BodyReducer {
      * Tronque le Body s'il est trop long.
      */
     public String reduceBody(byte[] body) {
-        String sBody = new String(body);
+        return reduceBody(body, Integer.MAX_VALUE);
+    }
 
-        String toLog = sBody;
+    /**
+     * Tronque chaque champ "contenu" trop long, puis le Body lui-meme a maxLength caracteres.
+     */
+    public String reduceBody(byte[] body, int maxLength) {
+        StringBuilder toLog = new StringBuilder(Math.min(body.length, maxLength) + TRUNCATION.length());
+        int maxContenu = getEffectiveMaxFileSize();
+        int pos = 0;
+        int indexFieldNameContenu;
+        while (toLog.length() < maxLength && (indexFieldNameContenu = indexOf(body, CONTENU, pos)) != -1) {
+            int indexStartContenu = valueStart(body, indexFieldNameContenu + CONTENU.length);  // debut de la valeur du champ "contenu"
+            int indexEndContenu = indexStartContenu == -1 ? -1 : indexOf(body, (byte) '"', indexStartContenu);
+            if (indexEndContenu == -1) {
+                // pas une valeur de type chaine
+                append(toLog, body, pos, indexFieldNameContenu + CONTENU.length, maxLength);
+                pos = indexFieldNameContenu + CONTENU.length;
+            } else if (indexEndContenu - indexStartContenu > maxContenu) {
+                append(toLog, body, pos, indexStartContenu + SHOW_BEFORE, maxLength);
+                toLog.append(TRUNCATION);
+                pos = indexEndContenu - SHOW_AFTER;
+            } else {
+                append(toLog, body, pos, indexEndContenu, maxLength);
+                pos = indexEndContenu;
+            }
+        }
+        append(toLog, body, pos, body.length, maxLength);
+        if (toLog.length() > maxLength) {
+            toLog.setLength(maxLength);
+            toLog.append(" ... (message tronque, ").append(body.length).append(" octets)");
+        }
+        return toLog.toString();
+    }
 
-        int indexFieldNameContenu = sBody.indexOf("\"contenu\"");
-        if (indexFieldNameContenu != -1) {
-            int indexStartContenu = indexFieldNameContenu + "\"contenu\": \"".length();  // debut de la valeur du champ "contenu"
-            int lengthContenu = sBody.substring(indexStartContenu).indexOf('\"');        // longueur du champ "contenu"
-            if (lengthContenu > getEffectiveMaxFileSize()) {
-                toLog = sBody.substring(0, indexStartContenu + SHOW_BEFORE)
-                        + TRUNCATION
-                        + sBody.substring(indexStartContenu + lengthContenu - SHOW_AFTER);
+    /**
+     * Ajoute les octets de from a to, en n'en decodant pas plus que necessaire pour atteindre maxLength caracteres.
+     */
+    private static void append(StringBuilder toLog, byte[] body, int from, int to, int maxLength) {
+        if (from >= to || toLog.length() > maxLength) {
+            return;
+        }
+        // un caractere fait au moins un octet : maxLength - longueur + 1 octets suffisent a depasser maxLength
+        long available = (long) maxLength - toLog.length() + 1;
+        int end = (int) Math.min(to, from + available);
+        toLog.append(new String(body, from, end - from, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Position du premier caractere de la valeur chaine qui suit un nom de champ, ou -1 si la valeur n'est pas une chaine.
+     */
+    private static int valueStart(byte[] body, int pos) {
+        pos = skipWhitespace(body, pos);
+        if (pos >= body.length || body[pos] != ':') {
+            return -1;
+        }
+        pos = skipWhitespace(body, pos + 1);
+        return pos < body.length && body[pos] == '"' ? pos + 1 : -1;
+    }
+
+    private static int skipWhitespace(byte[] body, int pos) {
+        while (pos < body.length && (body[pos] == ' ' || body[pos] == '\n' || body[pos] == '\r' || body[pos] == '\t')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int indexOf(byte[] body, byte b, int from) {
+        for (int i = from; i < body.length; i++) {
+            if (body[i] == b) {
+                return i;
             }
         }
+        return -1;
+    }
 
-        return toLog;
+    private static int indexOf(byte[] body, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= body.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (body[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
     }
 
     /**
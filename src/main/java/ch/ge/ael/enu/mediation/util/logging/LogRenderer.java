@@ -0,0 +1,199 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.util.logging;
+
+import ch.ge.ael.enu.mediation.configuration.serialization.MessageFormat;
+import ch.ge.ael.enu.mediation.util.codec.ContentEncoding;
+import com.fasterxml.jackson.core.Base64Variant;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.JsonGeneratorDelegate;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.function.Supplier;
+
+import static ch.ge.ael.enu.mediation.model.Header.CONTENT_TYPE;
+import static ch.ge.ael.enu.mediation.util.logging.StringTruncationUtils.SHOW_AFTER;
+import static ch.ge.ael.enu.mediation.util.logging.StringTruncationUtils.SHOW_BEFORE;
+import static ch.ge.ael.enu.mediation.util.logging.StringTruncationUtils.TRUNCATION;
+
+/**
+ * Rendu des messages dans les traces : chaque methode rend un objet dont le texte n'est construit que lorsque
+ * la trace est effectivement ecrite (appel de toString() par le logger), donc jamais si le niveau de trace est
+ * desactive.
+ * Le texte est borne : champs "contenu" tronques selon les regles de {@link BodyReducer}, contenus binaires
+ * remplaces par leur taille, et texte complet limite a "app.logging.max-line-length" caracteres.
+ */
+@Component
+public class LogRenderer {
+
+    private static final String CONTENU = "contenu";
+
+    private final ObjectMapper mapper;
+
+    private final BodyReducer bodyReducer;
+
+    private final int maxFileSize;
+
+    private final int maxLineLength;
+
+    public LogRenderer(ObjectMapper mapper,
+                       @Value("${app.logging.max-file-content-size:100}") int maxFileSize,
+                       @Value("${app.logging.max-line-length:4000}") int maxLineLength) {
+        this.mapper = mapper;
+        this.bodyReducer = new BodyReducer(maxFileSize);
+        this.maxFileSize = Math.max(maxFileSize, SHOW_BEFORE + TRUNCATION.length() + SHOW_AFTER);
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Un message RabbitMQ : proprietes utiles et corps reduit.
+     */
+    public Object message(Message message) {
+        return lazy(() -> renderMessage(message));
+    }
+
+    /**
+     * Un message deserialise, rendu en JSON.
+     */
+    public Object body(Object body) {
+        return lazy(() -> renderBody(body));
+    }
+
+    private static Object lazy(Supplier<String> renderer) {
+        return new Object() {
+            @Override
+            public String toString() {
+                return renderer.get();
+            }
+        };
+    }
+
+    String renderMessage(Message message) {
+        MessageProperties properties = message.getMessageProperties();
+        String contentType = properties.getContentType();
+        if (contentType == null) {
+            contentType = properties.getHeader(CONTENT_TYPE);
+        }
+        byte[] body = message.getBody() == null ? new byte[0] : message.getBody();
+        StringBuilder text = new StringBuilder("Message(contentType=").append(contentType)
+                .append(", contentEncoding=").append(properties.getContentEncoding())
+                .append(", correlationId=").append(properties.getCorrelationId())
+                .append(", appId=").append(properties.getAppId())
+                .append(", routingKey=").append(properties.getReceivedRoutingKey())
+                .append(", taille=").append(body.length).append(" octets, body=");
+        if (!ContentEncoding.isIdentity(properties.getContentEncoding())
+                || MessageFormat.fromContentType(contentType) != MessageFormat.JSON) {
+            text.append("(binaire)");
+        } else {
+            text.append(bodyReducer.reduceBody(body, Math.max(0, maxLineLength - text.length())));
+        }
+        return text.append(')').toString();
+    }
+
+    String renderBody(Object body) {
+        BoundedWriter out = new BoundedWriter(maxLineLength);
+        try (JsonGenerator generator = new ReducingGenerator(mapper.getFactory().createGenerator(out), maxFileSize)) {
+            mapper.writeValue(generator, body);
+        } catch (LimitReachedException e) {
+            // texte tronque
+        } catch (IOException | RuntimeException e) {
+            return body.getClass().getSimpleName() + " (rendu impossible : " + e.getMessage() + ")";
+        }
+        return out.toString();
+    }
+
+    /**
+     * Tronque les champs "contenu" trop longs et remplace les contenus binaires par leur taille.
+     */
+    private static class ReducingGenerator extends JsonGeneratorDelegate {
+
+        private final int maxFileSize;
+
+        ReducingGenerator(JsonGenerator delegate, int maxFileSize) {
+            super(delegate, false);
+            this.maxFileSize = maxFileSize;
+        }
+
+        @Override
+        public void writeString(String text) throws IOException {
+            if (text != null && text.length() > maxFileSize && CONTENU.equals(getOutputContext().getCurrentName())) {
+                text = text.substring(0, SHOW_BEFORE) + TRUNCATION + text.substring(text.length() - SHOW_AFTER);
+            }
+            super.writeString(text);
+        }
+
+        @Override
+        public void writeBinary(Base64Variant variant, byte[] data, int offset, int length) throws IOException {
+            super.writeString("(" + length + " octets)");
+        }
+    }
+
+    /**
+     * Arrete l'ecriture des que la limite est atteinte.
+     */
+    private static class BoundedWriter extends Writer {
+
+        private final StringBuilder text = new StringBuilder();
+
+        private final int maxLength;
+
+        private boolean truncated;
+
+        BoundedWriter(int maxLength) {
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws LimitReachedException {
+            int available = maxLength - text.length();
+            if (length > available) {
+                text.append(buffer, offset, Math.max(0, available));
+                truncated = true;
+                throw new LimitReachedException();
+            }
+            text.append(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return truncated ? text + " ... (trace tronquee a " + maxLength + " caracteres)" : text.toString();
+        }
+    }
+
+    private static class LimitReachedException extends IOException {
+        LimitReachedException() {
+            super("limite de la trace atteinte");
+        }
+    }
+
+}
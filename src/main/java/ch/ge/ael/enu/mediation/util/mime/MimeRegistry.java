@@ -0,0 +1,75 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.util.mime;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Types MIME de documents acceptes par la mediation, construits au demarrage depuis "app.document.mime-types".
+ * Noter que si un type est ajoute a cette liste, le document n'est pas pour autant forcement accepte par
+ * FormServices, car FormServices a sa propre liste de types acceptes.
+ */
+@Component
+@Slf4j
+public class MimeRegistry {
+
+    private final Set<MimeType> allowed = EnumSet.noneOf(MimeType.class);
+
+    private final boolean sniffing;
+
+    public MimeRegistry(@Value("${app.document.mime-types:application/pdf,image/jpeg,image/png,text/plain}") List<String> mimeTypes,
+                        @Value("${app.document.mime-sniffing:false}") boolean sniffing) {
+        for (String name : mimeTypes) {
+            MimeType mimeType = MimeType.fromName(name);
+            if (mimeType == null) {
+                throw new IllegalStateException("Le type mime [" + name + "] de app.document.mime-types n'est pas prevu");
+            }
+            allowed.add(mimeType);
+        }
+        this.sniffing = sniffing;
+        log.info("Types mime acceptes : {}, verification du contenu : {}", allowed, sniffing);
+    }
+
+    /**
+     * @return le type, s'il est accepte par la mediation ; null sinon
+     */
+    public MimeType getAllowed(String name) {
+        MimeType mimeType = MimeType.fromName(name);
+        return mimeType != null && allowed.contains(mimeType) ? mimeType : null;
+    }
+
+    /**
+     * Indique si le debut du contenu d'un document correspond a son type declare.
+     * Toujours vrai si la verification du contenu est desactivee.
+     */
+    public boolean contentMatches(MimeType declared, byte[] head) {
+        return !sniffing || declared.matches(head);
+    }
+
+    public boolean isSniffing() {
+        return sniffing;
+    }
+
+}
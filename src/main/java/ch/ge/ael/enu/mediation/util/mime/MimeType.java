@@ -0,0 +1,119 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.util.mime;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Types MIME connus de la mediation, avec leur extension de fichier et leur signature binaire.
+ */
+public enum MimeType {
+
+    PDF("application/pdf", "pdf") {
+        @Override
+        boolean matches(byte[] head) {
+            return startsWith(head, '%', 'P', 'D', 'F', '-');
+        }
+    },
+
+    JPEG("image/jpeg", "jpg") {
+        @Override
+        boolean matches(byte[] head) {
+            return startsWith(head, 0xFF, 0xD8, 0xFF);
+        }
+    },
+
+    PNG("image/png", "png") {
+        @Override
+        boolean matches(byte[] head) {
+            return startsWith(head, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A);
+        }
+    },
+
+    TEXT("text/plain", "txt") {
+        @Override
+        boolean matches(byte[] head) {
+            // pas de signature : on refuse seulement les caracteres de controle, hormis tabulation et fins de ligne
+            for (byte b : head) {
+                if ((b >= 0 && b < 0x20 && b != '\t' && b != '\n' && b != '\r' && b != '\f') || b == 0x7F) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    };
+
+    /**
+     * Nombre d'octets de debut de contenu necessaires a {@link #matches(byte[])}.
+     */
+    public static final int HEAD_LENGTH = 16;
+
+    private static final Map<String, MimeType> BY_NAME = new HashMap<>();
+
+    static {
+        for (MimeType mimeType : values()) {
+            BY_NAME.put(mimeType.name, mimeType);
+        }
+    }
+
+    private final String name;
+
+    private final String extension;
+
+    MimeType(String name, String extension) {
+        this.name = name;
+        this.extension = extension;
+    }
+
+    /**
+     * Par exemple : "image/jpeg" -> JPEG.
+     * @return null si le type n'est pas connu
+     */
+    public static MimeType fromName(String name) {
+        return name == null ? null : BY_NAME.get(name.trim().toLowerCase(Locale.ROOT));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Indique si le debut du contenu (au plus {@link #HEAD_LENGTH} octets) est compatible avec ce type.
+     */
+    abstract boolean matches(byte[] head);
+
+    private static boolean startsWith(byte[] head, int... signature) {
+        if (head.length < signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if ((head[i] & 0xFF) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
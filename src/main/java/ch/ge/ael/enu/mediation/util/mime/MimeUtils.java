@@ -27,15 +27,11 @@ public class MimeUtils {
      * Par exenmple : image/jpeg -> jpg
      */
     public static String getFileExtension(String mimeType) {
-        if (mimeType.equals("application/pdf")) {
-            return "pdf";
-        } else if (mimeType.equals("image/jpeg")) {
-            return "jpg";
-        } else if (mimeType.equals("text/plain")) {
-            return "txt";
-        } else {
+        MimeType type = MimeType.fromName(mimeType);
+        if (type == null) {
             throw new IllegalArgumentException("Le type mime [" + mimeType + " n'est pas prevu");
         }
+        return type.getExtension();
     }
 
 }
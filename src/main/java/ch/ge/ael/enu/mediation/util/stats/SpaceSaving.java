@@ -0,0 +1,186 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.util.stats;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Les cles les plus lourdes d'un flux, en memoire fixe (algorithme Space-Saving de Metwally et al., pondere).
+ * <p>
+ * Au plus "capacity" cles sont suivies. Une cle inconnue remplace la cle suivie la plus legere, dont elle herite
+ * le poids : le poids d'une cle est donc surestime d'au plus son "error". Toute cle dont le poids reel depasse
+ * poids total / capacity est garantie d'etre suivie.
+ * <p>
+ * Les cles suivies sont dans un tas minimum indexe : ajout et remplacement en O(log capacity).
+ */
+public class SpaceSaving {
+
+    /**
+     * Une cle suivie : son poids reel est compris entre count - error et count.
+     */
+    @Getter
+    @RequiredArgsConstructor
+    public static class Entry {
+        private final String key;
+        private final double count;
+        private final double error;
+    }
+
+    private final int capacity;
+
+    private final String[] keys;
+
+    private final double[] counts;
+
+    private final double[] errors;
+
+    /**
+     * Position de chaque cle suivie dans le tas.
+     */
+    private final Map<String, Integer> positions;
+
+    private int size;
+
+    public SpaceSaving(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacite invalide : " + capacity);
+        }
+        this.capacity = capacity;
+        this.keys = new String[capacity];
+        this.counts = new double[capacity];
+        this.errors = new double[capacity];
+        this.positions = new HashMap<>(capacity * 4 / 3 + 1);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Ajoute un poids (positif) a une cle.
+     */
+    public synchronized void add(String key, double weight) {
+        if (key == null || !(weight > 0)) {
+            return;
+        }
+        Integer position = positions.get(key);
+        if (position != null) {
+            counts[position] += weight;
+            siftDown(position);
+        } else if (size < capacity) {
+            keys[size] = key;
+            counts[size] = weight;
+            errors[size] = 0;
+            positions.put(key, size);
+            siftUp(size++);
+        } else {
+            // la cle la plus legere est remplacee
+            positions.remove(keys[0]);
+            double minimum = counts[0];
+            keys[0] = key;
+            errors[0] = minimum;
+            counts[0] = minimum + weight;
+            positions.put(key, 0);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Multiplie tous les poids par un facteur (entre 0 et 1), pour privilegier les poids recents.
+     * L'ordre des cles n'est pas modifie.
+     */
+    public synchronized void decay(double factor) {
+        for (int i = 0; i < size; i++) {
+            counts[i] *= factor;
+            errors[i] *= factor;
+        }
+    }
+
+    /**
+     * Les n cles les plus lourdes, de la plus lourde a la moins lourde.
+     */
+    public synchronized List<Entry> top(int n) {
+        List<Entry> entries = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            entries.add(new Entry(keys[i], counts[i], errors[i]));
+        }
+        entries.sort(Comparator.comparingDouble(Entry::getCount).reversed());
+        return entries.size() > n ? new ArrayList<>(entries.subList(0, n)) : entries;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < size; i++) {
+            keys[i] = null;
+        }
+        positions.clear();
+        size = 0;
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (counts[parent] <= counts[position]) {
+                return;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            int smallest = position;
+            int left = 2 * position + 1;
+            int right = left + 1;
+            if (left < size && counts[left] < counts[smallest]) {
+                smallest = left;
+            }
+            if (right < size && counts[right] < counts[smallest]) {
+                smallest = right;
+            }
+            if (smallest == position) {
+                return;
+            }
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        String key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        double count = counts[i];
+        counts[i] = counts[j];
+        counts[j] = count;
+        double error = errors[i];
+        errors[i] = errors[j];
+        errors[j] = error;
+        positions.put(keys[i], i);
+        positions.put(keys[j], j);
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.util.validation;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Plan de validation compile : pour chaque propriete contrainte, lecture directe du champ puis verification de
+ * chacune de ses contraintes, avec le message deja interpole.
+ */
+class CompiledValidationPlan implements ValidationPlan {
+
+    /**
+     * Une contrainte d'une propriete.
+     */
+    static class Check {
+        private final Predicate<Object> valid;
+        private final String message;
+
+        Check(Predicate<Object> valid, String message) {
+            this.valid = valid;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Une propriete et ses contraintes.
+     */
+    static class Property {
+        private final Field field;
+        private final Check[] checks;
+
+        Property(Field field, List<Check> checks) {
+            this.field = field;
+            this.checks = checks.toArray(new Check[0]);
+        }
+    }
+
+    private final Property[] properties;
+
+    CompiledValidationPlan(List<Property> properties) {
+        this.properties = properties.toArray(new Property[0]);
+    }
+
+    @Override
+    public List<Violation> validate(Object bean) {
+        List<Violation> violations = null;
+        for (Property property : properties) {
+            Object value;
+            try {
+                value = property.field.get(bean);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Champ " + property.field + " illisible", e);
+            }
+            for (Check check : property.checks) {
+                if (!check.valid.test(value)) {
+                    if (violations == null) {
+                        violations = new ArrayList<>();
+                    }
+                    violations.add(new Violation(property.field.getName(), check.message, value));
+                }
+            }
+        }
+        return violations == null ? Collections.emptyList() : violations;
+    }
+
+}
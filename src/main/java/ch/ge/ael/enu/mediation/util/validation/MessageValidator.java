@@ -0,0 +1,270 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.util.validation;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.validation.GroupSequence;
+import javax.validation.MessageInterpolator;
+import javax.validation.Validator;
+import javax.validation.ValidatorFactory;
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.NotEmpty;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Pattern;
+import javax.validation.constraints.Size;
+import javax.validation.groups.Default;
+import javax.validation.metadata.BeanDescriptor;
+import javax.validation.metadata.ConstraintDescriptor;
+import javax.validation.metadata.PropertyDescriptor;
+import javax.validation.metadata.ValidateUnwrappedValue;
+import java.lang.annotation.Annotation;
+import java.lang.annotation.ElementType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Validation Bean Validation des messages recus.
+ * <p>
+ * Pour chaque classe de message, les metadonnees de validation sont parcourues une seule fois, au demarrage
+ * pour les classes connues, et compilees en un plan de lecture directe des champs, si toutes les contraintes
+ * de la classe sont simples : NotNull, NotEmpty, NotBlank, Size et Pattern du groupe par defaut, portees par
+ * des champs. Les messages sont interpoles a la compilation par l'interpolateur de la fabrique et sont donc
+ * identiques a ceux de Hibernate Validator.
+ * <p>
+ * Toute autre classe (validation en cascade, contrainte de classe, sur un getter ou sur un element de
+ * conteneur, contrainte personnalisee, groupes...) est validee par Hibernate Validator.
+ */
+@Slf4j
+public class MessageValidator {
+
+    private final Validator validator;
+
+    private final MessageInterpolator interpolator;
+
+    private final Map<Class<?>, ValidationPlan> plans = new ConcurrentHashMap<>();
+
+    public MessageValidator(ValidatorFactory factory, Collection<Class<?>> messageClasses) {
+        this.validator = factory.getValidator();
+        this.interpolator = factory.getMessageInterpolator();
+        messageClasses.forEach(this::planFor);
+    }
+
+    /**
+     * @return les violations, ou une liste vide si l'objet est valide
+     */
+    public List<Violation> validate(Object object) {
+        return planFor(object.getClass()).validate(object);
+    }
+
+    /**
+     * Vrai si les instances de la classe sont validees par un plan compile.
+     */
+    public boolean isCompiled(Class<?> type) {
+        return planFor(type) instanceof CompiledValidationPlan;
+    }
+
+    private ValidationPlan planFor(Class<?> type) {
+        return plans.computeIfAbsent(type, this::compile);
+    }
+
+    private ValidationPlan compile(Class<?> type) {
+        try {
+            ValidationPlan plan = compilePlan(type);
+            log.debug("Validation de {} : plan compile", type.getSimpleName());
+            return plan;
+        } catch (NotCompilableException | RuntimeException e) {
+            log.debug("Validation de {} : Hibernate Validator ({})", type.getSimpleName(), e.getMessage());
+            return bean -> validator.validate(bean).stream()
+                    .map(Violation::of)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private CompiledValidationPlan compilePlan(Class<?> type) throws NotCompilableException {
+        if (type.isAnnotationPresent(GroupSequence.class)) {
+            throw new NotCompilableException("sequence de groupes");
+        }
+        BeanDescriptor bean = validator.getConstraintsForClass(type);
+        if (!bean.getConstraintDescriptors().isEmpty()) {
+            throw new NotCompilableException("contrainte de classe");
+        }
+        List<CompiledValidationPlan.Property> properties = new ArrayList<>();
+        for (PropertyDescriptor property : bean.getConstrainedProperties()) {
+            String name = property.getPropertyName();
+            if (property.isCascaded()) {
+                throw new NotCompilableException("validation en cascade de " + name);
+            }
+            if (!property.getConstrainedContainerElementTypes().isEmpty()) {
+                throw new NotCompilableException("contrainte sur les elements de " + name);
+            }
+            if (!property.findConstraints().declaredOn(ElementType.METHOD).getConstraintDescriptors().isEmpty()) {
+                throw new NotCompilableException("contrainte sur le getter de " + name);
+            }
+            Field field = findField(type, name);
+            List<CompiledValidationPlan.Check> checks = new ArrayList<>();
+            for (ConstraintDescriptor<?> constraint : property.getConstraintDescriptors()) {
+                checks.add(new CompiledValidationPlan.Check(predicateFor(constraint, field), messageFor(constraint)));
+            }
+            properties.add(new CompiledValidationPlan.Property(field, checks));
+        }
+        return new CompiledValidationPlan(properties);
+    }
+
+    private static Predicate<Object> predicateFor(ConstraintDescriptor<?> constraint, Field field) throws NotCompilableException {
+        Class<? extends Annotation> annotationType = constraint.getAnnotation().annotationType();
+        if (!constraint.getComposingConstraints().isEmpty()
+                || !constraint.getGroups().equals(Collections.singleton(Default.class))
+                || constraint.getValueUnwrapping() == ValidateUnwrappedValue.UNWRAP) {
+            throw new NotCompilableException("contrainte " + annotationType.getSimpleName() + " de " + field.getName());
+        }
+        Class<?> valueType = field.getType();
+        Map<String, Object> attributes = constraint.getAttributes();
+        if (annotationType == NotNull.class) {
+            return Objects::nonNull;
+        } else if (annotationType == NotEmpty.class && hasSize(valueType)) {
+            return value -> value != null && sizeOf(value) > 0;
+        } else if (annotationType == NotBlank.class && CharSequence.class.isAssignableFrom(valueType)) {
+            return value -> value != null && value.toString().trim().length() > 0;
+        } else if (annotationType == Size.class && hasSize(valueType)) {
+            int min = (Integer) attributes.get("min");
+            int max = (Integer) attributes.get("max");
+            return value -> {
+                if (value == null) {
+                    return true;
+                }
+                int size = sizeOf(value);
+                return size >= min && size <= max;
+            };
+        } else if (annotationType == Pattern.class && CharSequence.class.isAssignableFrom(valueType)) {
+            int flags = 0;
+            for (Pattern.Flag flag : (Pattern.Flag[]) attributes.get("flags")) {
+                flags |= flag.getValue();
+            }
+            java.util.regex.Pattern pattern = java.util.regex.Pattern.compile((String) attributes.get("regexp"), flags);
+            return value -> value == null || pattern.matcher((CharSequence) value).matches();
+        }
+        throw new NotCompilableException("contrainte " + annotationType.getSimpleName() + " sur " + field.getName()
+                + " de type " + valueType.getSimpleName());
+    }
+
+    /**
+     * Message de la contrainte, interpole une fois pour toutes. Un message dependant de la valeur validee
+     * (expression "${...}") n'est pas compilable.
+     */
+    private String messageFor(ConstraintDescriptor<?> constraint) throws NotCompilableException {
+        String template = constraint.getMessageTemplate();
+        if (template.contains("${")) {
+            throw new NotCompilableException("message " + template);
+        }
+        return interpolator.interpolate(template, new InterpolationContext(constraint));
+    }
+
+    /**
+     * Champ portant la propriete, rendu lisible. La propriete doit etre declaree par un seul champ de la hierarchie.
+     */
+    private static Field findField(Class<?> type, String name) throws NotCompilableException {
+        Field found = null;
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                if (field.getName().equals(name) && !Modifier.isStatic(field.getModifiers())) {
+                    if (found != null) {
+                        throw new NotCompilableException("champ " + name + " masque");
+                    }
+                    found = field;
+                }
+            }
+        }
+        if (found == null || found.getType().getName().startsWith("java.util.Optional")) {
+            throw new NotCompilableException("propriete " + name + " sans champ simple");
+        }
+        try {
+            found.setAccessible(true);
+        } catch (RuntimeException e) {
+            throw new NotCompilableException("champ " + name + " inaccessible");
+        }
+        return found;
+    }
+
+    private static boolean hasSize(Class<?> type) {
+        return CharSequence.class.isAssignableFrom(type)
+                || Collection.class.isAssignableFrom(type)
+                || Map.class.isAssignableFrom(type)
+                || type.isArray();
+    }
+
+    private static int sizeOf(Object value) {
+        if (value instanceof CharSequence) {
+            return ((CharSequence) value).length();
+        } else if (value instanceof Collection) {
+            return ((Collection<?>) value).size();
+        } else if (value instanceof Map) {
+            return ((Map<?, ?>) value).size();
+        }
+        return Array.getLength(value);
+    }
+
+    /**
+     * Contexte d'interpolation d'un message a la compilation : les parametres du message (min, max, regexp...)
+     * sont les attributs de la contrainte ; la valeur validee n'est pas connue.
+     */
+    private static class InterpolationContext implements MessageInterpolator.Context {
+
+        private final ConstraintDescriptor<?> constraint;
+
+        private InterpolationContext(ConstraintDescriptor<?> constraint) {
+            this.constraint = constraint;
+        }
+
+        @Override
+        public ConstraintDescriptor<?> getConstraintDescriptor() {
+            return constraint;
+        }
+
+        @Override
+        public Object getValidatedValue() {
+            return null;
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> type) {
+            if (type.isInstance(this)) {
+                return type.cast(this);
+            }
+            throw new javax.validation.ValidationException("Type " + type.getName() + " non supporte");
+        }
+    }
+
+    private static class NotCompilableException extends Exception {
+        private NotCompilableException(String message) {
+            super(message);
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.util.validation;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import javax.validation.ConstraintViolation;
+
+/**
+ * Violation d'une contrainte de validation : chemin de la propriete, message interpole et valeur fautive,
+ * comme dans une {@link ConstraintViolation}.
+ */
+@Getter
+@RequiredArgsConstructor
+public class Violation {
+
+    private final String propertyPath;
+
+    private final String message;
+
+    private final Object invalidValue;
+
+    static Violation of(ConstraintViolation<?> violation) {
+        return new Violation(violation.getPropertyPath().toString(), violation.getMessage(), violation.getInvalidValue());
+    }
+
+}
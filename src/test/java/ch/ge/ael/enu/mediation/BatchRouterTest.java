@@ -0,0 +1,186 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation;
+
+import ch.ge.ael.enu.business.domain.v1_0.DemarcheDeposee;
+import ch.ge.ael.enu.business.domain.v1_0.DemarcheEnTraitement;
+import ch.ge.ael.enu.business.domain.v1_0.DocumentUsager;
+import ch.ge.ael.enu.mediation.MainRouter.ParsedMessage;
+import ch.ge.ael.enu.mediation.exception.IllegalMessageException;
+import ch.ge.ael.enu.mediation.exception.TechnicalException;
+import ch.ge.ael.enu.mediation.service.DemarcheService;
+import ch.ge.ael.enu.mediation.service.technical.HeavyHitters;
+import ch.ge.ael.enu.mediation.service.technical.InFlightMessages;
+import ch.ge.ael.enu.mediation.service.technical.ResponseHandler;
+import ch.ge.ael.enu.mediation.service.technical.tracing.MessageTracer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class BatchRouterTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final MainRouter mainRouter = mock(MainRouter.class);
+
+    private final DemarcheService demarcheService = mock(DemarcheService.class);
+
+    private final ResponseHandler responseHandler = mock(ResponseHandler.class);
+
+    private final BatchRouter batchRouter = new BatchRouter(mainRouter, demarcheService, responseHandler,
+            mock(MessageTracer.class), mock(InFlightMessages.class), mock(HeavyHitters.class));
+
+    @Test
+    void transitions_of_the_same_demarche_are_applied_together_with_one_reply_each() throws Exception {
+        Message deposee = parsed("c1", DEMARCHE_DEPOSEE, body(DemarcheDeposee.class, "D1"));
+        Message enTraitement = parsed("c2", DEMARCHE_EN_TRAITEMENT, body(DemarcheEnTraitement.class, "D1"));
+        when(demarcheService.handleDemarcheTransitions(eq("D1"), eq("usager"), anyList()))
+                .thenReturn(Arrays.asList(null, null));
+
+        batchRouter.consume(Arrays.asList(deposee, enTraitement));
+
+        InOrder inOrder = inOrder(demarcheService, responseHandler);
+        inOrder.verify(demarcheService).handleDemarcheTransitions(eq("D1"), eq("usager"), anyList());
+        inOrder.verify(responseHandler).handleOk(deposee);
+        inOrder.verify(responseHandler).handleOk(enTraitement);
+        verifyNoMoreInteractions(demarcheService, responseHandler);
+    }
+
+    @Test
+    void pending_transitions_are_applied_before_a_sequence() throws Exception {
+        Message deposee = parsed("c1", DEMARCHE_DEPOSEE, body(DemarcheDeposee.class, "D1"));
+        Message sequence = message("c2", SEQUENCE_MESSAGES);
+        when(mainRouter.isSequence(sequence)).thenReturn(true);
+        when(demarcheService.handleDemarcheTransitions(anyString(), anyString(), anyList()))
+                .thenReturn(Collections.singletonList(null));
+
+        batchRouter.consume(Arrays.asList(deposee, sequence));
+
+        InOrder inOrder = inOrder(demarcheService, mainRouter, responseHandler);
+        inOrder.verify(demarcheService).handleDemarcheTransitions(eq("D1"), eq("usager"), anyList());
+        inOrder.verify(responseHandler).handleOk(deposee);
+        inOrder.verify(mainRouter).handleSequence(sequence);
+        inOrder.verify(responseHandler).handleOk(sequence);
+        verify(mainRouter, never()).parse(sequence);
+    }
+
+    @Test
+    void pending_transitions_are_applied_before_a_document_of_the_same_demarche() throws Exception {
+        Message deposeeD1 = parsed("c1", DEMARCHE_DEPOSEE, body(DemarcheDeposee.class, "D1"));
+        Message deposeeD2 = parsed("c2", DEMARCHE_DEPOSEE, body(DemarcheDeposee.class, "D2"));
+        DocumentUsager documentD1 = body(DocumentUsager.class, "D1");
+        Message document = parsed("c3", DOCUMENT, documentD1);
+        when(demarcheService.handleDemarcheTransitions(anyString(), anyString(), anyList()))
+                .thenReturn(Collections.singletonList(null));
+
+        batchRouter.consume(Arrays.asList(deposeeD1, deposeeD2, document));
+
+        InOrder inOrder = inOrder(demarcheService, mainRouter, responseHandler);
+        inOrder.verify(demarcheService).handleDemarcheTransitions(eq("D1"), eq("usager"), anyList());
+        inOrder.verify(responseHandler).handleOk(deposeeD1);
+        inOrder.verify(mainRouter).dispatch(DOCUMENT, documentD1);
+        inOrder.verify(responseHandler).handleOk(document);
+        // les changements d'etat d'une autre demarche restent groupes jusqu'a la fin du lot
+        inOrder.verify(demarcheService).handleDemarcheTransitions(eq("D2"), eq("usager"), anyList());
+        inOrder.verify(responseHandler).handleOk(deposeeD2);
+    }
+
+    @Test
+    void each_message_of_a_failed_group_gets_its_own_reply() throws Exception {
+        Message deposee = parsed("c1", DEMARCHE_DEPOSEE, body(DemarcheDeposee.class, "D1"));
+        Message enTraitement = parsed("c2", DEMARCHE_EN_TRAITEMENT, body(DemarcheEnTraitement.class, "D1"));
+        Message enTraitementBis = parsed("c3", DEMARCHE_EN_TRAITEMENT, body(DemarcheEnTraitement.class, "D1"));
+        TechnicalException writeError = new TechnicalException("FormServices indisponible");
+        TechnicalException notApplied = new TechnicalException("Changement d'etat non applique");
+        when(demarcheService.handleDemarcheTransitions(anyString(), anyString(), anyList()))
+                .thenReturn(Arrays.asList(null, writeError, notApplied));
+
+        batchRouter.consume(Arrays.asList(deposee, enTraitement, enTraitementBis));
+
+        InOrder inOrder = inOrder(responseHandler);
+        inOrder.verify(responseHandler).handleOk(deposee);
+        inOrder.verify(responseHandler).handleKo(writeError, enTraitement);
+        inOrder.verify(responseHandler).handleKo(notApplied, enTraitementBis);
+        verifyNoMoreInteractions(responseHandler);
+    }
+
+    @Test
+    void every_message_of_the_group_is_ko_when_the_group_cannot_be_applied() throws Exception {
+        Message deposee = parsed("c1", DEMARCHE_DEPOSEE, body(DemarcheDeposee.class, "D1"));
+        Message enTraitement = parsed("c2", DEMARCHE_EN_TRAITEMENT, body(DemarcheEnTraitement.class, "D1"));
+        TechnicalException error = new TechnicalException("FormServices indisponible");
+        when(demarcheService.handleDemarcheTransitions(anyString(), anyString(), anyList())).thenThrow(error);
+
+        batchRouter.consume(Arrays.asList(deposee, enTraitement));
+
+        verify(responseHandler).handleKo(error, deposee);
+        verify(responseHandler).handleKo(error, enTraitement);
+        verifyNoMoreInteractions(responseHandler);
+    }
+
+    @Test
+    void a_refused_message_is_answered_alone_and_does_not_stop_the_batch() throws Exception {
+        Message refused = message("c1", DEMARCHE_DEPOSEE);
+        IllegalMessageException error = new IllegalMessageException("Message trop volumineux");
+        doThrow(error).when(mainRouter).admit(refused);
+        Message deposee = parsed("c2", DEMARCHE_DEPOSEE, body(DemarcheDeposee.class, "D1"));
+        when(demarcheService.handleDemarcheTransitions(anyString(), anyString(), anyList()))
+                .thenReturn(Collections.singletonList(null));
+
+        batchRouter.consume(Arrays.asList(refused, deposee));
+
+        verify(responseHandler).handleKo(error, refused);
+        verify(responseHandler).handleOk(deposee);
+        verify(mainRouter, never()).parse(refused);
+        verify(responseHandler, never()).handleOk(refused);
+        verify(responseHandler, never()).handleKo(any(), eq(deposee));
+    }
+
+    private Message parsed(String correlationId, String contentType, Object body) throws Exception {
+        Message message = message(correlationId, contentType);
+        when(mainRouter.parse(message)).thenReturn(new ParsedMessage(message, contentType, body));
+        return message;
+    }
+
+    private static Message message(String correlationId, String contentType) {
+        MessageProperties properties = new MessageProperties();
+        properties.setCorrelationId(correlationId);
+        properties.setContentType(contentType);
+        return new Message(new byte[0], properties);
+    }
+
+    private static <T> T body(Class<T> type, String idDemarcheSiMetier) {
+        return MAPPER.convertValue(MAPPER.createObjectNode()
+                .put("idUsager", "usager")
+                .put("idDemarcheSiMetier", idDemarcheSiMetier), type);
+    }
+}
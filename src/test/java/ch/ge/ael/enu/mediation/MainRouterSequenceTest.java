@@ -0,0 +1,238 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation;
+
+import ch.ge.ael.enu.business.domain.v1_0.DemarcheEnTraitement;
+import ch.ge.ael.enu.business.domain.v1_0.ResponseType;
+import ch.ge.ael.enu.mediation.configuration.serialization.MessageFormat;
+import ch.ge.ael.enu.mediation.configuration.serialization.MessageMappers;
+import ch.ge.ael.enu.mediation.exception.IllegalMessageException;
+import ch.ge.ael.enu.mediation.exception.NotFoundException;
+import ch.ge.ael.enu.mediation.exception.SequenceException;
+import ch.ge.ael.enu.mediation.model.SequenceItemResult;
+import ch.ge.ael.enu.mediation.service.DemarcheService;
+import ch.ge.ael.enu.mediation.service.DocumentService;
+import ch.ge.ael.enu.mediation.service.FormServicesApi;
+import ch.ge.ael.enu.mediation.service.SuggestionService;
+import ch.ge.ael.enu.mediation.service.technical.HeavyHitters;
+import ch.ge.ael.enu.mediation.service.technical.InFlightMessages;
+import ch.ge.ael.enu.mediation.service.technical.MessageAudit;
+import ch.ge.ael.enu.mediation.service.technical.MessageGate;
+import ch.ge.ael.enu.mediation.service.technical.ResponseHandler;
+import ch.ge.ael.enu.mediation.service.technical.jfr.FlightEvents;
+import ch.ge.ael.enu.mediation.service.technical.tracing.MessageTracer;
+import ch.ge.ael.enu.mediation.util.codec.ContentEncoding;
+import ch.ge.ael.enu.mediation.util.logging.LogRenderer;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.*;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatCode;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.catchThrowableOfType;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+class MainRouterSequenceTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().findAndRegisterModules();
+
+    private static final MessageMappers MAPPERS = new MessageMappers(MAPPER, mapper -> mapper.findAndRegisterModules());
+
+    private final DemarcheService demarcheService = mock(DemarcheService.class);
+
+    private final MessageGate messageGate = new MessageGate();
+
+    private final MainRouter mainRouter = new MainRouter(MAPPER, MAPPERS, demarcheService, mock(SuggestionService.class),
+            mock(DocumentService.class), mock(FormServicesApi.class), mock(ResponseHandler.class), messageGate,
+            mock(LogRenderer.class), mock(MessageAudit.class), mock(MessageTracer.class), mock(InFlightMessages.class),
+            mock(FlightEvents.class), mock(HeavyHitters.class));
+
+    MainRouterSequenceTest() throws NotFoundException {
+        ReflectionTestUtils.setField(messageGate, "defaultMaxSize", 300);
+        ReflectionTestUtils.setField(messageGate, "documentMaxSize", 600);
+        ReflectionTestUtils.setField(messageGate, "courrierMaxSize", 5000);
+        doThrow(new NotFoundException("Demarche inconnue"))
+                .when(demarcheService).handleDemarcheEnTraitement(argThat(message -> "INCONNUE".equals(message.getIdDemarcheSiMetier())));
+    }
+
+    @Test
+    void all_items_ok() throws Exception {
+        ArrayNode sequence = MAPPER.createArrayNode().add(enTraitement("D1")).add(enTraitement("D2"));
+
+        assertThatCode(() -> mainRouter.handleSequence(message(json(sequence), SEQUENCE_MESSAGES, null)))
+                .doesNotThrowAnyException();
+        assertThat(processedDemarches()).containsExactly("D1", "D2");
+    }
+
+    @Test
+    void failed_item_does_not_stop_the_sequence() throws Exception {
+        ArrayNode sequence = MAPPER.createArrayNode()
+                .add(enTraitement("D1"))
+                .add(enTraitement("INCONNUE"))
+                .add(enTraitement("D2"));
+
+        List<SequenceItemResult> results = resultsOf(message(json(sequence), SEQUENCE_MESSAGES, null));
+
+        assertThat(results).extracting(SequenceItemResult::getIndex).containsExactly(0, 1, 2);
+        assertThat(results).extracting(SequenceItemResult::getResultat).containsExactly(ResponseType.OK, ResponseType.KO, ResponseType.OK);
+        assertThat(results.get(1).getDescription()).contains("Demarche inconnue");
+        assertThat(processedDemarches()).containsExactly("D1", "INCONNUE", "D2");
+    }
+
+    @Test
+    void item_refused_by_the_gate_is_ko_and_not_processed() throws Exception {
+        ObjectNode tooLarge = enTraitement("D2");
+        ((ObjectNode) tooLarge.get("message")).put("idPrestation", repeat('x', 300));
+        ObjectNode unknownType = enTraitement("D3").put("contentType", "application/inconnu-v1.0+json");
+        ObjectNode withoutBody = MAPPER.createObjectNode().put("contentType", DEMARCHE_EN_TRAITEMENT);
+        ArrayNode sequence = MAPPER.createArrayNode()
+                .add(enTraitement("D1")).add(tooLarge).add(unknownType).add(withoutBody).add(enTraitement("D4"));
+
+        List<SequenceItemResult> results = resultsOf(message(json(sequence), SEQUENCE_MESSAGES, null));
+
+        assertThat(results).extracting(SequenceItemResult::getResultat)
+                .containsExactly(ResponseType.OK, ResponseType.KO, ResponseType.KO, ResponseType.KO, ResponseType.OK);
+        assertThat(results.get(1).getDescription()).contains("300");
+        assertThat(processedDemarches()).containsExactly("D1", "D4");
+    }
+
+    @Test
+    void nested_sequence_is_ko() throws Exception {
+        ObjectNode nested = MAPPER.createObjectNode().put("contentType", SEQUENCE_MESSAGES);
+        nested.putArray("message").add(enTraitement("D2"));
+        ArrayNode sequence = MAPPER.createArrayNode().add(enTraitement("D1")).add(nested);
+
+        List<SequenceItemResult> results = resultsOf(message(json(sequence), SEQUENCE_MESSAGES, null));
+
+        assertThat(results).extracting(SequenceItemResult::getResultat).containsExactly(ResponseType.OK, ResponseType.KO);
+        assertThat(processedDemarches()).containsExactly("D1");
+    }
+
+    @Test
+    void unexpected_element_stops_the_sequence_and_reports_processed_items() throws Exception {
+        ArrayNode sequence = MAPPER.createArrayNode().add(enTraitement("D1")).add(enTraitement("D2")).add(42).add(enTraitement("D3"));
+
+        List<SequenceItemResult> results = resultsOf(message(json(sequence), SEQUENCE_MESSAGES, null));
+
+        assertThat(results).extracting(SequenceItemResult::getResultat).containsExactly(ResponseType.OK, ResponseType.OK, ResponseType.KO);
+        assertThat(results.get(2).getIndex()).isEqualTo(2);
+        assertThat(results.get(2).getDescription()).contains("position 2");
+        assertThat(processedDemarches()).containsExactly("D1", "D2");
+    }
+
+    @Test
+    void truncated_array_stops_the_sequence_and_reports_processed_items() throws Exception {
+        String complete = new String(json(MAPPER.createArrayNode().add(enTraitement("D1")).add(enTraitement("D2"))), StandardCharsets.UTF_8);
+        byte[] truncated = complete.substring(0, complete.lastIndexOf("D2")).getBytes(StandardCharsets.UTF_8);
+
+        List<SequenceItemResult> results = resultsOf(message(truncated, SEQUENCE_MESSAGES, null));
+
+        assertThat(results).extracting(SequenceItemResult::getResultat).containsExactly(ResponseType.OK, ResponseType.KO);
+        assertThat(results.get(1).getIndex()).isEqualTo(1);
+        assertThat(results.get(1).getDescription()).contains("messages suivants non traites");
+        assertThat(processedDemarches()).containsExactly("D1");
+    }
+
+    @Test
+    void sequence_that_is_not_an_array_is_refused_as_a_whole() {
+        assertThatThrownBy(() -> mainRouter.handleSequence(message(json(enTraitement("D1")), SEQUENCE_MESSAGES, null)))
+                .isInstanceOf(IllegalMessageException.class)
+                .hasMessageContaining("tableau");
+        verifyNoInteractions(demarcheService);
+    }
+
+    @Test
+    void compressed_sequence() throws Exception {
+        ArrayNode sequence = MAPPER.createArrayNode().add(enTraitement("D1")).add(enTraitement("INCONNUE"));
+
+        List<SequenceItemResult> results = resultsOf(message(ContentEncoding.gzip(json(sequence)), SEQUENCE_MESSAGES, ContentEncoding.GZIP));
+
+        assertThat(results).extracting(SequenceItemResult::getResultat).containsExactly(ResponseType.OK, ResponseType.KO);
+        assertThat(processedDemarches()).containsExactly("D1", "INCONNUE");
+    }
+
+    @Test
+    void smile_sequence() throws Exception {
+        ArrayNode sequence = MAPPER.createArrayNode().add(enTraitement("D1")).add(enTraitement("INCONNUE")).add(enTraitement("D2"));
+        ObjectMapper smile = MAPPERS.forFormat(MessageFormat.SMILE);
+        String contentType = SEQUENCE_MESSAGES.replace("+json", "+smile");
+
+        List<SequenceItemResult> results = resultsOf(message(smile.writeValueAsBytes(sequence), contentType, null));
+
+        assertThat(results).extracting(SequenceItemResult::getResultat).containsExactly(ResponseType.OK, ResponseType.KO, ResponseType.OK);
+        assertThat(processedDemarches()).containsExactly("D1", "INCONNUE", "D2");
+    }
+
+    private List<SequenceItemResult> resultsOf(Message message) {
+        SequenceException e = catchThrowableOfType(() -> mainRouter.handleSequence(message), SequenceException.class);
+        assertThat(e).isNotNull();
+        return e.getResults();
+    }
+
+    private List<String> processedDemarches() throws NotFoundException {
+        ArgumentCaptor<DemarcheEnTraitement> processed = ArgumentCaptor.forClass(DemarcheEnTraitement.class);
+        verify(demarcheService, atLeast(0)).handleDemarcheEnTraitement(processed.capture());
+        List<String> ids = new ArrayList<>();
+        processed.getAllValues().forEach(message -> ids.add(message.getIdDemarcheSiMetier()));
+        return ids;
+    }
+
+    private static ObjectNode enTraitement(String idDemarcheSiMetier) {
+        ObjectNode item = MAPPER.createObjectNode().put("contentType", DEMARCHE_EN_TRAITEMENT);
+        item.putObject("message")
+                .put("idPrestation", "EDG_AGL_GARAGE")
+                .put("idUsager", "CGE-1000000")
+                .put("idDemarcheSiMetier", idDemarcheSiMetier)
+                .put("dateTraitement", "2021-10-01T10:00:00");
+        return item;
+    }
+
+    private static byte[] json(Object value) throws JsonProcessingException {
+        return MAPPER.writeValueAsBytes(value);
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static Message message(byte[] body, String contentType, String contentEncoding) {
+        MessageProperties properties = new MessageProperties();
+        properties.setContentType(contentType);
+        properties.setContentEncoding(contentEncoding);
+        properties.setCorrelationId("sequence-1");
+        return new Message(body, properties);
+    }
+}
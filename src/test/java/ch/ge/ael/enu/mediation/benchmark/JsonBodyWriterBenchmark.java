@@ -0,0 +1,144 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.benchmark;
+
+import ch.ge.ael.enu.mediation.configuration.JacksonConfiguration;
+import ch.ge.ael.enu.mediation.model.jway.Application;
+import ch.ge.ael.enu.mediation.model.jway.File;
+import ch.ge.ael.enu.mediation.model.jway.FileForStep;
+import ch.ge.ael.enu.mediation.model.jway.FileForWorkflow;
+import ch.ge.ael.enu.mediation.model.jway.Form;
+import ch.ge.ael.enu.mediation.model.jway.FormUrl;
+import ch.ge.ael.enu.mediation.model.jway.Status;
+import ch.ge.ael.enu.mediation.model.jway.User;
+import ch.ge.ael.enu.mediation.service.technical.JsonBodyWriter;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialisation du corps d'une ecriture FormServices : ancienne implementation (String, puis encodage de la
+ * String dans un tampon, comme le fait le CharSequenceEncoder du WebClient) contre l'ecriture directe dans un
+ * tampon Netty du pool.
+ * La colonne "gc.alloc.rate.norm" donne les octets alloues par ecriture.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBodyWriterBenchmark {
+
+    @Param({"File", "FileForStep", "FileForWorkflow"})
+    public String bodyType;
+
+    private final NettyDataBufferFactory bufferFactory = new NettyDataBufferFactory(PooledByteBufAllocator.DEFAULT);
+
+    private ObjectMapper jackson;
+
+    private JsonBodyWriter jsonBodyWriter;
+
+    private Object body;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        jackson = new JacksonConfiguration().jackson();
+        jsonBodyWriter = new JsonBodyWriter(jackson);
+        if ("File".equals(bodyType)) {
+            File file = new File();
+            file.setName("DEMARCHE-2021-000123");
+            User owner = new User();
+            owner.setName("CGE-1000000");
+            file.setOwner(owner);
+            Application application = new Application();
+            application.setName("FL_TEST_TDB");
+            file.setApplication(application);
+            file.setWorkflowStatus(Status.START.toString());
+            file.setStatus(Status.START.toString());
+            body = file;
+        } else if ("FileForStep".equals(bodyType)) {
+            FileForStep file = new FileForStep();
+            file.setStep(Status.CORRECTION.toString());
+            file.setLastUpdate("2021-11-25");
+            file.setStepDescription("Completer votre demande|ENRICHISSEMENT_DE_DEMARCHE");
+            file.setForm(new Form(null, null, null,
+                    Collections.singletonList(new FormUrl("https://www.ge.ch/demarche/123/complement"))));
+            body = file;
+        } else {
+            FileForWorkflow file = new FileForWorkflow();
+            file.setName("DEMARCHE-2021-000123");
+            file.setWorkflowStatus(Status.CORRECTION.toString());
+            file.setStepDescription("Completer votre demande|ENRICHISSEMENT_DE_DEMARCHE");
+            file.setToDate("2021-12-31");
+            body = file;
+        }
+    }
+
+    @Benchmark
+    public int viaString() throws JsonProcessingException {
+        String json = jackson.writeValueAsString(body);
+        DataBuffer buffer = bufferFactory.allocateBuffer(json.length());
+        buffer.write(json, StandardCharsets.UTF_8);
+        return release(buffer);
+    }
+
+    @Benchmark
+    public int direct() {
+        return release(jsonBodyWriter.write(body, bufferFactory));
+    }
+
+    private static int release(DataBuffer buffer) {
+        int size = buffer.readableByteCount();
+        DataBufferUtils.release(buffer);
+        return size;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(JsonBodyWriterBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+
+}
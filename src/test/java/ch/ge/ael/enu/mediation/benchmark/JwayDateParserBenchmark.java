@@ -0,0 +1,83 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.benchmark;
+
+import ch.ge.ael.enu.mediation.configuration.serialization.JwayDateParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Analyse d'une date FormServices : ancienne implementation (DateTimeFormatter a sections optionnelles) contre
+ * la lecture directe du tampon de caracteres, comme le fait le deserialiseur Jackson.
+ * La colonne "gc.alloc.rate.norm" donne les octets alloues par date.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwayDateParserBenchmark {
+
+    @Param({"2020-11-25T15:42:05.445+0000", "2020-11-25T15:42:05.445+00:00", "2020-11-25T15:42:05Z",
+            "2020-11-25T15:42:05"})
+    public String date;
+
+    private char[] buffer;
+
+    @Setup
+    public void setUp() {
+        buffer = date.toCharArray();
+    }
+
+    @Benchmark
+    public LocalDateTime formatter() {
+        return LocalDateTime.parse(new String(buffer), JwayDateParser.DATE_TIME_FORMAT);
+    }
+
+    @Benchmark
+    public LocalDateTime fastPath() {
+        return JwayDateParser.parseLocalDateTime(buffer, 0, buffer.length);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(JwayDateParserBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+
+}
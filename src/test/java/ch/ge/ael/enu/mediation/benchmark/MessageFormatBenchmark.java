@@ -0,0 +1,124 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.benchmark;
+
+import ch.ge.ael.enu.business.domain.v1_0.EnuMediaType;
+import ch.ge.ael.enu.mediation.configuration.JacksonConfiguration;
+import ch.ge.ael.enu.mediation.configuration.serialization.MessageFormat;
+import ch.ge.ael.enu.mediation.configuration.serialization.MessageMappers;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.BinaryNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.typeReferenceMap;
+
+/**
+ * Deserialisation de chaque type de message, en JSON, en Smile et en CBOR.
+ * Les messages sont ceux de src/test/resources/fixtures/benchmark ; chaque champ "contenu" y est remplace par
+ * un contenu binaire aleatoire de {@link #CONTENT_SIZE} octets (base64 en JSON, octets bruts en Smile et en CBOR).
+ * La taille de chaque message encode est affichee lors de l'initialisation du benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageFormatBenchmark {
+
+    static final int CONTENT_SIZE = 256 * 1024;
+
+    @Param({"DEMARCHE_DEPOSEE", "DEMARCHE_EN_TRAITEMENT", "DEMARCHE_ACTION_REQUISE", "DEMARCHE_TERMINEE",
+            "BROUILLON_DEMARCHE", "SUGGESTION", "DOCUMENT", "DOCUMENT_BINAIRE", "COURRIER", "COURRIER_BINAIRE"})
+    public String messageType;
+
+    @Param({"JSON", "SMILE", "CBOR"})
+    public MessageFormat format;
+
+    private ObjectMapper mapper;
+
+    private TypeReference<?> typeReference;
+
+    private byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        JacksonConfiguration configuration = new JacksonConfiguration();
+        ObjectMapper json = configuration.jackson();
+        MessageMappers messageMappers = configuration.messageMappers(json);
+        String contentType = (String) EnuMediaType.class.getField(messageType).get(null);
+        typeReference = typeReferenceMap.get(contentType);
+
+        JsonNode message;
+        try (InputStream in = getClass().getResourceAsStream("/fixtures/benchmark/" + messageType + ".json")) {
+            message = json.readTree(in);
+        }
+        replaceContents(message, new Random(42));
+        mapper = messageMappers.forFormat(format);
+        payload = mapper.writeValueAsBytes(message);
+        System.out.println();
+        System.out.println(messageType + " en " + format + " : " + payload.length + " octets");
+    }
+
+    private static void replaceContents(JsonNode node, Random random) {
+        if (node.isObject() && node.has("contenu")) {
+            byte[] content = new byte[CONTENT_SIZE];
+            random.nextBytes(content);
+            ((ObjectNode) node).set("contenu", BinaryNode.valueOf(content));
+        }
+        node.forEach(child -> replaceContents(child, random));
+    }
+
+    @Benchmark
+    public Object parse() throws IOException {
+        return mapper.readValue(payload, typeReference);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MessageFormatBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+
+}
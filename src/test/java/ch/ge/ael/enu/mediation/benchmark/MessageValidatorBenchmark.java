@@ -0,0 +1,113 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.benchmark;
+
+import ch.ge.ael.enu.business.domain.v1_0.EnuMediaType;
+import ch.ge.ael.enu.mediation.configuration.JacksonConfiguration;
+import ch.ge.ael.enu.mediation.util.validation.MessageValidator;
+import ch.ge.ael.enu.mediation.util.validation.Violation;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validation;
+import javax.validation.Validator;
+import javax.validation.ValidatorFactory;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.typeReferenceMap;
+
+/**
+ * Validation de chaque type de message : validation reflexive de Hibernate Validator contre le plan compile
+ * de MessageValidator (qui se rabat lui-meme sur Hibernate Validator pour les classes non compilables, ce qui est
+ * affiche lors de l'initialisation du benchmark).
+ * Les messages sont ceux de src/test/resources/fixtures/benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageValidatorBenchmark {
+
+    @Param({"DEMARCHE_DEPOSEE", "DEMARCHE_EN_TRAITEMENT", "DEMARCHE_ACTION_REQUISE", "DEMARCHE_TERMINEE",
+            "BROUILLON_DEMARCHE", "SUGGESTION", "DOCUMENT", "DOCUMENT_BINAIRE", "COURRIER", "COURRIER_BINAIRE"})
+    public String messageType;
+
+    private Validator hibernate;
+
+    private MessageValidator compiled;
+
+    private Object message;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        ObjectMapper json = new JacksonConfiguration().jackson();
+        String contentType = (String) EnuMediaType.class.getField(messageType).get(null);
+        TypeReference<?> typeReference = typeReferenceMap.get(contentType);
+        try (InputStream in = getClass().getResourceAsStream("/fixtures/benchmark/" + messageType + ".json")) {
+            message = json.readValue(in, typeReference);
+        }
+        ValidatorFactory factory = Validation.buildDefaultValidatorFactory();
+        hibernate = factory.getValidator();
+        compiled = new MessageValidator(factory, Collections.singletonList(message.getClass()));
+        System.out.println();
+        System.out.println(messageType + " : " + (compiled.isCompiled(message.getClass()) ? "plan compile" : "Hibernate Validator"));
+    }
+
+    @Benchmark
+    public Set<ConstraintViolation<Object>> hibernate() {
+        return hibernate.validate(message);
+    }
+
+    @Benchmark
+    public List<Violation> compiled() {
+        return compiled.validate(message);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MessageValidatorBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+
+}
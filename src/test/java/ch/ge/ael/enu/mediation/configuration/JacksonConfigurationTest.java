@@ -73,4 +73,12 @@ public class JacksonConfigurationTest {
         log.info("Test date alt = " + testDate);
         assert testDate.isEqual(LocalDateTime.of(2021,9,4,0,0,0));
     }
+
+    @Test
+    void marshallEpochMillis(@Autowired ObjectMapper jackson) throws JsonProcessingException {
+        log.info("Jackson marshalling tests: LocalDateTime from epoch millis");
+        LocalDateTime testDate = jackson.readValue("1630713600000", LocalDateTime.class);
+        log.info("Test date millis = " + testDate);
+        assert testDate.isEqual(LocalDateTime.of(2021,9,4,0,0,0));
+    }
 }
@@ -0,0 +1,74 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.configuration.serialization;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class JwayDateParserTest {
+
+    @Test
+    void parse_usual_date_times() {
+        LocalDateTime expected = LocalDateTime.of(2020, 11, 25, 15, 42, 5, 445_000_000);
+        assertThat(JwayDateParser.parseLocalDateTime("2020-11-25T15:42:05.445")).isEqualTo(expected);
+        assertThat(JwayDateParser.parseLocalDateTime("2020-11-25T15:42:05.445Z")).isEqualTo(expected);
+        assertThat(JwayDateParser.parseLocalDateTime("2020-11-25T15:42:05.445+0000")).isEqualTo(expected);
+        assertThat(JwayDateParser.parseLocalDateTime("2020-11-25T15:42:05.445+00:00")).isEqualTo(expected);
+        assertThat(JwayDateParser.parseLocalDateTime("2020-11-25T15:42:05.445-05")).isEqualTo(expected);
+        assertThat(JwayDateParser.parseLocalDateTime("2020-11-25T15:42"))
+                .isEqualTo(LocalDateTime.of(2020, 11, 25, 15, 42));
+        assertThat(JwayDateParser.parseLocalDateTime("2020-11-25T15:42:05.123456789"))
+                .isEqualTo(LocalDateTime.of(2020, 11, 25, 15, 42, 5, 123_456_789));
+    }
+
+    @Test
+    void parse_usual_dates() {
+        LocalDate expected = LocalDate.of(2020, 11, 25);
+        assertThat(JwayDateParser.parseLocalDate("2020-11-25")).isEqualTo(expected);
+        assertThat(JwayDateParser.parseLocalDate("2020-11-25T15:42:05.445+00:00")).isEqualTo(expected);
+    }
+
+    @Test
+    void parse_from_a_buffer_slice() {
+        char[] buffer = "{\"stepDate\":\"2020-11-25T15:42:05+00:00\"}".toCharArray();
+        assertThat(JwayDateParser.parseLocalDateTime(buffer, 13, 25))
+                .isEqualTo(LocalDateTime.of(2020, 11, 25, 15, 42, 5));
+    }
+
+    @Test
+    void fall_back_to_the_formatter() {
+        // annee sur plus de 4 chiffres : hors du chemin rapide, acceptee par le formateur
+        assertThat(JwayDateParser.parseLocalDateTime("+12020-11-25T15:42:05"))
+                .isEqualTo(LocalDateTime.of(12020, 11, 25, 15, 42, 5));
+        // jour hors limites : resolution "SMART" du formateur, comme avant
+        assertThat(JwayDateParser.parseLocalDateTime("2020-02-30T15:42:05"))
+                .isEqualTo(LocalDateTime.of(2020, 2, 29, 15, 42, 5));
+        assertThatThrownBy(() -> JwayDateParser.parseLocalDateTime("2020-11-25"))
+                .isInstanceOf(DateTimeParseException.class);
+        assertThatThrownBy(() -> JwayDateParser.parseLocalDateTime("2020-11-25T15:42:05+19:00"))
+                .isInstanceOf(DateTimeParseException.class);
+    }
+
+}
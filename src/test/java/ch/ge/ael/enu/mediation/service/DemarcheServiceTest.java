@@ -0,0 +1,200 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service;
+
+import ch.ge.ael.enu.business.domain.v1_0.DemarcheActionRequise;
+import ch.ge.ael.enu.business.domain.v1_0.DemarcheDeposee;
+import ch.ge.ael.enu.business.domain.v1_0.DemarcheEnTraitement;
+import ch.ge.ael.enu.business.domain.v1_0.DemarcheTerminee;
+import ch.ge.ael.enu.mediation.exception.NotFoundException;
+import ch.ge.ael.enu.mediation.exception.TechnicalException;
+import ch.ge.ael.enu.mediation.model.jway.FileForStep;
+import ch.ge.ael.enu.mediation.model.jway.FileForWorkflow;
+import ch.ge.ael.enu.mediation.model.jway.FileSummary;
+import ch.ge.ael.enu.mediation.model.jway.Form;
+import ch.ge.ael.enu.mediation.model.jway.FormUrl;
+import ch.ge.ael.enu.mediation.model.jway.Status;
+import ch.ge.ael.enu.mediation.service.technical.TransitionWriteAvoidance;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class DemarcheServiceTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().findAndRegisterModules();
+
+    private static final UUID FILE_UUID = UUID.randomUUID();
+
+    private final FormServicesApi formServicesApi = mock(FormServicesApi.class);
+
+    private final DemarcheService demarcheService = new DemarcheService(formServicesApi,
+            new TransitionWriteAvoidance(true, new SimpleMeterRegistry()));
+
+    @Test
+    void transitions_are_written_in_order_after_a_single_read() throws NotFoundException {
+        when(formServicesApi.getFile("D1", "usager")).thenReturn(file(Status.START));
+
+        List<Exception> errors = demarcheService.handleDemarcheTransitions("D1", "usager", Arrays.asList(
+                body(DemarcheDeposee.class, "dateDepot"),
+                body(DemarcheEnTraitement.class, "dateTraitement"),
+                body(DemarcheTerminee.class, "dateCloture")));
+
+        assertThat(errors).containsExactly(null, null, null);
+        verify(formServicesApi, times(1)).getFile("D1", "usager");
+        ArgumentCaptor<FileForStep> steps = ArgumentCaptor.forClass(FileForStep.class);
+        InOrder inOrder = inOrder(formServicesApi);
+        inOrder.verify(formServicesApi).postFileStep(steps.capture(), eq("usager"), eq(FILE_UUID));
+        inOrder.verify(formServicesApi).putFileWorkflow(any(FileForWorkflow.class), eq("usager"), eq(FILE_UUID));
+        inOrder.verify(formServicesApi).postFileStep(steps.capture(), eq("usager"), eq(FILE_UUID));
+        inOrder.verify(formServicesApi).putFileWorkflow(any(FileForWorkflow.class), eq("usager"), eq(FILE_UUID));
+        inOrder.verify(formServicesApi).postFileStep(steps.capture(), eq("usager"), eq(FILE_UUID));
+        inOrder.verify(formServicesApi).putFileWorkflow(any(FileForWorkflow.class), eq("usager"), eq(FILE_UUID));
+        assertThat(steps.getAllValues()).extracting(FileForStep::getStep)
+                .containsExactly("VALIDATION", "CORRECTION", "DONE");
+    }
+
+    @Test
+    void the_rest_of_the_group_is_ko_after_a_failed_write() throws NotFoundException {
+        when(formServicesApi.getFile("D1", "usager")).thenReturn(file(Status.START));
+        TechnicalException writeError = new TechnicalException("FormServices indisponible");
+        doThrow(writeError).when(formServicesApi).postFileStep(any(), any(), any());
+
+        List<Exception> errors = demarcheService.handleDemarcheTransitions("D1", "usager", Arrays.asList(
+                body(DemarcheDeposee.class, "dateDepot"),
+                body(DemarcheEnTraitement.class, "dateTraitement"),
+                body(DemarcheTerminee.class, "dateCloture")));
+
+        assertThat(errors.get(0)).isSameAs(writeError);
+        assertThat(errors.get(1)).isInstanceOf(TechnicalException.class).hasMessageContaining("FormServices indisponible");
+        assertThat(errors.get(2)).isInstanceOf(TechnicalException.class).hasMessageContaining("FormServices indisponible");
+        verify(formServicesApi, times(1)).postFileStep(any(), any(), any());
+        verify(formServicesApi, never()).putFileWorkflow(any(), any(), any());
+    }
+
+    @Test
+    void a_transition_not_applicable_in_the_current_state_does_not_stop_the_group() throws NotFoundException {
+        when(formServicesApi.getFile("D1", "usager")).thenReturn(file(Status.START));
+
+        List<Exception> errors = demarcheService.handleDemarcheTransitions("D1", "usager", Arrays.asList(
+                body(DemarcheTerminee.class, "dateCloture"),
+                body(DemarcheDeposee.class, "dateDepot")));
+
+        assertThat(errors).containsExactly(null, null);
+        ArgumentCaptor<FileForStep> steps = ArgumentCaptor.forClass(FileForStep.class);
+        verify(formServicesApi, times(1)).postFileStep(steps.capture(), eq("usager"), eq(FILE_UUID));
+        assertThat(steps.getValue().getStep()).isEqualTo("VALIDATION");
+    }
+
+    @Test
+    void every_message_is_ko_when_the_demarche_does_not_exist() throws NotFoundException {
+        NotFoundException notFound = new NotFoundException("Demarche inconnue");
+        when(formServicesApi.getFile("D1", "usager")).thenThrow(notFound);
+
+        List<Exception> errors = demarcheService.handleDemarcheTransitions("D1", "usager", Arrays.asList(
+                body(DemarcheEnTraitement.class, "dateTraitement"),
+                body(DemarcheTerminee.class, "dateCloture")));
+
+        assertThat(errors).containsExactly(notFound, notFound);
+        verify(formServicesApi, never()).postFileStep(any(), any(), any());
+    }
+
+    @Test
+    void reminder_identical_to_the_state_read_from_formservices_is_not_written() throws NotFoundException {
+        when(formServicesApi.getFile("D1", "usager")).thenReturn(fileWithAction("https://si/action"));
+
+        demarcheService.handleDemarcheActionRequise(actionRequise("https://si/action"));
+
+        verify(formServicesApi, never()).postFileStep(any(), any(), any());
+        verify(formServicesApi, never()).putFileWorkflow(any(), any(), any());
+    }
+
+    @Test
+    void reminder_is_written_when_formservices_holds_another_action() throws NotFoundException {
+        // par ex. ecrite entre-temps par une autre instance
+        when(formServicesApi.getFile("D1", "usager")).thenReturn(fileWithAction("https://si/autre-action"));
+
+        demarcheService.handleDemarcheActionRequise(actionRequise("https://si/action"));
+
+        verify(formServicesApi).postFileStep(any(), eq("usager"), eq(FILE_UUID));
+        verify(formServicesApi).putFileWorkflow(any(), eq("usager"), eq(FILE_UUID));
+    }
+
+    @Test
+    void repeated_transition_of_a_group_is_written_once() throws NotFoundException {
+        when(formServicesApi.getFile("D1", "usager")).thenReturn(file(Status.VALIDATION));
+
+        List<Exception> errors = demarcheService.handleDemarcheTransitions("D1", "usager", Arrays.asList(
+                actionRequise("https://si/action"),
+                actionRequise("https://si/action"),
+                actionRequise("https://si/autre-action")));
+
+        assertThat(errors).containsExactly(null, null, null);
+        ArgumentCaptor<FileForStep> steps = ArgumentCaptor.forClass(FileForStep.class);
+        verify(formServicesApi, times(2)).postFileStep(steps.capture(), eq("usager"), eq(FILE_UUID));
+        assertThat(steps.getAllValues()).extracting(step -> step.getForm().getUrls().get(0).getBaseUrl())
+                .containsExactly("https://si/action", "https://si/autre-action");
+    }
+
+    private static FileSummary fileWithAction(String url) {
+        FileSummary file = file(Status.CORRECTION);
+        file.setStep(Status.CORRECTION.toString());
+        file.setStepDescription("Completer|ENRICHISSEMENT");
+        file.setForm(new Form("formulaire", null, null, Collections.singletonList(new FormUrl(url))));
+        file.setToDate("2021-10-31");
+        return file;
+    }
+
+    private static DemarcheActionRequise actionRequise(String url) {
+        return MAPPER.convertValue(MAPPER.createObjectNode()
+                .put("idUsager", "usager")
+                .put("idDemarcheSiMetier", "D1")
+                .put("dateActionRequise", "2021-10-01T10:00:00")
+                .put("dateEcheanceAction", "2021-10-31")
+                .put("libelleAction", "Completer")
+                .put("typeAction", "ENRICHISSEMENT")
+                .put("urlAction", url), DemarcheActionRequise.class);
+    }
+
+    private static FileSummary file(Status status) {
+        FileSummary file = new FileSummary();
+        file.setUuid(FILE_UUID);
+        file.setName("D1");
+        file.setWorkflowStatus(status.toString());
+        return file;
+    }
+
+    private static <T> T body(Class<T> type, String dateField) {
+        return MAPPER.convertValue(MAPPER.createObjectNode()
+                .put("idUsager", "usager")
+                .put("idDemarcheSiMetier", "D1")
+                .put(dateField, "2021-10-01T10:00:00"), type);
+    }
+}
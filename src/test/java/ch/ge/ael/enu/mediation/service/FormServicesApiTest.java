@@ -0,0 +1,195 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service;
+
+import ch.ge.ael.enu.business.domain.v1_0.Courrier;
+import ch.ge.ael.enu.mediation.exception.TechnicalException;
+import ch.ge.ael.enu.mediation.mapping.CourrierDocumentToJwayMapper;
+import ch.ge.ael.enu.mediation.mapping.DocumentToJwayMapper;
+import ch.ge.ael.enu.mediation.model.exception.ValidationException;
+import ch.ge.ael.enu.mediation.service.technical.JsonBodyWriter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static ch.ge.ael.enu.mediation.model.Header.X_CSRF_TOKEN;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class FormServicesApiTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String CREATED = "{\"uuid\": \"7a1c3c9e-1a2b-4c3d-8e9f-0a1b2c3d4e5f\"}";
+
+    /**
+     * Reponses de FormServices a l'envoi groupe, dans l'ordre des envois groupes.
+     */
+    private final List<ClientResponse> batchResponses = new ArrayList<>();
+
+    /**
+     * "batch" ou "document" pour chaque POST recu.
+     */
+    private final List<String> posts = new ArrayList<>();
+
+    /**
+     * Nature du prochain POST, selon le dernier corps multipart construit.
+     */
+    private String nextPost;
+
+    private final FormServicesApi api;
+
+    FormServicesApiTest() {
+        CourrierDocumentToJwayMapper mapper = mock(CourrierDocumentToJwayMapper.class);
+        when(mapper.mapBatch(any(Courrier.class), anyString(), anyString())).thenAnswer(invocation -> multipart("batch"));
+        when(mapper.map(any(Courrier.class), any(), anyString(), anyString(), anyInt())).thenAnswer(invocation -> multipart("document"));
+        WebClient webClient = WebClient.builder()
+                .exchangeFunction(request -> {
+                    if (request.method() == HttpMethod.HEAD) {
+                        return Mono.just(ClientResponse.create(HttpStatus.OK).header(X_CSRF_TOKEN, "jeton").build());
+                    }
+                    posts.add(nextPost);
+                    if ("batch".equals(nextPost)) {
+                        return Mono.just(batchResponses.remove(0));
+                    }
+                    return Mono.just(json(HttpStatus.OK, CREATED));
+                })
+                .build();
+        api = new FormServicesApi(new JsonBodyWriter(MAPPER), webClient, mock(DocumentToJwayMapper.class), mapper, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(api, "courrierBatchUpload", true);
+        ReflectionTestUtils.setField(api, "courrierBatchMaxSize", 10_000_000L);
+    }
+
+    @Test
+    void documents_are_sent_in_a_single_request() {
+        batchResponses.add(json(HttpStatus.OK, "[" + CREATED + ", " + CREATED + "]"));
+
+        api.postCourrier(courrier(2), "demarche", "usager");
+
+        assertThat(posts).containsExactly("batch");
+    }
+
+    @Test
+    void batch_is_abandoned_when_not_supported() {
+        assertThat(postsOfTwoCourriers(ClientResponse.create(HttpStatus.METHOD_NOT_ALLOWED).build()))
+                .containsExactly("batch", "document", "document", "document", "document");
+        assertThat(postsOfTwoCourriers(ClientResponse.create(HttpStatus.UNSUPPORTED_MEDIA_TYPE).build()))
+                .containsExactly("batch", "document", "document", "document", "document");
+    }
+
+    @Test
+    void batch_is_abandoned_on_not_found_without_jway_error() {
+        assertThat(postsOfTwoCourriers(ClientResponse.create(HttpStatus.NOT_FOUND).build()))
+                .containsExactly("batch", "document", "document", "document", "document");
+        assertThat(postsOfTwoCourriers(json(HttpStatus.NOT_FOUND,
+                "{\"timestamp\": \"2021-10-01T10:00:00\", \"status\": 404, \"error\": \"Not Found\", \"path\": \"/alpha/document\"}")))
+                .containsExactly("batch", "document", "document", "document", "document");
+        assertThat(postsOfTwoCourriers(json(HttpStatus.NOT_FOUND, "{\"status\": 404, \"message\": \"No message available\"}")))
+                .containsExactly("batch", "document", "document", "document", "document");
+        assertThat(postsOfTwoCourriers(response(HttpStatus.NOT_FOUND, MediaType.TEXT_HTML, "<html><body>Not Found</body></html>")))
+                .containsExactly("batch", "document", "document", "document", "document");
+    }
+
+    @Test
+    void not_found_with_jway_error_fails_the_courrier_only() {
+        batchResponses.add(json(HttpStatus.NOT_FOUND, "{\"status\": 404, \"message\": \"Tag inconnu : PERMIS\"}"));
+        batchResponses.add(json(HttpStatus.OK, "[" + CREATED + ", " + CREATED + "]"));
+
+        assertThatThrownBy(() -> api.postCourrier(courrier(2), "demarche", "usager"))
+                .hasCauseInstanceOf(ValidationException.class)
+                .hasMessageContaining("Tag inconnu : PERMIS");
+        api.postCourrier(courrier(2), "demarche", "usager");
+
+        // aucun document envoye un par un, et l'envoi groupe reste actif pour le courrier suivant
+        assertThat(posts).containsExactly("batch", "batch");
+    }
+
+    @Test
+    void unexpected_batch_response_is_not_retried_document_by_document() {
+        batchResponses.add(json(HttpStatus.OK, "[" + CREATED + "]"));
+
+        assertThatThrownBy(() -> api.postCourrier(courrier(2), "demarche", "usager"))
+                .isInstanceOf(TechnicalException.class);
+        assertThat(posts).containsExactly("batch");
+    }
+
+    @Test
+    void single_document_courrier_is_not_batched() {
+        api.postCourrier(courrier(1), "demarche", "usager");
+
+        assertThat(posts).containsExactly("document");
+    }
+
+    /**
+     * POST recus pour deux courriers de deux documents, la premiere tentative d'envoi groupe recevant la reponse donnee.
+     */
+    private static List<String> postsOfTwoCourriers(ClientResponse firstBatchResponse) {
+        FormServicesApiTest test = new FormServicesApiTest();
+        test.batchResponses.add(firstBatchResponse);
+        test.api.postCourrier(courrier(2), "demarche", "usager");
+        test.api.postCourrier(courrier(2), "demarche", "usager");
+        return test.posts;
+    }
+
+    private MultiValueMap<String, HttpEntity<?>> multipart(String post) {
+        nextPost = post;
+        return new LinkedMultiValueMap<>();
+    }
+
+    private static Courrier courrier(int nbDocuments) {
+        ObjectNode courrier = MAPPER.createObjectNode()
+                .put("idUsager", "usager")
+                .put("libelleCourrier", "Courrier");
+        for (int i = 0; i < nbDocuments; i++) {
+            courrier.withArray("documents").addObject().put("libelleDocument", "Document " + i);
+        }
+        return MAPPER.convertValue(courrier, Courrier.class);
+    }
+
+    private static ClientResponse json(HttpStatus status, String body) {
+        return response(status, MediaType.APPLICATION_JSON, body);
+    }
+
+    private static ClientResponse response(HttpStatus status, MediaType contentType, String body) {
+        return ClientResponse.create(status)
+                .header(HttpHeaders.CONTENT_TYPE, contentType.toString())
+                .body(body)
+                .build();
+    }
+}
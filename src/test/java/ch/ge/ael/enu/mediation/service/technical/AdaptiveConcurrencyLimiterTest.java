@@ -0,0 +1,146 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import ch.ge.ael.enu.mediation.MainRouter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AdaptiveConcurrencyLimiterTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(900);
+
+    private final AdaptiveConcurrencyLimiter limiter = limiter(false, false);
+
+    @Test
+    void healthy_period_increases_limit_by_one_up_to_max() {
+        for (int i = 0; i < 10; i++) {
+            limiter.record(FAST, false);
+            limiter.adjust();
+        }
+
+        assertThat(limiter.getLimit()).isEqualTo(8);
+        assertThat(limiter.getChanges()).hasSize(6);
+        assertThat(limiter.getChanges().get(0).getTo()).isEqualTo(8);
+    }
+
+    @Test
+    void slow_period_backs_off_multiplicatively() {
+        raiseTo(8);
+
+        limiter.record(SLOW, false);
+        limiter.adjust();
+
+        assertThat(limiter.getLimit()).isEqualTo(6);
+        assertThat(limiter.getChanges().get(0).getReason()).contains("latence moyenne FormServices 900 ms > 500 ms");
+    }
+
+    @Test
+    void error_rate_above_threshold_backs_off_even_when_fast() {
+        raiseTo(8);
+
+        for (int i = 0; i < 9; i++) {
+            limiter.record(FAST, false);
+        }
+        limiter.record(FAST, true);
+        limiter.adjust();
+
+        assertThat(limiter.getLimit()).isEqualTo(6);
+        assertThat(limiter.getChanges().get(0).getReason()).startsWith("taux d'erreurs FormServices");
+    }
+
+    @Test
+    void back_off_never_goes_below_min() {
+        for (int i = 0; i < 5; i++) {
+            limiter.record(SLOW, true);
+            limiter.adjust();
+        }
+
+        assertThat(limiter.getLimit()).isEqualTo(2);
+        assertThat(limiter.getChanges()).isEmpty();
+    }
+
+    @Test
+    void period_without_calls_keeps_limit() {
+        limiter.adjust();
+
+        assertThat(limiter.getLimit()).isEqualTo(2);
+        assertThat(limiter.getChanges()).isEmpty();
+    }
+
+    @Test
+    void cannot_be_enabled_with_lanes_or_batch() {
+        assertThatThrownBy(() -> limiter(true, false)).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> limiter(false, true)).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void resize_keeps_prefetch_per_consumer() {
+        SimpleMessageListenerContainer container = new SimpleMessageListenerContainer();
+        AdaptiveConcurrencyLimiter limiter = limiter(registryWith(container), false, false);
+
+        for (int i = 0; i < 3; i++) {
+            limiter.record(FAST, false);
+            limiter.adjust();
+        }
+        assertThat(ReflectionTestUtils.getField(container, "concurrentConsumers")).isEqualTo(5);
+        assertThat(ReflectionTestUtils.getField(container, "prefetchCount")).isEqualTo(10);
+
+        limiter.record(SLOW, false);
+        limiter.adjust();
+        assertThat(ReflectionTestUtils.getField(container, "concurrentConsumers")).isEqualTo(3);
+        assertThat(ReflectionTestUtils.getField(container, "prefetchCount")).isEqualTo(10);
+    }
+
+    private void raiseTo(int limit) {
+        while (limiter.getLimit() < limit) {
+            limiter.record(FAST, false);
+            limiter.adjust();
+        }
+    }
+
+    private static AdaptiveConcurrencyLimiter limiter(boolean batchEnabled, boolean lanesEnabled) {
+        return limiter(new RabbitListenerEndpointRegistry(), batchEnabled, lanesEnabled);
+    }
+
+    private static AdaptiveConcurrencyLimiter limiter(RabbitListenerEndpointRegistry registry, boolean batchEnabled, boolean lanesEnabled) {
+        return new AdaptiveConcurrencyLimiter(registry, new SimpleMeterRegistry(),
+                true, 2, 8, 500, 0.05, 0.75, 10, 10000, batchEnabled, lanesEnabled);
+    }
+
+    private static RabbitListenerEndpointRegistry registryWith(MessageListenerContainer container) {
+        return new RabbitListenerEndpointRegistry() {
+            @Override
+            public MessageListenerContainer getListenerContainer(String id) {
+                return MainRouter.LISTENER_ID.equals(id) ? container : null;
+            }
+        };
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import ch.ge.ael.enu.mediation.exception.IllegalMessageException;
+import ch.ge.ael.enu.mediation.util.hash.HashAlgorithm;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BlobReferenceTest {
+
+    private static final String SHA_256 = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    @Test
+    void parse_key_algorithm_and_hash() throws IllegalMessageException {
+        BlobReference reference = BlobReference.parse("enu-blob:afc/2021/decision;v2.pdf;SHA-256=" + SHA_256);
+
+        assertThat(reference.getKey()).isEqualTo("afc/2021/decision;v2.pdf");
+        assertThat(reference.getAlgorithm()).isEqualTo(HashAlgorithm.SHA_256);
+        assertThat(reference.getHash()).isEqualTo(SHA_256);
+    }
+
+    @Test
+    void only_the_prefix_makes_a_reference() {
+        assertThat(BlobReference.isReference("enu-blob:a.pdf;SHA-256=" + SHA_256)).isTrue();
+        assertThat(BlobReference.isReference("JVBERi0xLjcK")).isFalse();
+        assertThat(BlobReference.isReference(null)).isFalse();
+    }
+
+    @Test
+    void reject_malformed_references() {
+        assertThatThrownBy(() -> BlobReference.parse("enu-blob:afc/decision.pdf"))
+                .isInstanceOf(IllegalMessageException.class).hasMessageContaining("Format attendu");
+        assertThatThrownBy(() -> BlobReference.parse("enu-blob:;SHA-256=" + SHA_256))
+                .isInstanceOf(IllegalMessageException.class).hasMessageContaining("Format attendu");
+        assertThatThrownBy(() -> BlobReference.parse("enu-blob:afc/decision.pdf;SHA-256"))
+                .isInstanceOf(IllegalMessageException.class).hasMessageContaining("Format attendu");
+    }
+
+    @Test
+    void reject_unknown_algorithm() {
+        assertThatThrownBy(() -> BlobReference.parse("enu-blob:afc/decision.pdf;CRC32=cbf43926"))
+                .isInstanceOf(IllegalMessageException.class).hasMessageContaining("n'est pas supporte");
+    }
+
+    @Test
+    void reject_invalid_hash() {
+        assertThatThrownBy(() -> BlobReference.parse("enu-blob:afc/decision.pdf;SHA-256=1234"))
+                .isInstanceOf(IllegalMessageException.class).hasMessageContaining("n'est pas une empreinte");
+        assertThatThrownBy(() -> BlobReference.parse("enu-blob:afc/decision.pdf;SHA-256=not-a-hash!"))
+                .isInstanceOf(IllegalMessageException.class).hasMessageContaining("n'est pas une empreinte");
+    }
+}
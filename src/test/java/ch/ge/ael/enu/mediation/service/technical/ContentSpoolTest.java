@@ -0,0 +1,219 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ContentSpoolTest {
+
+    private static final int THRESHOLD = 16;
+
+    @TempDir
+    Path root;
+
+    private final List<ContentSpool> spools = new ArrayList<>();
+
+    @AfterEach
+    void destroy() throws IOException {
+        for (ContentSpool spool : spools) {
+            spool.destroy();
+        }
+    }
+
+    @Test
+    void content_up_to_the_threshold_stays_in_memory() throws IOException {
+        ContentSpool spool = spool();
+
+        try (DecodedContent decoded = spool.decode(base64(THRESHOLD));
+             DecodedContent copied = spool.copy(new ByteArrayInputStream(bytes(THRESHOLD)))) {
+            assertThat(decoded.getSize()).isEqualTo(THRESHOLD);
+            assertThat(copied.getSize()).isEqualTo(THRESHOLD);
+            assertThat(spooledFiles()).isEmpty();
+        }
+    }
+
+    @Test
+    void content_over_the_threshold_is_spooled_then_deleted_on_close() throws IOException {
+        ContentSpool spool = spool();
+
+        DecodedContent decoded = spool.decode(base64(THRESHOLD + 1));
+        DecodedContent copied = spool.copy(new ByteArrayInputStream(bytes(THRESHOLD + 1)));
+
+        assertThat(spooledFiles()).hasSize(2);
+        assertThat(read(decoded)).isEqualTo(bytes(THRESHOLD + 1));
+        assertThat(read(copied)).isEqualTo(bytes(THRESHOLD + 1));
+        assertThat(decoded.head(4)).isEqualTo(new byte[] {0, 1, 2, 3});
+        decoded.close();
+        copied.close();
+        assertThat(spooledFiles()).isEmpty();
+    }
+
+    @Test
+    void spool_file_is_deleted_when_decoding_fails() {
+        ContentSpool spool = spool();
+        String invalid = base64(THRESHOLD * 4).substring(0, THRESHOLD * 2) + "!!!!" + base64(THRESHOLD * 2);
+
+        try {
+            spool.decode(invalid).close();
+        } catch (IllegalArgumentException e) {
+            // attendu
+        }
+
+        assertThat(spooledFiles()).isEmpty();
+    }
+
+    @Test
+    void each_instance_spools_in_its_own_directory_removed_on_shutdown() throws IOException {
+        ContentSpool first = spool();
+        ContentSpool second = spool();
+        assertThat(instanceDirectories()).hasSize(2);
+
+        try (DecodedContent content = first.decode(base64(THRESHOLD + 1))) {
+            assertThat(spooledFiles()).hasSize(1);
+            second.destroy();
+            spools.remove(second);
+            assertThat(instanceDirectories()).hasSize(1);
+            assertThat(read(content)).isEqualTo(bytes(THRESHOLD + 1));
+        }
+    }
+
+    @Test
+    void old_leftovers_of_stopped_instances_are_purged_at_startup() throws IOException {
+        Instant old = Instant.now().minus(Duration.ofHours(25));
+        Path oldRootFile = file(root.resolve("enu-document-1.bin"), old);
+        Path recentRootFile = file(root.resolve("enu-document-2.bin"), Instant.now());
+        Path stoppedInstance = Files.createDirectory(root.resolve("instance-arretee"));
+        file(stoppedInstance.resolve("enu-document-3.bin"), old);
+        Files.setLastModifiedTime(stoppedInstance, FileTime.from(old));
+        Path recentlyStoppedInstance = Files.createDirectory(root.resolve("instance-arretee-recemment"));
+        Path recentFile = file(recentlyStoppedInstance.resolve("enu-document-4.bin"), Instant.now());
+        Path otherFile = file(root.resolve("autre.bin"), old);
+
+        spool();
+
+        assertThat(oldRootFile).doesNotExist();
+        assertThat(recentRootFile).exists();
+        assertThat(stoppedInstance).doesNotExist();
+        assertThat(recentFile).exists();
+        assertThat(otherFile).exists();
+    }
+
+    @Test
+    void directory_of_a_live_instance_is_never_purged() throws IOException {
+        ContentSpool live = spool();
+        Path liveDirectory = instanceDirectories().get(0);
+        Instant old = Instant.now().minus(Duration.ofDays(3));
+        Path liveFile = file(liveDirectory.resolve("enu-document-long-upload.bin"), old);
+        Files.setLastModifiedTime(liveDirectory, FileTime.from(old));
+
+        spool();
+
+        assertThat(liveDirectory).exists();
+        assertThat(liveFile).exists();
+        try (DecodedContent content = live.decode(base64(THRESHOLD + 1))) {
+            assertThat(read(content)).isEqualTo(bytes(THRESHOLD + 1));
+        }
+    }
+
+    @Test
+    void directory_of_an_idle_live_instance_is_never_purged() throws IOException {
+        spool();
+        Path liveDirectory = instanceDirectories().get(0);
+        Files.setLastModifiedTime(liveDirectory, FileTime.from(Instant.now().minus(Duration.ofDays(3))));
+
+        spool();
+
+        assertThat(liveDirectory).exists();
+        assertThat(instanceDirectories()).hasSize(2);
+    }
+
+    private ContentSpool spool() {
+        try {
+            ContentSpool spool = new ContentSpool(THRESHOLD, root.toString());
+            spools.add(spool);
+            return spool;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private List<Path> instanceDirectories() throws IOException {
+        List<Path> directories = new ArrayList<>();
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(root, "instance-*")) {
+            paths.forEach(directories::add);
+        }
+        return directories;
+    }
+
+    private List<Path> spooledFiles() {
+        List<Path> files = new ArrayList<>();
+        try {
+            for (Path directory : instanceDirectories()) {
+                try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, "enu-document-*")) {
+                    paths.forEach(files::add);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return files;
+    }
+
+    private static Path file(Path path, Instant lastModified) throws IOException {
+        Files.write(path, bytes(4));
+        Files.setLastModifiedTime(path, FileTime.from(lastModified));
+        return path;
+    }
+
+    private static byte[] read(DecodedContent content) throws IOException {
+        try (InputStream in = content.newInputStream()) {
+            return StreamUtils.copyToByteArray(in);
+        }
+    }
+
+    private static byte[] bytes(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+
+    private static String base64(int size) {
+        return Base64.getEncoder().encodeToString(bytes(size));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import ch.ge.ael.enu.mediation.exception.IllegalMessageException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DocumentContentResolverTest {
+
+    private static final byte[] CONTENT = "%PDF-1.7 decision".getBytes(StandardCharsets.US_ASCII);
+
+    @TempDir
+    Path spool;
+
+    @Test
+    void copy_content_of_the_store_when_hash_matches() throws Exception {
+        String reference = "enu-blob:afc/decision.pdf;SHA-256=" + Base64.getEncoder().encodeToString(sha256(CONTENT));
+
+        try (DecodedContent content = resolver().resolve("doc-1", reference);
+             InputStream in = content.newInputStream()) {
+            assertThat(content.getSize()).isEqualTo(CONTENT.length);
+            assertThat(in).hasBinaryContent(CONTENT);
+        }
+    }
+
+    @Test
+    void reject_content_whose_hash_does_not_match() throws Exception {
+        String reference = "enu-blob:afc/decision.pdf;SHA-256=" + Base64.getEncoder().encodeToString(sha256("autre".getBytes()));
+        DocumentContentResolver resolver = resolver();
+
+        assertThatThrownBy(() -> resolver.resolve("doc-1", reference))
+                .isInstanceOf(IllegalMessageException.class)
+                .hasMessageContaining("ne correspond pas");
+    }
+
+    @Test
+    void decode_base64_content() throws Exception {
+        try (DecodedContent content = resolver().resolve("doc-1", Base64.getEncoder().encodeToString(CONTENT));
+             InputStream in = content.newInputStream()) {
+            assertThat(in).hasBinaryContent(CONTENT);
+        }
+    }
+
+    private DocumentContentResolver resolver() throws IOException {
+        BlobStore store = key -> new ByteArrayInputStream(CONTENT);
+        StaticListableBeanFactory beanFactory = new StaticListableBeanFactory(Collections.singletonMap("blobStore", store));
+        return new DocumentContentResolver(new ContentSpool(1024, spool.toString()), beanFactory.getBeanProvider(BlobStore.class));
+    }
+
+    private static byte[] sha256(byte[] content) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(content);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import ch.ge.ael.enu.mediation.exception.IllegalMessageException;
+import ch.ge.ael.enu.mediation.exception.NotFoundException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FileSystemBlobStoreTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    void open_a_file_of_the_store() throws Exception {
+        Files.createDirectories(root.resolve("afc/2021"));
+        Files.write(root.resolve("afc/2021/decision-123.pdf"), "%PDF-1.7".getBytes());
+
+        try (InputStream in = store().open("afc/2021/decision-123.pdf")) {
+            assertThat(in).hasContent("%PDF-1.7");
+        }
+    }
+
+    @Test
+    void reject_keys_leaving_the_store() throws IOException {
+        Files.write(root.resolve("document.pdf"), "%PDF-1.7".getBytes());
+        FileSystemBlobStore store = store();
+
+        assertThatThrownBy(() -> store.open("../document.pdf")).isInstanceOf(IllegalMessageException.class);
+        assertThatThrownBy(() -> store.open("afc/../../document.pdf")).isInstanceOf(IllegalMessageException.class);
+        assertThatThrownBy(() -> store.open("./document.pdf")).isInstanceOf(IllegalMessageException.class);
+        assertThatThrownBy(() -> store.open(root.resolve("document.pdf").toString())).isInstanceOf(IllegalMessageException.class);
+        assertThatThrownBy(() -> store.open("/etc/passwd")).isInstanceOf(IllegalMessageException.class);
+        assertThatThrownBy(() -> store.open("")).isInstanceOf(IllegalMessageException.class);
+    }
+
+    @Test
+    void reject_symbolic_links_leaving_the_store() throws IOException {
+        Path outside = Files.createTempDirectory("outside");
+        Path secret = Files.write(outside.resolve("secret.pdf"), "secret".getBytes());
+        try {
+            Files.createSymbolicLink(root.resolve("link.pdf"), secret);
+            Files.createSymbolicLink(root.resolve("linked-dir"), outside);
+            FileSystemBlobStore store = store();
+
+            assertThatThrownBy(() -> store.open("link.pdf")).isInstanceOf(IllegalMessageException.class);
+            assertThatThrownBy(() -> store.open("linked-dir/secret.pdf")).isInstanceOf(IllegalMessageException.class);
+        } finally {
+            Files.delete(secret);
+            Files.delete(outside);
+        }
+    }
+
+    @Test
+    void missing_key_is_not_found() throws IOException {
+        Files.createDirectories(root.resolve("afc"));
+        FileSystemBlobStore store = store();
+
+        assertThatThrownBy(() -> store.open("afc/absent.pdf")).isInstanceOf(NotFoundException.class);
+        assertThatThrownBy(() -> store.open("afc")).isInstanceOf(NotFoundException.class);
+    }
+
+    private FileSystemBlobStore store() throws IOException {
+        return new FileSystemBlobStore(root.toString());
+    }
+}
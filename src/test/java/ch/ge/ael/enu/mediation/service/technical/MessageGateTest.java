@@ -0,0 +1,173 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import ch.ge.ael.enu.mediation.configuration.serialization.MessageFormat;
+import ch.ge.ael.enu.mediation.exception.IllegalMessageException;
+import ch.ge.ael.enu.mediation.exception.UnsupportedMediaTypeException;
+import ch.ge.ael.enu.mediation.util.codec.ContentEncoding;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.COURRIER;
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.DEMARCHE_DEPOSEE;
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.DOCUMENT;
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.DOCUMENT_BINAIRE;
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.SEQUENCE_MESSAGES;
+import static org.assertj.core.api.Assertions.assertThatCode;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MessageGateTest {
+
+    private final MessageGate gate = new MessageGate();
+
+    MessageGateTest() {
+        ReflectionTestUtils.setField(gate, "defaultMaxSize", 100);
+        ReflectionTestUtils.setField(gate, "documentMaxSize", 200);
+        ReflectionTestUtils.setField(gate, "courrierMaxSize", 300);
+    }
+
+    @Test
+    void reject_missing_or_unsupported_content_type() {
+        Message message = message("{}", null);
+
+        assertThatThrownBy(() -> gate.check(message, null, MessageFormat.JSON)).isInstanceOf(UnsupportedMediaTypeException.class);
+        assertThatThrownBy(() -> gate.check(message, "", MessageFormat.JSON)).isInstanceOf(UnsupportedMediaTypeException.class);
+        assertThatThrownBy(() -> gate.check(message, "application/json;type=inconnu", MessageFormat.JSON))
+                .isInstanceOf(UnsupportedMediaTypeException.class);
+        assertThatThrownBy(() -> gate.check(message(new byte[0], null), DEMARCHE_DEPOSEE, MessageFormat.JSON))
+                .isInstanceOf(IllegalMessageException.class);
+    }
+
+    @Test
+    void size_limit_depends_on_the_type() {
+        assertSizeLimit(DEMARCHE_DEPOSEE, 100, '{', '}');
+        assertSizeLimit(DOCUMENT, 200, '{', '}');
+        assertSizeLimit(DOCUMENT_BINAIRE, 200, '{', '}');
+        assertSizeLimit(COURRIER, 300, '{', '}');
+        assertSizeLimit(SEQUENCE_MESSAGES, 300, '[', ']');
+    }
+
+    @Test
+    void sequence_item_is_checked_against_its_own_type() {
+        assertThatCode(() -> gate.checkSequenceItem(DOCUMENT, 200)).doesNotThrowAnyException();
+        assertThatThrownBy(() -> gate.checkSequenceItem(DOCUMENT, 201)).isInstanceOf(IllegalMessageException.class);
+        assertThatThrownBy(() -> gate.checkSequenceItem(DEMARCHE_DEPOSEE, 101)).isInstanceOf(IllegalMessageException.class);
+        // pas de sequence dans une sequence
+        assertThatThrownBy(() -> gate.checkSequenceItem(SEQUENCE_MESSAGES, 10)).isInstanceOf(UnsupportedMediaTypeException.class);
+        assertThatThrownBy(() -> gate.checkSequenceItem("application/json;type=inconnu", 10)).isInstanceOf(UnsupportedMediaTypeException.class);
+    }
+
+    @Test
+    void json_object_or_array_framing() {
+        assertAccepted(message("\uFEFF \r\n\t{\"idUsager\": \"u\"} \n", null), DEMARCHE_DEPOSEE, MessageFormat.JSON);
+        assertAccepted(message(" [{}]\n", null), SEQUENCE_MESSAGES, MessageFormat.JSON);
+
+        assertRejected(message("{\"idUsager\": \"u\"", null), DEMARCHE_DEPOSEE, MessageFormat.JSON);
+        assertRejected(message("[{}]", null), DEMARCHE_DEPOSEE, MessageFormat.JSON);
+        assertRejected(message("{}", null), SEQUENCE_MESSAGES, MessageFormat.JSON);
+        assertRejected(message("   {   ", null), DEMARCHE_DEPOSEE, MessageFormat.JSON);
+        assertRejected(message("\uFEFF", null), DEMARCHE_DEPOSEE, MessageFormat.JSON);
+    }
+
+    @Test
+    void smile_header() {
+        assertAccepted(message(new byte[]{':', ')', '\n', 0x03, (byte) 0xFA}, null), DEMARCHE_DEPOSEE, MessageFormat.SMILE);
+        assertRejected(message("{}", null), DEMARCHE_DEPOSEE, MessageFormat.SMILE);
+    }
+
+    @Test
+    void cbor_major_type() {
+        byte[] map = {(byte) 0xA1, 0x61, 'a', 0x01};
+        byte[] array = {(byte) 0x81, (byte) 0xA0};
+        byte[] selfDescribedMap = {(byte) 0xD9, (byte) 0xD9, (byte) 0xF7, (byte) 0xA0};
+
+        assertAccepted(message(map, null), DEMARCHE_DEPOSEE, MessageFormat.CBOR);
+        assertAccepted(message(selfDescribedMap, null), DEMARCHE_DEPOSEE, MessageFormat.CBOR);
+        assertAccepted(message(array, null), SEQUENCE_MESSAGES, MessageFormat.CBOR);
+        assertRejected(message(array, null), DEMARCHE_DEPOSEE, MessageFormat.CBOR);
+        assertRejected(message(map, null), SEQUENCE_MESSAGES, MessageFormat.CBOR);
+        assertRejected(message(new byte[]{(byte) 0xD9, (byte) 0xD9, (byte) 0xF7}, null), DEMARCHE_DEPOSEE, MessageFormat.CBOR);
+    }
+
+    @Test
+    void gzip_and_zlib_magic() throws IOException {
+        byte[] json = "{\"idUsager\": \"u\"}".getBytes(StandardCharsets.UTF_8);
+
+        assertAccepted(message(ContentEncoding.gzip(json), "gzip"), DEMARCHE_DEPOSEE, MessageFormat.JSON);
+        assertAccepted(message(ContentEncoding.gzip(json), "x-gzip"), DEMARCHE_DEPOSEE, MessageFormat.JSON);
+        assertAccepted(message(deflate(json), "deflate"), DEMARCHE_DEPOSEE, MessageFormat.JSON);
+        assertRejected(message(json, "gzip"), DEMARCHE_DEPOSEE, MessageFormat.JSON);
+        assertRejected(message(json, "deflate"), DEMARCHE_DEPOSEE, MessageFormat.JSON);
+        assertRejected(message(new byte[]{0x1F}, "gzip"), DEMARCHE_DEPOSEE, MessageFormat.JSON);
+        // un encodage non supporte est refuse a la deserialisation, avec un message d'erreur explicite
+        assertAccepted(message(json, "br"), DEMARCHE_DEPOSEE, MessageFormat.JSON);
+        // un nom de charset signifie un message non compresse
+        assertAccepted(message(json, "UTF-8"), DEMARCHE_DEPOSEE, MessageFormat.JSON);
+    }
+
+    private void assertSizeLimit(String contentType, int maxSize, char open, char close) {
+        assertAccepted(message(framed(maxSize, open, close), null), contentType, MessageFormat.JSON);
+        assertThatThrownBy(() -> gate.check(message(framed(maxSize + 1, open, close), null), contentType, MessageFormat.JSON))
+                .isInstanceOf(IllegalMessageException.class)
+                .hasMessageContaining("au-dela du maximum de " + maxSize + " octets");
+    }
+
+    private void assertAccepted(Message message, String contentType, MessageFormat format) {
+        assertThatCode(() -> gate.check(message, contentType, format)).doesNotThrowAnyException();
+    }
+
+    private void assertRejected(Message message, String contentType, MessageFormat format) {
+        assertThatThrownBy(() -> gate.check(message, contentType, format)).isInstanceOf(IllegalMessageException.class);
+    }
+
+    private static byte[] framed(int size, char open, char close) {
+        byte[] body = new byte[size];
+        Arrays.fill(body, (byte) ' ');
+        body[0] = (byte) open;
+        body[size - 1] = (byte) close;
+        return body;
+    }
+
+    private static byte[] deflate(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(out)) {
+            deflater.write(body);
+        }
+        return out.toByteArray();
+    }
+
+    private static Message message(String body, String contentEncoding) {
+        return message(body.getBytes(StandardCharsets.UTF_8), contentEncoding);
+    }
+
+    private static Message message(byte[] body, String contentEncoding) {
+        MessageProperties properties = new MessageProperties();
+        properties.setContentEncoding(contentEncoding);
+        return new Message(body, properties);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import ch.ge.ael.enu.mediation.model.jway.FileForStep;
+import ch.ge.ael.enu.mediation.model.jway.FileForWorkflow;
+import ch.ge.ael.enu.mediation.model.jway.FileSummary;
+import ch.ge.ael.enu.mediation.model.jway.Form;
+import ch.ge.ael.enu.mediation.model.jway.FormUrl;
+import ch.ge.ael.enu.mediation.model.jway.Text;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TransitionWriteAvoidanceTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final TransitionWriteAvoidance avoidance = new TransitionWriteAvoidance(true, meterRegistry);
+
+    @Test
+    void same_transition_on_a_later_date_is_skipped() {
+        FileSummary demarche = demarche("https://si/action", "Completer|ENRICHISSEMENT", "2021-10-31");
+
+        boolean skipped = avoidance.isAlreadyApplied(demarche,
+                step("2021-10-05", "https://si/action", "Completer|ENRICHISSEMENT"), workflow("2021-10-31"));
+
+        assertThat(skipped).isTrue();
+        assertThat(meterRegistry.get("enu.mediation.demarche.writes.skipped").counter().count()).isEqualTo(2.0);
+    }
+
+    @Test
+    void form_fields_completed_by_formservices_are_ignored() {
+        FileSummary demarche = demarche("https://si/action", "Completer|ENRICHISSEMENT", "2021-10-31");
+        demarche.getForm().setName("formulaire-action");
+        demarche.getForm().setNameLabel(new Text());
+
+        assertThat(avoidance.isAlreadyApplied(demarche,
+                step("2021-10-05", "https://si/action", "Completer|ENRICHISSEMENT"), workflow("2021-10-31"))).isTrue();
+    }
+
+    @Test
+    void transition_differing_from_the_state_read_from_formservices_is_not_skipped() {
+        // par ex. une autre instance a ecrit une autre action depuis
+        FileSummary demarche = demarche("https://si/autre-action", "Completer|ENRICHISSEMENT", "2021-10-31");
+
+        assertThat(avoidance.isAlreadyApplied(demarche,
+                step("2021-10-01", "https://si/action", "Completer|ENRICHISSEMENT"), workflow("2021-10-31"))).isFalse();
+        assertThat(avoidance.isAlreadyApplied(demarche("https://si/action", "Completer|ENRICHISSEMENT", "2021-11-30"),
+                step("2021-10-01", "https://si/action", "Completer|ENRICHISSEMENT"), workflow("2021-10-31"))).isFalse();
+        FileSummary otherStatus = demarche("https://si/action", "Completer|ENRICHISSEMENT", "2021-10-31");
+        otherStatus.setWorkflowStatus("VALIDATION");
+        assertThat(avoidance.isAlreadyApplied(otherStatus,
+                step("2021-10-01", "https://si/action", "Completer|ENRICHISSEMENT"), workflow("2021-10-31"))).isFalse();
+        assertThat(meterRegistry.get("enu.mediation.demarche.writes.skipped").counter().count()).isZero();
+    }
+
+    @Test
+    void applied_transition_becomes_the_state_of_the_demarche() {
+        FileSummary demarche = new FileSummary();
+        demarche.setWorkflowStatus("VALIDATION");
+        FileForStep step = step("2021-10-01", "https://si/action", "Completer|ENRICHISSEMENT");
+        FileForWorkflow workflow = workflow("2021-10-31");
+
+        TransitionWriteAvoidance.applied(demarche, step, workflow);
+
+        assertThat(demarche.getWorkflowStatus()).isEqualTo("CORRECTION");
+        assertThat(avoidance.isAlreadyApplied(demarche, step, workflow)).isTrue();
+    }
+
+    @Test
+    void disabled_avoidance_never_skips() {
+        TransitionWriteAvoidance disabled = new TransitionWriteAvoidance(false, new SimpleMeterRegistry());
+
+        assertThat(disabled.isAlreadyApplied(demarche("https://si/action", "Completer|ENRICHISSEMENT", "2021-10-31"),
+                step("2021-10-01", "https://si/action", "Completer|ENRICHISSEMENT"), workflow("2021-10-31"))).isFalse();
+    }
+
+    private static FileSummary demarche(String url, String description, String toDate) {
+        FileSummary demarche = new FileSummary();
+        demarche.setName("DEM-1");
+        demarche.setWorkflowStatus("CORRECTION");
+        demarche.setStep("CORRECTION");
+        demarche.setStepDescription(description);
+        demarche.setForm(new Form(null, null, null, Collections.singletonList(new FormUrl(url))));
+        demarche.setToDate(toDate);
+        return demarche;
+    }
+
+    private static FileForStep step(String lastUpdate, String url, String description) {
+        FileForStep step = new FileForStep();
+        step.setStep("CORRECTION");
+        step.setLastUpdate(lastUpdate);
+        step.setForm(new Form(null, null, null, Collections.singletonList(new FormUrl(url))));
+        step.setStepDescription(description);
+        return step;
+    }
+
+    private static FileForWorkflow workflow(String toDate) {
+        FileForWorkflow workflow = new FileForWorkflow();
+        workflow.setName("DEM-1");
+        workflow.setWorkflowStatus("CORRECTION");
+        workflow.setStepDescription("Completer|ENRICHISSEMENT");
+        workflow.setToDate(toDate);
+        return workflow;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.DOCUMENT;
+import static ch.ge.ael.enu.business.domain.v1_0.EnuMediaType.DEMARCHE_DEPOSEE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class WorkerLanesTest {
+
+    private final WorkerLanes lanes = new WorkerLanes(2, 2, 2, 100, new SimpleMeterRegistry());
+
+    private final List<String> processed = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    void stop() throws InterruptedException {
+        lanes.destroy();
+    }
+
+    @Test
+    void messages_of_the_same_demarche_are_processed_in_order_across_lanes() throws InterruptedException {
+        CountDownLatch documentMayEnd = new CountDownLatch(1);
+        CountDownLatch allDone = new CountDownLatch(2);
+
+        lanes.submit(DOCUMENT, "usager|D1", "m1", () -> {
+            await(documentMayEnd);
+            processed.add("document D1");
+            allDone.countDown();
+        });
+        lanes.submit(DEMARCHE_DEPOSEE, "usager|D1", "m2", () -> {
+            processed.add("etat D1");
+            allDone.countDown();
+        });
+        documentMayEnd.countDown();
+
+        assertThat(allDone.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(processed).containsExactly("document D1", "etat D1");
+    }
+
+    @Test
+    void other_demarches_are_not_held_up() throws InterruptedException {
+        CountDownLatch documentMayEnd = new CountDownLatch(1);
+        CountDownLatch otherDone = new CountDownLatch(1);
+
+        lanes.submit(DOCUMENT, "usager|D1", "m1", () -> await(documentMayEnd));
+        lanes.submit(DEMARCHE_DEPOSEE, "usager|D2", "m2", otherDone::countDown);
+
+        assertThat(otherDone.await(5, TimeUnit.SECONDS)).isTrue();
+        documentMayEnd.countDown();
+    }
+
+    @Test
+    void status_messages_get_through_while_the_document_lane_is_saturated() throws InterruptedException {
+        CountDownLatch documentsMayEnd = new CountDownLatch(1);
+        CountDownLatch statusDone = new CountDownLatch(1);
+
+        lanes.submit(DOCUMENT, "usager|D1", "m1", () -> await(documentsMayEnd));
+        lanes.submit(DOCUMENT, "usager|D2", "m2", () -> await(documentsMayEnd));
+        assertThatThrownBy(() -> lanes.submit(DOCUMENT, "usager|D3", "m3", () -> processed.add("document D3")))
+                .isInstanceOf(RejectedExecutionException.class);
+        lanes.submit(DEMARCHE_DEPOSEE, "usager|D4", "m4", statusDone::countDown);
+
+        assertThat(statusDone.await(5, TimeUnit.SECONDS)).isTrue();
+        documentsMayEnd.countDown();
+        assertThat(processed).doesNotContain("document D3");
+    }
+
+    @Test
+    void demarche_of_a_refused_message_is_held_until_it_is_redelivered() throws InterruptedException {
+        CountDownLatch documentsMayEnd = new CountDownLatch(1);
+        CountDownLatch allDone = new CountDownLatch(2);
+        lanes.submit(DOCUMENT, "usager|D1", "m1", () -> await(documentsMayEnd));
+        lanes.submit(DOCUMENT, "usager|D2", "m2", () -> await(documentsMayEnd));
+
+        // le document D3 est refuse : le changement d'etat suivant de D3 ne doit pas le devancer
+        assertThatThrownBy(() -> lanes.submit(DOCUMENT, "usager|D3", "m3", () -> { }))
+                .isInstanceOf(RejectedExecutionException.class);
+        assertThatThrownBy(() -> lanes.submit(DEMARCHE_DEPOSEE, "usager|D3", "m4", () -> { }))
+                .isInstanceOf(RejectedExecutionException.class);
+        documentsMayEnd.countDown();
+
+        // redelivres dans l'ordre de la queue, une fois la file liberee
+        submitWhenAccepted(DOCUMENT, "usager|D3", "m3", () -> {
+            processed.add("document D3");
+            allDone.countDown();
+        });
+        lanes.submit(DEMARCHE_DEPOSEE, "usager|D3", "m4", () -> {
+            processed.add("etat D3");
+            allDone.countDown();
+        });
+
+        assertThat(allDone.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(processed).containsExactly("document D3", "etat D3");
+    }
+
+    private void submitWhenAccepted(String contentType, String demarcheKey, String messageId, Runnable task) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            try {
+                lanes.submit(contentType, demarcheKey, messageId, task);
+                return;
+            } catch (RejectedExecutionException e) {
+                Thread.sleep(10);
+            }
+        }
+        throw new AssertionError("Message jamais accepte");
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
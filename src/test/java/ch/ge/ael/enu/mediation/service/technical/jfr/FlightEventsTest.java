@@ -0,0 +1,126 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.service.technical.jfr;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.http.HttpMethod.POST;
+
+class FlightEventsTest {
+
+    private final Message message = new Message(new byte[0], new MessageProperties());
+
+    @Test
+    void events_are_recorded_when_flight_recorder_is_available() {
+        FlightEvents events = new FlightEvents(true);
+
+        events.messageStarted(message);
+        events.stageCompleted("admission");
+        events.messageFinished();
+        FlightEvent call = events.formServicesCallStarted(ClientRequest.create(POST, URI.create("http://formservices/file")).build(), "c1");
+        events.formServicesCallCompleted(call, null, new IllegalStateException("timeout"));
+
+        assertThat(FlightEvents.isFlightRecorderAvailable()).isTrue();
+        assertThat(call).isInstanceOf(FormServicesCallEvent.class);
+        assertThat(events.responsePublishStarted(message, "OK", "{}")).isInstanceOf(ResponsePublishEvent.class);
+        assertThat(FlightEvents.eventTypes()).contains(MessageStageEvent.class, FormServicesCallEvent.class, ResponsePublishEvent.class);
+    }
+
+    @Test
+    void events_are_inactive_when_disabled() {
+        FlightEvents events = new FlightEvents(false);
+
+        events.messageStarted(message);
+        events.stageCompleted("admission");
+
+        assertThat(events.formServicesCallStarted(ClientRequest.create(POST, URI.create("http://formservices/file")).build(), "c1")).isNull();
+        assertThat(events.responsePublishStarted(message, "OK", "{}")).isNull();
+    }
+
+    /**
+     * Le bean doit pouvoir etre cree et introspecte par Spring sur une JVM sans JFR.
+     */
+    @Test
+    void bean_is_usable_on_a_jvm_without_flight_recorder() throws Exception {
+        Class<?> type = new WithoutFlightRecorder().loadClass(FlightEvents.class.getName());
+
+        // ce que fait Spring pour rechercher les annotations du bean
+        type.getDeclaredMethods();
+        type.getDeclaredFields();
+        type.getDeclaredConstructors();
+        Object events = type.getConstructor(boolean.class).newInstance(true);
+        type.getMethod("messageStarted", Message.class).invoke(events, message);
+        type.getMethod("stageCompleted", String.class).invoke(events, "admission");
+        type.getMethod("messageFinished").invoke(events);
+
+        assertThat(type.getMethod("isFlightRecorderAvailable").invoke(null)).isEqualTo(false);
+        assertThat(type.getMethod("formServicesCallStarted", ClientRequest.class, String.class).invoke(events, null, "c1")).isNull();
+        assertThat(type.getMethod("responsePublishStarted", Message.class, String.class, String.class).invoke(events, message, "OK", "{}")).isNull();
+        type.getMethod("formServicesCallCompleted", type.getClassLoader().loadClass(FlightEvent.class.getName()), ClientResponse.class, Throwable.class)
+                .invoke(events, null, null, null);
+    }
+
+    /**
+     * Chargeur simulant une JVM sans le module jdk.jfr ; les classes du package jfr de la mediation sont rechargees
+     * par lui pour que leurs references a jdk.jfr passent par lui.
+     */
+    private static class WithoutFlightRecorder extends ClassLoader {
+
+        private static final String PACKAGE = FlightEvents.class.getPackage().getName() + ".";
+
+        private WithoutFlightRecorder() {
+            super(FlightEventsTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.startsWith("jdk.jfr.")) {
+                throw new ClassNotFoundException(name);
+            }
+            if (!name.startsWith(PACKAGE) || name.startsWith(FlightEventsTest.class.getName())) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> type = findLoadedClass(name);
+                if (type == null) {
+                    try (InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                        if (in == null) {
+                            throw new ClassNotFoundException(name);
+                        }
+                        byte[] bytes = StreamUtils.copyToByteArray(in);
+                        type = defineClass(name, bytes, 0, bytes.length);
+                    } catch (IOException e) {
+                        throw new ClassNotFoundException(name, e);
+                    }
+                }
+                return type;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.util.codec;
+
+import ch.ge.ael.enu.mediation.util.hash.HashAlgorithm;
+import org.junit.jupiter.api.Test;
+
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class Base64DecoderTest {
+
+    @Test
+    void decode_in_chunks() {
+        // plusieurs blocs, dernier bloc incomplet et avec padding
+        byte[] content = new byte[Base64Decoder.CHUNK_SIZE * 2 + 1];
+        new Random(42).nextBytes(content);
+        String base64 = Base64.getEncoder().encodeToString(content);
+
+        assertThat(Base64Decoder.decode(base64)).isEqualTo(content);
+    }
+
+    @Test
+    void decode_head_only() {
+        String base64 = Base64.getEncoder().encodeToString("%PDF-1.7 suite du document".getBytes());
+
+        assertThat(Base64Decoder.decodeHead(base64, 5)).isEqualTo("%PDF-".getBytes());
+        assertThat(Base64Decoder.decodeHead("JVBERg==", 8)).isEqualTo("%PDF".getBytes());
+    }
+
+    @Test
+    void hash_matches_hex_or_base64() throws Exception {
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest(new byte[]{1, 2, 3});
+        String hexHash = toHex(expected);
+
+        assertThat(HashAlgorithm.SHA_256.matches(expected, hexHash)).isTrue();
+        assertThat(HashAlgorithm.SHA_256.matches(expected, Base64.getEncoder().encodeToString(expected))).isTrue();
+        assertThat(HashAlgorithm.SHA_256.matches(new byte[32], hexHash)).isFalse();
+    }
+
+    @Test
+    void reject_invalid_base64() {
+        assertThatThrownBy(() -> Base64Decoder.decode("YWJjŁGVm"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void hash_algorithm_labels() {
+        assertThat(HashAlgorithm.fromLabel("SHA-256")).isEqualTo(HashAlgorithm.SHA_256);
+        assertThat(HashAlgorithm.fromLabel("sha512")).isEqualTo(HashAlgorithm.SHA_512);
+        assertThat(HashAlgorithm.fromLabel("MD5")).isEqualTo(HashAlgorithm.MD5);
+        assertThat(HashAlgorithm.fromLabel("SHA-1")).isNull();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+}
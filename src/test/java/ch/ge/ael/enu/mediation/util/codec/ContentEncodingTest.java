@@ -0,0 +1,64 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.util.codec;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ContentEncodingTest {
+
+    @Test
+    void decode_within_limit() throws IOException {
+        byte[] content = "{\"idUsager\": \"usager\"}".getBytes();
+
+        try (InputStream in = ContentEncoding.decode(ContentEncoding.gzip(content), "gzip", content.length)) {
+            assertThat(readAll(in)).isEqualTo(content);
+        }
+    }
+
+    @Test
+    void reject_decoded_content_over_limit() {
+        // 1 Mo de zeros : quelques Ko une fois compresses
+        byte[] bomb = ContentEncoding.gzip(new byte[1024 * 1024]);
+        assertThat(bomb.length).isLessThan(64 * 1024);
+
+        assertThatThrownBy(() -> {
+            try (InputStream in = ContentEncoding.decode(bomb, "gzip", 64 * 1024)) {
+                readAll(in);
+            }
+        }).isInstanceOf(DecodedSizeExceededException.class);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+}
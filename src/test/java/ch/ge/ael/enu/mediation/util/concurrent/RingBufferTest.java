@@ -0,0 +1,85 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.util.concurrent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RingBufferTest {
+
+    @Test
+    void full_buffer_refuses_and_keeps_order() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(3);
+        assertThat(buffer.capacity()).isEqualTo(4);
+        for (int i = 0; i < 4; i++) {
+            assertThat(buffer.offer(i)).isTrue();
+        }
+        assertThat(buffer.offer(4)).isFalse();
+        assertThat(buffer.poll()).isEqualTo(0);
+        assertThat(buffer.offer(4)).isTrue();
+        List<Integer> polled = new ArrayList<>();
+        Integer element;
+        while ((element = buffer.poll()) != null) {
+            polled.add(element);
+        }
+        assertThat(polled).containsExactly(1, 2, 3, 4);
+        assertThat(buffer.size()).isZero();
+    }
+
+    @Test
+    void concurrent_producers_lose_nothing_but_refused_elements() throws InterruptedException {
+        RingBuffer<Long> buffer = new RingBuffer<>(1024);
+        int producers = 4;
+        int perProducer = 100_000;
+        AtomicInteger refused = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    if (!buffer.offer(1L)) {
+                        refused.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        long consumed = 0;
+        while (threads.stream().anyMatch(Thread::isAlive) || buffer.size() > 0) {
+            Long element = buffer.poll();
+            if (element != null) {
+                consumed += element;
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Long element;
+        while ((element = buffer.poll()) != null) {
+            consumed += element;
+        }
+        assertThat(consumed + refused.get()).isEqualTo((long) producers * perProducer);
+    }
+
+}
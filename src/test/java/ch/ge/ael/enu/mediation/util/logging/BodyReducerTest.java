@@ -39,4 +39,18 @@ class BodyReducerTest {
         assertThat(bytesReducedBody).isEqualTo("{\"mime\": \"text/plain\", \"contenu\": \"77+977+977+977+9ABBKRklGAAEBAQBgAGAAAO+/ ... (champ tronque, car trop long) ... KAAAAGgAAAABHcmVlbnN\"}");
     }
 
+    @Test
+    void every_long_contenu_should_be_truncated_and_body_bounded() {
+        String contenu = new String(new char[5000]).replace('\0', 'A');
+        String body = "{\"documents\": [{\"contenu\": \"" + contenu + "\"}, {\"contenu\" : \"" + contenu + "\"}]}";
+        String reducedBody = new BodyReducer(100).reduceBody(body.getBytes());
+
+        String truncated = contenu.substring(0, 40) + " ... (champ tronque, car trop long) ... " + contenu.substring(0, 20);
+        assertThat(reducedBody).isEqualTo(
+                "{\"documents\": [{\"contenu\": \"" + truncated + "\"}, {\"contenu\" : \"" + truncated + "\"}]}");
+
+        String boundedBody = new BodyReducer(100).reduceBody(body.getBytes(), 80);
+        assertThat(boundedBody).startsWith(reducedBody.substring(0, 80)).endsWith("(message tronque, " + body.length() + " octets)");
+    }
+
 }
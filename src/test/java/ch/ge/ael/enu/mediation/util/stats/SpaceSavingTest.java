@@ -0,0 +1,92 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.util.stats;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SpaceSavingTest {
+
+    @Test
+    void exact_while_under_capacity() {
+        SpaceSaving summary = new SpaceSaving(3);
+        summary.add("a", 1);
+        summary.add("b", 5);
+        summary.add("a", 2);
+        summary.add("c", 1);
+
+        List<SpaceSaving.Entry> top = summary.top(2);
+        assertThat(top).extracting(SpaceSaving.Entry::getKey).containsExactly("b", "a");
+        assertThat(top).extracting(SpaceSaving.Entry::getCount).containsExactly(5.0, 3.0);
+        assertThat(top).extracting(SpaceSaving.Entry::getError).containsExactly(0.0, 0.0);
+    }
+
+    @Test
+    void new_key_replaces_lightest_and_inherits_its_weight() {
+        SpaceSaving summary = new SpaceSaving(2);
+        summary.add("a", 10);
+        summary.add("b", 3);
+        summary.add("c", 1);
+
+        List<SpaceSaving.Entry> top = summary.top(10);
+        assertThat(top).extracting(SpaceSaving.Entry::getKey).containsExactly("a", "c");
+        assertThat(top.get(1).getCount()).isEqualTo(4.0);
+        assertThat(top.get(1).getError()).isEqualTo(3.0);
+    }
+
+    @Test
+    void heavy_hitters_are_found_in_a_long_tail() {
+        SpaceSaving summary = new SpaceSaving(20);
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            if (i % 4 == 0) {
+                summary.add("lourd-1", 1);
+            } else if (i % 10 == 1) {
+                summary.add("lourd-2", 2);
+            } else {
+                summary.add("queue-" + random.nextInt(5_000), 1);
+            }
+        }
+
+        List<SpaceSaving.Entry> top = summary.top(2);
+        assertThat(top).extracting(SpaceSaving.Entry::getKey).containsExactly("lourd-1", "lourd-2");
+        // 25 000 occurrences, 10 000 x 2 : le poids reel est dans [count - error, count]
+        assertThat(top.get(0).getCount() - top.get(0).getError()).isLessThanOrEqualTo(25_000);
+        assertThat(top.get(0).getCount()).isGreaterThanOrEqualTo(25_000);
+        assertThat(top.get(1).getCount() - top.get(1).getError()).isLessThanOrEqualTo(20_000);
+        assertThat(top.get(1).getCount()).isGreaterThanOrEqualTo(20_000);
+    }
+
+    @Test
+    void decay_keeps_order() {
+        SpaceSaving summary = new SpaceSaving(2);
+        summary.add("a", 8);
+        summary.add("b", 4);
+        summary.decay(0.5);
+        summary.add("b", 3);
+
+        assertThat(summary.top(2)).extracting(SpaceSaving.Entry::getKey).containsExactly("b", "a");
+        assertThat(summary.top(2)).extracting(SpaceSaving.Entry::getCount).containsExactly(5.0, 4.0);
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Espace numerique de l'usager - enu-mediation
+ *
+ * Copyright (C) 2021 Republique et canton de Geneve
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.ge.ael.enu.mediation.util.validation;
+
+import lombok.AllArgsConstructor;
+import org.junit.jupiter.api.Test;
+
+import javax.validation.Valid;
+import javax.validation.Validation;
+import javax.validation.Validator;
+import javax.validation.ValidatorFactory;
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Pattern;
+import javax.validation.constraints.Size;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MessageValidatorTest {
+
+    private final ValidatorFactory factory = Validation.buildDefaultValidatorFactory();
+
+    private final Validator hibernate = factory.getValidator();
+
+    private final MessageValidator validator = new MessageValidator(factory, Collections.emptyList());
+
+    static class Base {
+        @NotNull
+        private String idUsager;
+
+        Base(String idUsager) {
+            this.idUsager = idUsager;
+        }
+    }
+
+    static class Simple extends Base {
+        @NotBlank
+        @Size(max = 10)
+        private String libelle;
+
+        @Pattern(regexp = "[A-Z]{3}-\\d+", flags = Pattern.Flag.CASE_INSENSITIVE)
+        private String reference;
+
+        @Size(min = 1, max = 2)
+        private List<String> tags;
+
+        Simple(String idUsager, String libelle, String reference, List<String> tags) {
+            super(idUsager);
+            this.libelle = libelle;
+            this.reference = reference;
+            this.tags = tags;
+        }
+    }
+
+    @AllArgsConstructor
+    static class Cascading {
+        @NotNull
+        @Valid
+        private Simple simple;
+    }
+
+    @Test
+    void simple_constraints_are_compiled() {
+        assertThat(validator.isCompiled(Simple.class)).isTrue();
+        assertThat(validator.isCompiled(Cascading.class)).isFalse();
+    }
+
+    @Test
+    void compiled_plan_reports_the_same_violations() {
+        List<Simple> beans = Arrays.asList(
+                new Simple("CGE-1", "Libelle", "abc-12", Collections.singletonList("a")),
+                new Simple(null, " ", "ABC12", Collections.emptyList()),
+                new Simple("CGE-1", "Libelle trop long", null, Arrays.asList("a", "b", "c")),
+                new Simple("CGE-1", null, "ABC-1", null));
+        for (Simple bean : beans) {
+            assertThat(texts(validator.validate(bean)))
+                    .isEqualTo(hibernate.validate(bean).stream()
+                            .map(v -> v.getPropertyPath() + ": " + v.getMessage() + " (" + v.getInvalidValue() + ")")
+                            .collect(Collectors.toSet()));
+        }
+    }
+
+    @Test
+    void complex_classes_fall_back_to_hibernate_validator() {
+        Cascading bean = new Cascading(new Simple(null, "Libelle", null, null));
+        List<Violation> violations = validator.validate(bean);
+        assertThat(violations).extracting(Violation::getPropertyPath).containsExactly("simple.idUsager");
+        assertThat(texts(violations)).isEqualTo(hibernate.validate(bean).stream()
+                .map(v -> v.getPropertyPath() + ": " + v.getMessage() + " (" + v.getInvalidValue() + ")")
+                .collect(Collectors.toSet()));
+    }
+
+    private static Set<String> texts(List<Violation> violations) {
+        return violations.stream()
+                .map(v -> v.getPropertyPath() + ": " + v.getMessage() + " (" + v.getInvalidValue() + ")")
+                .collect(Collectors.toSet());
+    }
+
+}